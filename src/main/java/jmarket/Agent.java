@@ -19,44 +19,136 @@
  */
 package jmarket;
 
-import gnu.trove.map.hash.THashMap;
-
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A person participating in a market.
+ * <p>
+ * Balances are kept in chunks of primitive arrays indexed by {@link Currency#getId()} and changed by compare-and-set,
+ * without boxing. Subclasses may keep them elsewhere, as {@link StoredAgent} does. Only transfers between agents lock,
+ * so that each is seen whole by {@link #getCurrentWealth(Agent...)}.
  */
 public class Agent implements WealthHolder {
+    /**
+     * Locks held while moving wealth between two agents, striped by agent id. Stripes are always taken lowest first, so
+     * transfers in opposite directions cannot deadlock.
+     */
+    private static final ReentrantLock[] TRANSFER_LOCKS = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < TRANSFER_LOCKS.length; i++) {
+            TRANSFER_LOCKS[i] = new ReentrantLock();
+        }
+    }
+
     private final UUID uniqueId;
-    private final Map<Currency, Double> wealth;
+    private final int transferStripe;
+    // the wealth of an agent which keeps its own, or null for a subclass which keeps it elsewhere
+    private final AgentWealth wealth;
 
     public Agent(UUID uniqueId, String name) {
-        this(uniqueId, name, new HashMap<>());
+        this(uniqueId, name, null);
     }
 
     public Agent(UUID uniqueId, String name, Map<Currency, Double> wealth) {
-        if (uniqueId == null) {
-            throw new IllegalArgumentException("Agent must have a player ID.");
-        }
+        this(uniqueId, new AgentWealth());
         if (name == null) {
             throw new IllegalArgumentException("Agent must have a name.");
         }
 
+        if (wealth != null) {
+            wealth.forEach(this.wealth::set);
+        }
+    }
+
+    /**
+     * Creates an agent for a subclass which keeps its balances and wealth listeners elsewhere, and so must override
+     * every protected method and the methods for adding and removing listeners.
+     */
+    protected Agent(UUID uniqueId) {
+        this(uniqueId, (AgentWealth) null);
+    }
+
+    private Agent(UUID uniqueId, AgentWealth wealth) {
+        if (uniqueId == null) {
+            throw new IllegalArgumentException("Agent must have a player ID.");
+        }
+
         this.uniqueId = uniqueId;
-        this.wealth = wealth == null ? new HashMap<>() : new THashMap<>(wealth);
+        this.transferStripe = (uniqueId.hashCode() ^ (uniqueId.hashCode() >>> 16)) & (TRANSFER_LOCKS.length - 1);
+        this.wealth = wealth;
     }
 
     public UUID getUniqueId() {
         return uniqueId;
     }
 
+    /**
+     * Adds a listener to be told whenever the wealth of this agent goes down.
+     *
+     * @param listener the listener to add
+     */
+    public void addWealthListener(WealthListener listener) {
+        wealth.addListener(listener);
+    }
+
+    /**
+     * Removes a listener added with {@link #addWealthListener(WealthListener)}.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeWealthListener(WealthListener listener) {
+        wealth.removeListener(listener);
+    }
+
     @Override
     public WealthSnapshot getCurrentWealth() {
-        synchronized (wealth) {
-            return new WealthSnapshot(wealth);
+        long version = getVersion();
+        WealthSnapshot snapshot = getCachedWealth();
+        if (snapshot != null && snapshot.getVersion() == version) {
+            return snapshot;
+        }
+
+        snapshot = new WealthSnapshot(getBalances(), version);
+        // only cache the snapshot if nothing changed while it was taken, as otherwise it may be a mix of versions
+        if (getVersion() == version) {
+            cacheWealth(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Takes a snapshot of the wealth of each of several agents while holding their transfer locks, so every transfer
+     * between them is seen either whole or not at all, and no amount is seen held by neither agent or by both.
+     *
+     * @param agents the agents to read
+     * @return the wealth of each agent, in the same order
+     */
+    public static WealthSnapshot[] getCurrentWealth(Agent... agents) {
+        boolean[] stripes = new boolean[TRANSFER_LOCKS.length];
+        for (Agent agent : agents) {
+            stripes[agent.transferStripe] = true;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[i]) {
+                TRANSFER_LOCKS[i].lock();
+            }
+        }
+        try {
+            WealthSnapshot[] snapshots = new WealthSnapshot[agents.length];
+            for (int i = 0; i < agents.length; i++) {
+                snapshots[i] = agents[i].getCurrentWealth();
+            }
+            return snapshots;
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                if (stripes[i]) {
+                    TRANSFER_LOCKS[i].unlock();
+                }
+            }
         }
     }
 
@@ -66,14 +158,8 @@ public class Agent implements WealthHolder {
             return take(currency, -amount);
         }
 
-        synchronized (wealth) {
-            Double current = wealth.get(currency);
-            if (current == null) {
-                current = 0.0;
-            }
-            wealth.put(currency, current + amount);
-            return true;
-        }
+        addBalance(currency, amount);
+        return true;
     }
 
     @Override
@@ -82,21 +168,108 @@ public class Agent implements WealthHolder {
             return give(currency, -amount);
         }
 
-        synchronized (wealth) {
-            Double current = wealth.get(currency);
-            if (current != null && current >= amount) {
-                wealth.put(currency, current - amount);
-                return true;
-            }
+        if (!subtractBalance(currency, amount)) {
             return false;
         }
+        notifyWealthDecreased(currency);
+        return true;
+    }
+
+    /**
+     * Moves wealth to another agent as one step, holding the transfer locks of both and allocating nothing, and only
+     * tells the listeners of this agent once the lock is released.
+     */
+    @Override
+    public boolean transfer(WealthHolder recipient, Currency currency, double amount) {
+        if (!(recipient instanceof Agent) || amount < 0) {
+            return WealthHolder.super.transfer(recipient, currency, amount);
+        }
+
+        Agent other = (Agent) recipient;
+        ReentrantLock first = TRANSFER_LOCKS[Math.min(transferStripe, other.transferStripe)];
+        ReentrantLock second = TRANSFER_LOCKS[Math.max(transferStripe, other.transferStripe)];
+        first.lock();
+        second.lock();
+        try {
+            if (!subtractBalance(currency, amount)) {
+                return false;
+            }
+            other.addBalance(currency, amount);
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+        notifyWealthDecreased(currency);
+        return true;
     }
 
     @Override
     public boolean has(Currency currency, double amount) {
-        synchronized (wealth) {
-            Double current = wealth.get(currency);
-            return current != null && current >= amount;
+        return getBalance(currency) >= amount;
+    }
+
+    /**
+     * @return a number which changes whenever any balance changes, and only after the change is visible
+     */
+    protected long getVersion() {
+        return wealth.getVersion();
+    }
+
+    /**
+     * @return the amount of the given currency held, which is 0 if none has ever been given
+     */
+    protected double getBalance(Currency currency) {
+        return wealth.get(currency);
+    }
+
+    /**
+     * @return every currency held, or which has been held, mapped to the amount held
+     */
+    protected Map<Currency, Double> getBalances() {
+        return wealth.getAll();
+    }
+
+    /**
+     * Adds to the balance of a currency atomically, without taking any lock.
+     */
+    protected void addBalance(Currency currency, double amount) {
+        wealth.add(currency, amount);
+    }
+
+    /**
+     * Subtracts from the balance of a currency atomically if at least that much is held, without taking any lock.
+     *
+     * @return whether the amount was subtracted
+     */
+    protected boolean subtractBalance(Currency currency, double amount) {
+        return wealth.subtract(currency, amount);
+    }
+
+    /**
+     * @return the last snapshot of the wealth of this agent which was cached, or {@code null} if there is none
+     */
+    protected WealthSnapshot getCachedWealth() {
+        return wealth.snapshot;
+    }
+
+    /**
+     * Caches a snapshot of the wealth of this agent, to be returned again while its version is current.
+     */
+    protected void cacheWealth(WealthSnapshot snapshot) {
+        wealth.snapshot = snapshot;
+    }
+
+    /**
+     * @return the listeners to tell when the wealth of this agent goes down
+     */
+    protected WealthListener[] getWealthListeners() {
+        return wealth.getListeners();
+    }
+
+    private void notifyWealthDecreased(Currency currency) {
+        // listeners are told after the balance has changed, outside any lock
+        for (WealthListener listener : getWealthListeners()) {
+            listener.onWealthDecreased(this, currency);
         }
     }
 
@@ -0,0 +1,328 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the ids and balances of a large number of agents in chunked primitive columns, rather than in an object per
+ * agent. Agents in the store are used through {@link StoredAgent} handles, which hold only their index and id and can
+ * be dropped and fetched again at any time, so a stored agent costs the garbage collector a few array slots rather than
+ * a graph of objects.
+ * <p>
+ * Thread-safe.
+ */
+public final class AgentStore {
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle LISTENERS = MethodHandles.arrayElementVarHandle(WealthListener[][].class);
+    private static final VarHandle SNAPSHOTS = MethodHandles.arrayElementVarHandle(WealthSnapshot[].class);
+    // each chunk of a column holds the values of 4096 consecutive agents
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    /*
+     * The directories of chunks below are replaced, never modified, when they grow, so they can be read without a lock.
+     * Chunks themselves are only ever written through LONGS once they are published.
+     */
+    private volatile long[][] mostSignificantBits = new long[0][];
+    private volatile long[][] leastSignificantBits = new long[0][];
+    // bumped after every change to any balance of an agent
+    private volatile long[][] versions = new long[0][];
+    /**
+     * The balance of each agent in each currency as the raw bits of a double, indexed by currency id and then by chunk.
+     * A chunk is only allocated when an agent in it is first given the currency.
+     */
+    private volatile long[][][] balances = new long[0][][];
+    /**
+     * The wealth listeners of each agent, copied on write, in chunks which are only allocated when an agent in them
+     * first has a listener added. Written while holding the lock of the store.
+     */
+    private volatile WealthListener[][][] listeners = new WealthListener[0][][];
+    /**
+     * The last snapshot taken of the wealth of each agent, returned again while its version is current, in chunks which
+     * are only allocated when an agent in them is first read.
+     */
+    private volatile WealthSnapshot[][] snapshots = new WealthSnapshot[0][];
+    private volatile int size;
+
+    // open addressing table from id to index + 1, guarded by this
+    private int[] indices = new int[16];
+
+    /**
+     * Adds an agent to the store, holding nothing.
+     *
+     * @param uniqueId the id of the agent
+     * @return a handle to the new agent
+     * @throws IllegalArgumentException if an agent with the same id is already in the store
+     */
+    public synchronized StoredAgent add(UUID uniqueId) {
+        if (uniqueId == null) {
+            throw new IllegalArgumentException("Agent must have a player ID.");
+        }
+        if (find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits()) >= 0) {
+            throw new IllegalArgumentException("An agent with the same id is already in the store.");
+        }
+
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        if (chunk == mostSignificantBits.length) {
+            long[][] most = Arrays.copyOf(mostSignificantBits, chunk + 1);
+            long[][] least = Arrays.copyOf(leastSignificantBits, chunk + 1);
+            long[][] version = Arrays.copyOf(versions, chunk + 1);
+            most[chunk] = new long[1 << CHUNK_SHIFT];
+            least[chunk] = new long[1 << CHUNK_SHIFT];
+            version[chunk] = new long[1 << CHUNK_SHIFT];
+            mostSignificantBits = most;
+            leastSignificantBits = least;
+            versions = version;
+        }
+        mostSignificantBits[chunk][index & CHUNK_MASK] = uniqueId.getMostSignificantBits();
+        leastSignificantBits[chunk][index & CHUNK_MASK] = uniqueId.getLeastSignificantBits();
+
+        if ((index + 1) * 2 > indices.length) {
+            rehash(indices.length * 2);
+        }
+        insert(index);
+        // publishes the id written above
+        size = index + 1;
+        return new StoredAgent(this, index, uniqueId);
+    }
+
+    /**
+     * @return the number of agents in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index the index of the agent, less than {@link #size()}
+     * @return a new handle to the agent at the given index
+     */
+    public StoredAgent get(int index) {
+        return new StoredAgent(this, index, getUniqueId(index));
+    }
+
+    /**
+     * @param uniqueId the id of the agent
+     * @return a new handle to the agent with the given id, or {@code null} if it is not in the store
+     */
+    public synchronized StoredAgent get(UUID uniqueId) {
+        int index = find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        return index < 0 ? null : new StoredAgent(this, index, uniqueId);
+    }
+
+    public UUID getUniqueId(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("There is no agent at index " + index + ".");
+        }
+        return new UUID(mostSignificantBits[index >>> CHUNK_SHIFT][index & CHUNK_MASK],
+                leastSignificantBits[index >>> CHUNK_SHIFT][index & CHUNK_MASK]);
+    }
+
+    synchronized void addWealthListener(int index, WealthListener listener) {
+        int chunk = index >>> CHUNK_SHIFT;
+        WealthListener[][][] listeners = this.listeners;
+        if (chunk >= listeners.length || listeners[chunk] == null) {
+            listeners = Arrays.copyOf(listeners, Math.max(listeners.length, chunk + 1));
+            listeners[chunk] = new WealthListener[1 << CHUNK_SHIFT][];
+            this.listeners = listeners;
+        }
+        WealthListener[] current = getWealthListeners(index);
+        WealthListener[] added = Arrays.copyOf(current, current.length + 1);
+        added[added.length - 1] = listener;
+        LISTENERS.setVolatile(listeners[chunk], index & CHUNK_MASK, added);
+    }
+
+    synchronized void removeWealthListener(int index, WealthListener listener) {
+        WealthListener[] current = getWealthListeners(index);
+        WealthListener[] removed = AgentWealth.without(current, listener);
+        if (removed != current) {
+            LISTENERS.setVolatile(listeners[index >>> CHUNK_SHIFT], index & CHUNK_MASK, removed);
+        }
+    }
+
+    WealthListener[] getWealthListeners(int index) {
+        WealthListener[][][] listeners = this.listeners;
+        int chunk = index >>> CHUNK_SHIFT;
+        if (chunk >= listeners.length || listeners[chunk] == null) {
+            return AgentWealth.NO_LISTENERS;
+        }
+        WealthListener[] current = (WealthListener[]) LISTENERS.getVolatile(listeners[chunk], index & CHUNK_MASK);
+        return current == null ? AgentWealth.NO_LISTENERS : current;
+    }
+
+    WealthSnapshot getSnapshot(int index) {
+        WealthSnapshot[][] snapshots = this.snapshots;
+        int chunk = index >>> CHUNK_SHIFT;
+        if (chunk >= snapshots.length || snapshots[chunk] == null) {
+            return null;
+        }
+        return (WealthSnapshot) SNAPSHOTS.getVolatile(snapshots[chunk], index & CHUNK_MASK);
+    }
+
+    void setSnapshot(int index, WealthSnapshot snapshot) {
+        WealthSnapshot[][] snapshots = this.snapshots;
+        int chunk = index >>> CHUNK_SHIFT;
+        WealthSnapshot[] column = chunk < snapshots.length ? snapshots[chunk] : null;
+        if (column == null) {
+            column = createSnapshotChunk(chunk);
+        }
+        SNAPSHOTS.setVolatile(column, index & CHUNK_MASK, snapshot);
+    }
+
+    long getVersion(int index) {
+        return (long) LONGS.getVolatile(versions[index >>> CHUNK_SHIFT], index & CHUNK_MASK);
+    }
+
+    double getBalance(int index, Currency currency) {
+        long[] chunk = getChunk(currency.getId(), index >>> CHUNK_SHIFT, false);
+        return chunk == null ? 0 : Double.longBitsToDouble((long) LONGS.getVolatile(chunk, index & CHUNK_MASK));
+    }
+
+    Map<Currency, Double> getBalances(int index) {
+        Map<Currency, Double> wealth = new HashMap<>();
+        long[][][] balances = this.balances;
+        for (int currency = 0; currency < balances.length; currency++) {
+            long[] chunk = getChunk(currency, index >>> CHUNK_SHIFT, false);
+            if (chunk != null) {
+                long bits = (long) LONGS.getVolatile(chunk, index & CHUNK_MASK);
+                if (bits != 0) {
+                    wealth.put(Currency.getById(currency), Double.longBitsToDouble(bits));
+                }
+            }
+        }
+        return wealth;
+    }
+
+    void addBalance(int index, Currency currency, double amount) {
+        long[] chunk = getChunk(currency.getId(), index >>> CHUNK_SHIFT, true);
+        int offset = index & CHUNK_MASK;
+        long bits;
+        do {
+            bits = (long) LONGS.getVolatile(chunk, offset);
+        } while (!LONGS.compareAndSet(chunk, offset, bits,
+                Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + amount)));
+        LONGS.getAndAdd(versions[index >>> CHUNK_SHIFT], offset, 1L);
+    }
+
+    boolean subtractBalance(int index, Currency currency, double amount) {
+        long[] chunk = getChunk(currency.getId(), index >>> CHUNK_SHIFT, false);
+        if (chunk == null) {
+            return amount == 0;
+        }
+        int offset = index & CHUNK_MASK;
+        long bits;
+        double current;
+        do {
+            bits = (long) LONGS.getVolatile(chunk, offset);
+            current = Double.longBitsToDouble(bits);
+            if (current < amount) {
+                return false;
+            }
+        } while (!LONGS.compareAndSet(chunk, offset, bits, Double.doubleToRawLongBits(current - amount)));
+        LONGS.getAndAdd(versions[index >>> CHUNK_SHIFT], offset, 1L);
+        return true;
+    }
+
+    private long[] getChunk(int currency, int chunk, boolean create) {
+        long[][][] balances = this.balances;
+        if (currency < balances.length) {
+            long[][] column = balances[currency];
+            if (column != null && chunk < column.length && column[chunk] != null) {
+                return column[chunk];
+            }
+        }
+        return create ? createChunk(currency, chunk) : null;
+    }
+
+    private synchronized long[] createChunk(int currency, int chunk) {
+        long[][][] balances = this.balances;
+        if (currency >= balances.length) {
+            balances = Arrays.copyOf(balances, currency + 1);
+        } else {
+            balances = balances.clone();
+        }
+        long[][] column = balances[currency];
+        if (column == null) {
+            column = new long[0][];
+        }
+        if (chunk < column.length && column[chunk] != null) {
+            return column[chunk];
+        }
+
+        column = Arrays.copyOf(column, Math.max(column.length, chunk + 1));
+        column[chunk] = new long[1 << CHUNK_SHIFT];
+        balances[currency] = column;
+        this.balances = balances;
+        return column[chunk];
+    }
+
+    private synchronized WealthSnapshot[] createSnapshotChunk(int chunk) {
+        WealthSnapshot[][] snapshots = this.snapshots;
+        if (chunk < snapshots.length && snapshots[chunk] != null) {
+            return snapshots[chunk];
+        }
+
+        snapshots = Arrays.copyOf(snapshots, Math.max(snapshots.length, chunk + 1));
+        snapshots[chunk] = new WealthSnapshot[1 << CHUNK_SHIFT];
+        this.snapshots = snapshots;
+        return snapshots[chunk];
+    }
+
+    private int find(long most, long least) {
+        int mask = indices.length - 1;
+        for (int slot = hash(most, least) & mask; indices[slot] != 0; slot = (slot + 1) & mask) {
+            int index = indices[slot] - 1;
+            if (mostSignificantBits[index >>> CHUNK_SHIFT][index & CHUNK_MASK] == most
+                    && leastSignificantBits[index >>> CHUNK_SHIFT][index & CHUNK_MASK] == least) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int index) {
+        int mask = indices.length - 1;
+        int slot = hash(mostSignificantBits[index >>> CHUNK_SHIFT][index & CHUNK_MASK],
+                leastSignificantBits[index >>> CHUNK_SHIFT][index & CHUNK_MASK]) & mask;
+        while (indices[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        indices[slot] = index + 1;
+    }
+
+    private void rehash(int capacity) {
+        indices = new int[capacity];
+        for (int index = 0; index < size; index++) {
+            insert(index);
+        }
+    }
+
+    private static int hash(long most, long least) {
+        long bits = most ^ least;
+        return (int) (bits ^ (bits >>> 32)) * 0x9E3779B9;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The balances, version, last snapshot and wealth listeners of an {@link Agent} which keeps its wealth itself.
+ * <p>
+ * Thread-safe.
+ */
+final class AgentWealth {
+    static final WealthListener[] NO_LISTENERS = new WealthListener[0];
+    private static final AtomicLongArray[] NO_BALANCES = new AtomicLongArray[0];
+    // each chunk holds the balances of eight consecutive currency ids
+    private static final int CHUNK_SHIFT = 3;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final VarHandle VERSION;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(AgentWealth.class, "version", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The balance of each currency as the raw bits of a double, in chunks indexed by currency id. Missing chunks hold
+     * nothing. The directory is replaced, never modified, when it grows, so it can be read without a lock.
+     */
+    private volatile AtomicLongArray[] balances = NO_BALANCES;
+    // bumped after every change to a balance
+    private volatile long version;
+    // the last snapshot taken, returned again while the version it was taken at is current
+    volatile WealthSnapshot snapshot;
+    // copied on write, so notifying listeners does not need a lock
+    private volatile WealthListener[] listeners = NO_LISTENERS;
+
+    synchronized void addListener(WealthListener listener) {
+        WealthListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[added.length - 1] = listener;
+        listeners = added;
+    }
+
+    synchronized void removeListener(WealthListener listener) {
+        listeners = without(listeners, listener);
+    }
+
+    WealthListener[] getListeners() {
+        return listeners;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    double get(Currency currency) {
+        AtomicLongArray chunk = getChunk(currency, false);
+        return chunk == null ? 0 : Double.longBitsToDouble(chunk.get(currency.getId() & CHUNK_MASK));
+    }
+
+    Map<Currency, Double> getAll() {
+        Map<Currency, Double> wealth = new HashMap<>();
+        AtomicLongArray[] balances = this.balances;
+        for (int chunk = 0; chunk < balances.length; chunk++) {
+            if (balances[chunk] == null) {
+                continue;
+            }
+            for (int i = 0; i <= CHUNK_MASK; i++) {
+                long bits = balances[chunk].get(i);
+                if (bits != 0) {
+                    wealth.put(Currency.getById((chunk << CHUNK_SHIFT) | i), Double.longBitsToDouble(bits));
+                }
+            }
+        }
+        return wealth;
+    }
+
+    void set(Currency currency, double amount) {
+        getChunk(currency, true).set(currency.getId() & CHUNK_MASK, Double.doubleToRawLongBits(amount));
+        VERSION.getAndAdd(this, 1L);
+    }
+
+    void add(Currency currency, double amount) {
+        AtomicLongArray chunk = getChunk(currency, true);
+        int index = currency.getId() & CHUNK_MASK;
+        long bits;
+        do {
+            bits = chunk.get(index);
+        } while (!chunk.compareAndSet(index, bits, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + amount)));
+        VERSION.getAndAdd(this, 1L);
+    }
+
+    boolean subtract(Currency currency, double amount) {
+        AtomicLongArray chunk = getChunk(currency, false);
+        if (chunk == null) {
+            return amount == 0;
+        }
+        int index = currency.getId() & CHUNK_MASK;
+        long bits;
+        double current;
+        do {
+            bits = chunk.get(index);
+            current = Double.longBitsToDouble(bits);
+            if (current < amount) {
+                return false;
+            }
+        } while (!chunk.compareAndSet(index, bits, Double.doubleToRawLongBits(current - amount)));
+        VERSION.getAndAdd(this, 1L);
+        return true;
+    }
+
+    /**
+     * @return a copy of the given listeners without the first occurrence of the given one, or the same array if it does
+     *         not contain it
+     */
+    static WealthListener[] without(WealthListener[] listeners, WealthListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                WealthListener[] removed = new WealthListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+                return removed;
+            }
+        }
+        return listeners;
+    }
+
+    /**
+     * @param currency the currency to find the balance chunk of
+     * @param create whether to allocate the chunk if it does not exist yet
+     * @return the chunk holding the balance of the given currency, or null if it does not exist and was not created
+     */
+    private AtomicLongArray getChunk(Currency currency, boolean create) {
+        int chunk = currency.getId() >>> CHUNK_SHIFT;
+        AtomicLongArray[] balances = this.balances;
+        if (chunk < balances.length && balances[chunk] != null) {
+            return balances[chunk];
+        }
+        return create ? createChunk(chunk) : null;
+    }
+
+    private synchronized AtomicLongArray createChunk(int chunk) {
+        AtomicLongArray[] balances = this.balances;
+        if (chunk < balances.length && balances[chunk] != null) {
+            return balances[chunk];
+        }
+
+        balances = Arrays.copyOf(balances, Math.max(balances.length, chunk + 1));
+        balances[chunk] = new AtomicLongArray(1 << CHUNK_SHIFT);
+        this.balances = balances;
+        return balances[chunk];
+    }
+}
@@ -21,11 +21,23 @@ package jmarket;
 
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Represents a currency which can be used to purchase things in a market.
+ * <p>
+ * Every currency is registered by name when it is created and given a small, dense id. Currencies with the same name
+ * share an id and are equal, and must have the same number of significant decimals. Registered currencies are never
+ * released.
  */
 public final class Currency {
+    // guarded by the class lock, except that the array is replaced rather than modified so it can be read without it
+    private static final Map<String, Integer> idsByName = new HashMap<>();
+    private static volatile Currency[] registered = new Currency[0];
+
+    private final int id;
     private final String name;
     private final String plural;
     /**
@@ -33,21 +45,88 @@ public final class Currency {
      * would be two as calculations do not go beyond pennies or cents.
      */
     private final int significantDecimals;
+    /**
+     * The number of ticks in one unit of this currency, where a tick is the smallest significant amount.
+     */
+    private final long ticksPerUnit;
     private final DecimalFormat significanceFormat;
     private final String format;
 
+    /**
+     * @throws IllegalArgumentException if a currency with the same name but a different number of significant decimals
+     *         has already been registered
+     */
     public Currency(String name, String plural, int significantDecimals, String format) {
         this.name = name;
         this.plural = plural;
         this.significantDecimals = significantDecimals;
         this.format = format;
 
+        long ticksPerUnit = 1;
+        for (int i = 0; i < significantDecimals; i++) {
+            ticksPerUnit *= 10;
+        }
+        this.ticksPerUnit = ticksPerUnit;
+
         StringBuilder decimalFormatBuilder = new StringBuilder("#.");
         for (int i = 0; i < significantDecimals; i++) {
             decimalFormatBuilder.append("#");
         }
         significanceFormat = new DecimalFormat(decimalFormatBuilder.toString());
         significanceFormat.setRoundingMode(RoundingMode.HALF_UP);
+
+        this.id = register(this);
+    }
+
+    private static synchronized int register(Currency currency) {
+        Integer id = idsByName.get(currency.name);
+        if (id != null) {
+            if (registered[id].significantDecimals != currency.significantDecimals) {
+                throw new IllegalArgumentException("Currency " + currency.name + " is already registered with "
+                        + registered[id].significantDecimals + " significant decimals.");
+            }
+            return id;
+        }
+
+        id = registered.length;
+        Currency[] currencies = Arrays.copyOf(registered, id + 1);
+        currencies[id] = currency;
+        registered = currencies;
+        idsByName.put(currency.name, id);
+        return id;
+    }
+
+    /**
+     * @param id the id of a currency, as returned by {@link #getId()}
+     * @return the first currency registered with the given id
+     * @throws IllegalArgumentException if no currency has the given id
+     */
+    public static Currency getById(int id) {
+        Currency[] currencies = registered;
+        if (id < 0 || id >= currencies.length) {
+            throw new IllegalArgumentException("No currency is registered with id " + id + ".");
+        }
+        return currencies[id];
+    }
+
+    /**
+     * @param name the name of a currency
+     * @return the first currency registered with the given name, or {@code null} if there is none
+     */
+    public static synchronized Currency getByName(String name) {
+        Integer id = idsByName.get(name);
+        return id == null ? null : registered[id];
+    }
+
+    /**
+     * @return the number of currency ids given out so far, which is one more than the highest id
+     */
+    public static int getRegisteredCount() {
+        return registered.length;
+    }
+
+    public int getId() {
+        return id;
     }
 
     public String getName() {
@@ -62,11 +141,56 @@ public final class Currency {
         return significantDecimals;
     }
 
+    public long getTicksPerUnit() {
+        return ticksPerUnit;
+    }
+
+    /**
+     * Converts an amount to a whole number of ticks, its smallest significant amount, rounding half up.
+     *
+     * @param amount the amount to convert
+     * @return the number of ticks in the amount
+     */
+    public long toTicks(double amount) {
+        return Math.round(amount * ticksPerUnit);
+    }
+
+    /**
+     * Converts a number of ticks, as returned by {@link #toTicks(double)}, back to an amount of this currency.
+     *
+     * @param ticks the number of ticks to convert
+     * @return the amount the ticks represent
+     */
+    public double fromTicks(long ticks) {
+        return (double) ticks / ticksPerUnit;
+    }
+
     public double getSignificantComponent(double initial) {
-        return Double.parseDouble(significanceFormat.format(initial));
+        return fromTicks(toTicks(initial));
     }
 
     public String format(double amount) {
-        return this.format.replace("%d", significanceFormat.format(amount));
+        String formatted;
+        // DecimalFormat is not thread-safe
+        synchronized (significanceFormat) {
+            formatted = significanceFormat.format(amount);
+        }
+        return this.format.replace("%d", formatted);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Currency)) {
+            return false;
+        }
+        return id == ((Currency) o).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
     }
 }
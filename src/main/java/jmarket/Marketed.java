@@ -28,4 +28,15 @@ public interface Marketed<T extends Marketed> {
     MarketedType getType();
 
     MarketedTransfer<T> getTransfer(Agent sender, Agent recipient, double quantity);
+
+    /**
+     * Moves a quantity of this from one agent to another straight away. By default this executes a transfer from
+     * {@link #getTransfer(Agent, Agent, double)}, and implementations which can move it without creating one should
+     * override this.
+     *
+     * @return the result of the move
+     */
+    default MarketedTransferResult transfer(Agent sender, Agent recipient, double quantity) {
+        return getTransfer(sender, recipient, quantity).execute();
+    }
 }
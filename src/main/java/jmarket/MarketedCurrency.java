@@ -47,4 +47,10 @@ public class MarketedCurrency implements Marketed<MarketedCurrency> {
     public MarketedTransfer<MarketedCurrency> getTransfer(Agent sender, Agent recipient, double quantity) {
         return new MarketedCurrencyTransfer(sender, recipient, this, quantity);
     }
+
+    @Override
+    public MarketedTransferResult transfer(Agent sender, Agent recipient, double quantity) {
+        return sender.transfer(recipient, currency, quantity) ? MarketedTransferResult.SUCCESS
+                : MarketedTransferResult.SENDER_NOT_ENOUGH;
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+/**
+ * A movement of a marketed thing which was settled some other way than by executing it, kept as the marketed component
+ * of a {@link Transaction#record(MarketedTransfer, WealthTransfer, TransactionResult) recorded} transaction. It is
+ * in the state it was settled with, and cannot be executed itself.
+ */
+final class RecordedMarketedTransfer<T extends Marketed<T>> extends MarketedTransfer<T> {
+    private final MarketedTransferResult state;
+
+    RecordedMarketedTransfer(MarketedTransfer<T> transfer, MarketedTransferResult state) {
+        super(transfer.getSender(), transfer.getRecipient(), transfer.getMarketed(), transfer.getQuantity());
+        this.state = state;
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return state == MarketedTransferResult.SUCCESS;
+    }
+
+    @Override
+    public MarketedTransferResult execute() {
+        return getPredictedResult();
+    }
+
+    @Override
+    public MarketedTransferResult getPredictedResult() {
+        return isExecuted() ? MarketedTransferResult.ALREADY_EXECUTED : MarketedTransferResult.ERROR;
+    }
+
+    @Override
+    public MarketedTransferResult getState() {
+        return state;
+    }
+}
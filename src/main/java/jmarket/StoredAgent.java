@@ -0,0 +1,97 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A handle to an agent kept in an {@link AgentStore}, holding nothing but its id, store and index. Any number of
+ * handles may exist for the same agent, and all of them see the same balances, version, wealth listeners and cached
+ * snapshot of its wealth.
+ */
+public final class StoredAgent extends Agent {
+    private final AgentStore store;
+    private final int index;
+
+    StoredAgent(AgentStore store, int index, UUID uniqueId) {
+        super(uniqueId);
+        this.store = store;
+        this.index = index;
+    }
+
+    public AgentStore getStore() {
+        return store;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public void addWealthListener(WealthListener listener) {
+        store.addWealthListener(index, listener);
+    }
+
+    @Override
+    public void removeWealthListener(WealthListener listener) {
+        store.removeWealthListener(index, listener);
+    }
+
+    @Override
+    protected WealthListener[] getWealthListeners() {
+        return store.getWealthListeners(index);
+    }
+
+    @Override
+    protected long getVersion() {
+        return store.getVersion(index);
+    }
+
+    @Override
+    protected WealthSnapshot getCachedWealth() {
+        return store.getSnapshot(index);
+    }
+
+    @Override
+    protected void cacheWealth(WealthSnapshot snapshot) {
+        store.setSnapshot(index, snapshot);
+    }
+
+    @Override
+    protected double getBalance(Currency currency) {
+        return store.getBalance(index, currency);
+    }
+
+    @Override
+    protected Map<Currency, Double> getBalances() {
+        return store.getBalances(index);
+    }
+
+    @Override
+    protected void addBalance(Currency currency, double amount) {
+        store.addBalance(index, currency, amount);
+    }
+
+    @Override
+    protected boolean subtractBalance(Currency currency, double amount) {
+        return store.subtractBalance(index, currency, amount);
+    }
+}
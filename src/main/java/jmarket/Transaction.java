@@ -31,6 +31,58 @@ public final class Transaction<T extends Marketed> implements Transfer<Transacti
         this.wealthComponent = wealthComponent;
     }
 
+    /**
+     * Creates a record of a transaction which was settled some other way than by executing its components, for instance
+     * by a market moving wealth directly or in a netted batch. The record holds copies of the components in the states
+     * the result leaves them in, which cannot be executed themselves.
+     *
+     * @param marketedComponent the movement of the marketed thing the transaction stands for, which is not executed
+     * @param wealthComponent the movement of wealth the transaction stands for, which is not executed
+     * @param result the result of settling the transaction
+     * @return a transaction in the given state, which is executed along with its components if it succeeded
+     */
+    public static <T extends Marketed<T>> Transaction<T> record(MarketedTransfer<T> marketedComponent,
+            WealthTransfer wealthComponent, TransactionResult result) {
+        MarketedTransferResult marketedState;
+        WealthTransferResult wealthState;
+        switch (result) {
+            case SUCCESS:
+                marketedState = MarketedTransferResult.SUCCESS;
+                wealthState = WealthTransferResult.SUCCESS;
+                break;
+            case MARKETED_SENDER_NOT_ENOUGH:
+                marketedState = MarketedTransferResult.SENDER_NOT_ENOUGH;
+                wealthState = WealthTransferResult.NOT_EXECUTED;
+                break;
+            case MARKETED_RECIPIENT_CANNOT_RECEIVE:
+                marketedState = MarketedTransferResult.RECIPIENT_CANNOT_RECEIVE;
+                wealthState = WealthTransferResult.NOT_EXECUTED;
+                break;
+            case MARKETED_ERROR:
+                marketedState = MarketedTransferResult.ERROR;
+                wealthState = WealthTransferResult.NOT_EXECUTED;
+                break;
+            case WEALTH_SENDER_TOO_POOR:
+                marketedState = MarketedTransferResult.NOT_EXECUTED;
+                wealthState = WealthTransferResult.SENDER_TOO_POOR;
+                break;
+            case WEALTH_ERROR:
+                marketedState = MarketedTransferResult.NOT_EXECUTED;
+                wealthState = WealthTransferResult.ERROR;
+                break;
+            default:
+                marketedState = MarketedTransferResult.NOT_EXECUTED;
+                wealthState = WealthTransferResult.NOT_EXECUTED;
+                break;
+        }
+
+        Transaction<T> transaction = new Transaction<>(new RecordedMarketedTransfer<>(marketedComponent, marketedState),
+                WealthTransfer.recorded(wealthComponent, wealthState));
+        transaction.executed = result == TransactionResult.SUCCESS;
+        transaction.executionResult = result;
+        return transaction;
+    }
+
     public MarketedTransfer<T> getMarketedComponent() {
         return marketedComponent;
     }
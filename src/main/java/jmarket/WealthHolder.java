@@ -30,4 +30,26 @@ public interface WealthHolder {
     boolean take(Currency currency, double amount);
 
     boolean has(Currency currency, double amount);
+
+    /**
+     * Moves an amount of a currency from this holder to another, if this holder has at least that much of it. The
+     * amount is checked and taken in one step, so concurrent transfers cannot overdraw this holder. By default it is
+     * then given in a second step, while {@link Agent} moves it between agents as one step. A negative amount is moved
+     * the other way.
+     *
+     * @param recipient the holder to give the amount to
+     * @param currency the currency to move
+     * @param amount the amount to move
+     * @return whether the amount was moved, which is false only if the holder it was moved from did not have enough
+     */
+    default boolean transfer(WealthHolder recipient, Currency currency, double amount) {
+        if (amount < 0) {
+            return recipient.transfer(this, currency, -amount);
+        }
+        if (!take(currency, amount)) {
+            return false;
+        }
+        recipient.give(currency, amount);
+        return true;
+    }
 }
@@ -0,0 +1,35 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+/**
+ * Listens for changes to the wealth of an {@link Agent}.
+ */
+@FunctionalInterface
+public interface WealthListener {
+    /**
+     * Called after the amount of a currency held by an agent goes down, on the thread which took it. Implementations
+     * should return quickly and must not take any lock which could be held while taking wealth from an agent.
+     *
+     * @param agent the agent whose wealth went down
+     * @param currency the currency which went down
+     */
+    void onWealthDecreased(Agent agent, Currency currency);
+}
@@ -22,21 +22,55 @@ package jmarket;
 import gnu.trove.map.TObjectDoubleMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
+/**
+ * An immutable record of the wealth of a holder at one point in time. Snapshots may be shared, and a holder may return
+ * the same snapshot for as long as its wealth does not change.
+ */
 public final class WealthSnapshot {
     private final TObjectDoubleMap<Currency> currenciesHeld;
+    /**
+     * The version of the holder's wealth this is a snapshot of, if the holder versions its wealth.
+     */
+    private final long version;
+    // built the first time it is asked for, which is safe to race as the result is always the same
+    private volatile Set<Currency> heldCurrencies;
 
     public WealthSnapshot(Map<Currency, Double> currenciesHeld) {
+        this(currenciesHeld, 0);
+    }
+
+    WealthSnapshot(Map<Currency, Double> currenciesHeld, long version) {
         this.currenciesHeld = new TObjectDoubleHashMap<>(currenciesHeld.size());
         currenciesHeld.forEach(this.currenciesHeld::put);
+        this.version = version;
+    }
+
+    long getVersion() {
+        return version;
     }
 
+    /**
+     * @return an unmodifiable set of the currencies of which more than nothing is held
+     */
     public Set<Currency> getHeldCurrencies() {
-        return currenciesHeld.keySet().stream().filter(currency -> currenciesHeld.get(currency) > 0.0)
-                .collect(Collectors.toSet());
+        Set<Currency> heldCurrencies = this.heldCurrencies;
+        if (heldCurrencies == null) {
+            Set<Currency> held = new HashSet<>();
+            currenciesHeld.forEachEntry((currency, amount) -> {
+                if (amount > 0.0) {
+                    held.add(currency);
+                }
+                return true;
+            });
+            heldCurrencies = Collections.unmodifiableSet(held);
+            this.heldCurrencies = heldCurrencies;
+        }
+        return heldCurrencies;
     }
 
     public double getAmount(Currency currency) {
@@ -35,6 +35,17 @@ public final class WealthTransfer implements Transfer<WealthTransferResult> {
         this.amount = amount;
     }
 
+    /**
+     * Copies a transfer which was settled some other way than by executing it, in the state it was settled with.
+     */
+    static WealthTransfer recorded(WealthTransfer transfer, WealthTransferResult state) {
+        WealthTransfer recorded = new WealthTransfer(transfer.sender, transfer.recipient, transfer.transactionCurrency,
+                transfer.amount);
+        recorded.executed = state == WealthTransferResult.SUCCESS;
+        recorded.executionResult = state;
+        return recorded;
+    }
+
     public WealthHolder getSender() {
         return sender;
     }
@@ -61,19 +72,14 @@ public final class WealthTransfer implements Transfer<WealthTransferResult> {
         if (executed) {
             return WealthTransferResult.ALREADY_EXECUTED;
         }
-        WealthSnapshot senderWealth = sender.getCurrentWealth();
-        if (senderWealth.getAmount(transactionCurrency) < amount) {
+        // the balance is checked and taken in one step, so it cannot change in between
+        if (!sender.transfer(recipient, transactionCurrency, amount)) {
             executionResult = WealthTransferResult.SENDER_TOO_POOR;
             return WealthTransferResult.SENDER_TOO_POOR;
         }
-        if (sender.take(transactionCurrency, amount)) {
-            recipient.give(transactionCurrency, amount);
-            executed = true;
-            executionResult = WealthTransferResult.SUCCESS;
-            return WealthTransferResult.SUCCESS;
-        }
-        executionResult = WealthTransferResult.ERROR;
-        return WealthTransferResult.ERROR;
+        executed = true;
+        executionResult = WealthTransferResult.SUCCESS;
+        return WealthTransferResult.SUCCESS;
     }
 
     @Override
@@ -81,8 +87,7 @@ public final class WealthTransfer implements Transfer<WealthTransferResult> {
         if (executed) {
             return WealthTransferResult.ALREADY_EXECUTED;
         }
-        WealthSnapshot senderWealth = sender.getCurrentWealth();
-        if (senderWealth.getAmount(transactionCurrency) < amount) {
+        if (!sender.has(transactionCurrency, amount)) {
             return WealthTransferResult.SENDER_TOO_POOR;
         }
         return WealthTransferResult.SUCCESS;
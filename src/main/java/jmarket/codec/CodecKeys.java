@@ -0,0 +1,149 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.Currency;
+import jmarket.Marketed;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Gives currencies and marketed things keys which are the same in every process, so they can be encoded as a long. A
+ * key is a 64-bit FNV-1a hash of the kind and name of what it stands for. Decoding a key needs its currency to be
+ * registered, or its marketed thing passed to {@link #register(Marketed)}.
+ * <p>
+ * Thread-safe.
+ */
+public final class CodecKeys {
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    // replaced rather than modified while holding the class lock, so they can be read without it
+    private static volatile TLongObjectMap<Currency> currencies = new TLongObjectHashMap<>();
+    private static volatile TLongObjectMap<Marketed<?>> marketeds = new TLongObjectHashMap<>();
+    // the key of each currency by id, for as many registered currencies as have been given keys so far
+    private static volatile long[] currencyKeys = new long[0];
+
+    private CodecKeys() {
+    }
+
+    /**
+     * @param currency the currency
+     * @return the key of the currency, from its name
+     */
+    public static long of(Currency currency) {
+        long[] keys = currencyKeys;
+        int id = currency.getId();
+        return id < keys.length ? keys[id] : keyCurrencies()[id];
+    }
+
+    /**
+     * @param marketed the marketed thing
+     * @return the key of the marketed thing, from its type and name
+     */
+    public static long of(Marketed<?> marketed) {
+        return hash(hash(FNV_OFFSET_BASIS, marketed.getType().name()), marketed.getName());
+    }
+
+    /**
+     * Makes a marketed thing known, so its key can be decoded in this process. Registering a marketed thing of the same
+     * type and name as one already known does nothing.
+     *
+     * @param marketed the marketed thing
+     * @return the key of the marketed thing
+     * @throws IllegalArgumentException if a different marketed thing already known has the same key
+     */
+    public static synchronized long register(Marketed<?> marketed) {
+        long key = of(marketed);
+        Marketed<?> known = marketeds.get(key);
+        if (known == null) {
+            TLongObjectMap<Marketed<?>> updated = new TLongObjectHashMap<>(marketeds);
+            updated.put(key, marketed);
+            marketeds = updated;
+        } else if (known.getType() != marketed.getType() || !known.getName().equals(marketed.getName())) {
+            throw new IllegalArgumentException("Marketed things " + known.getName() + " and " + marketed.getName()
+                    + " have the same key.");
+        }
+        return key;
+    }
+
+    /**
+     * @param key a key as returned by {@link #of(Currency)}
+     * @return the registered currency with the given key, or {@code null} if there is none
+     */
+    public static Currency getCurrency(long key) {
+        Currency currency = currencies.get(key);
+        if (currency == null && currencyKeys.length < Currency.getRegisteredCount()) {
+            keyCurrencies();
+            currency = currencies.get(key);
+        }
+        return currency;
+    }
+
+    /**
+     * @param key a key as returned by {@link #of(Marketed)}
+     * @return the first marketed thing registered with the given key, or {@code null} if there is none
+     */
+    public static Marketed<?> getMarketed(long key) {
+        return marketeds.get(key);
+    }
+
+    /**
+     * Gives keys to the currencies registered since last time.
+     *
+     * @return the key of every currency registered so far, by id
+     */
+    private static synchronized long[] keyCurrencies() {
+        int seen = currencyKeys.length;
+        int count = Currency.getRegisteredCount();
+        if (seen == count) {
+            return currencyKeys;
+        }
+
+        long[] keys = Arrays.copyOf(currencyKeys, count);
+        TLongObjectMap<Currency> keyed = new TLongObjectHashMap<>(currencies);
+        for (int id = seen; id < count; id++) {
+            Currency registered = Currency.getById(id);
+            keys[id] = hash(hash(FNV_OFFSET_BASIS, "currency"), registered.getName());
+            Currency previous = keyed.put(keys[id], registered);
+            if (previous != null) {
+                throw new IllegalStateException("Currencies " + previous.getName() + " and " + registered.getName()
+                        + " have the same key.");
+            }
+        }
+        // the map first, so any key handed out can be decoded
+        currencies = keyed;
+        currencyKeys = keys;
+        return keys;
+    }
+
+    private static long hash(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // a separator, so the kind and name cannot run into each other
+        return (hash ^ 0xFF) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.Currency;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Decodes a bid or offer encoded by {@link MarketEntryEncoder} in place, reading each field from the buffer only when
+ * it is asked for. The same decoder is wrapped around each message read, and nothing is allocated except by the getters
+ * which return a {@link UUID}, which have allocation-free equivalents.
+ * <p>
+ * Not thread-safe.
+ */
+public final class MarketEntryDecoder {
+    private ByteBuffer buffer;
+    private int offset;
+    private int block;
+    private boolean bid;
+
+    /**
+     * @param buffer the little-endian buffer holding the message
+     * @param offset the offset of the message in the buffer
+     * @return this decoder
+     * @throws IllegalArgumentException if the message is not an encoded bid or offer
+     */
+    public MarketEntryDecoder wrap(ByteBuffer buffer, int offset) {
+        int templateId = MessageHeader.check(buffer, offset, MessageHeader.MARKET_BID, MessageHeader.MARKET_OFFER,
+                MarketEntryEncoder.BLOCK_LENGTH);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.block = offset + MessageHeader.LENGTH;
+        this.bid = templateId == MessageHeader.MARKET_BID;
+        return this;
+    }
+
+    /**
+     * @return whether the entry is a bid rather than an offer
+     */
+    public boolean isBid() {
+        return bid;
+    }
+
+    public int getVersion() {
+        return MessageHeader.getVersion(buffer, offset);
+    }
+
+    /**
+     * @return the length of the whole message, including the header and any fields of newer versions
+     */
+    public int getEncodedLength() {
+        return MessageHeader.LENGTH + MessageHeader.getBlockLength(buffer, offset);
+    }
+
+    public long getEntryIdMostSignificantBits() {
+        return buffer.getLong(block + MarketEntryEncoder.ENTRY_ID);
+    }
+
+    public long getEntryIdLeastSignificantBits() {
+        return buffer.getLong(block + MarketEntryEncoder.ENTRY_ID + 8);
+    }
+
+    public UUID getEntryId() {
+        return new UUID(getEntryIdMostSignificantBits(), getEntryIdLeastSignificantBits());
+    }
+
+    public long getAgentIdMostSignificantBits() {
+        return buffer.getLong(block + MarketEntryEncoder.AGENT_ID);
+    }
+
+    public long getAgentIdLeastSignificantBits() {
+        return buffer.getLong(block + MarketEntryEncoder.AGENT_ID + 8);
+    }
+
+    public UUID getAgentId() {
+        return new UUID(getAgentIdMostSignificantBits(), getAgentIdLeastSignificantBits());
+    }
+
+    public long getInitialQuantityTicks() {
+        return buffer.getLong(block + MarketEntryEncoder.INITIAL_QUANTITY);
+    }
+
+    /**
+     * @return the quantity of the entry which had not been filled when it was encoded, in ticks
+     */
+    public long getQuantityTicks() {
+        return buffer.getLong(block + MarketEntryEncoder.QUANTITY);
+    }
+
+    public long getUnitPriceTicks() {
+        return buffer.getLong(block + MarketEntryEncoder.UNIT_PRICE);
+    }
+
+    /**
+     * @return the submission time of the entry, in milliseconds since the epoch
+     */
+    public long getSubmissionTime() {
+        return buffer.getLong(block + MarketEntryEncoder.SUBMISSION_TIME);
+    }
+
+    /**
+     * @return the sequence of the entry in its market, or 0 if it had not been added to one
+     */
+    public long getSequence() {
+        return buffer.getLong(block + MarketEntryEncoder.SEQUENCE);
+    }
+
+    public long getCurrencyKey() {
+        return buffer.getLong(block + MarketEntryEncoder.CURRENCY);
+    }
+
+    /**
+     * @return the registered currency with the key of the currency of the entry, or {@code null} if there is none
+     * @see CodecKeys#getCurrency(long)
+     */
+    public Currency getCurrency() {
+        return CodecKeys.getCurrency(getCurrencyKey());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.market.MarketBid;
+import jmarket.market.MarketEntry;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Encodes a {@link MarketBid} or {@link jmarket.market.MarketOffer} into a buffer with a fixed layout, after a
+ * {@link MessageHeader}. The same encoder is wrapped around each place a message is written, and encoding allocates
+ * nothing.
+ * <p>
+ * The block of version 1 holds, at these offsets: the unique id of the entry (0) and of its agent (16), each as its
+ * most then least significant bits; the initial quantity (32), unfilled quantity (40) and unit price (48), all in
+ * ticks; the submission time in milliseconds since the epoch (56); the sequence of the entry in its market (64); and
+ * the key of its currency from {@link CodecKeys} (72).
+ * <p>
+ * Not thread-safe.
+ */
+public final class MarketEntryEncoder {
+    public static final int VERSION = 1;
+    public static final int BLOCK_LENGTH = 80;
+    public static final int ENCODED_LENGTH = MessageHeader.LENGTH + BLOCK_LENGTH;
+
+    static final int ENTRY_ID = 0;
+    static final int AGENT_ID = 16;
+    static final int INITIAL_QUANTITY = 32;
+    static final int QUANTITY = 40;
+    static final int UNIT_PRICE = 48;
+    static final int SUBMISSION_TIME = 56;
+    static final int SEQUENCE = 64;
+    static final int CURRENCY = 72;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * @param buffer the little-endian buffer to encode into
+     * @param offset the offset in the buffer to encode the next message at
+     * @return this encoder
+     */
+    public MarketEntryEncoder wrap(ByteBuffer buffer, int offset) {
+        MessageHeader.checkOrder(buffer);
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Encodes an entry at the offset this encoder is wrapped at.
+     *
+     * @param entry the entry to encode
+     * @return the number of bytes written, which is always {@link #ENCODED_LENGTH}
+     */
+    public int encode(MarketEntry entry) {
+        int type = entry instanceof MarketBid ? MessageHeader.MARKET_BID : MessageHeader.MARKET_OFFER;
+        MessageHeader.write(buffer, offset, type, VERSION, BLOCK_LENGTH);
+        int at = offset + MessageHeader.LENGTH;
+        putUuid(at + ENTRY_ID, entry.getUniqueId());
+        putUuid(at + AGENT_ID, entry.getAgent().getUniqueId());
+        buffer.putLong(at + INITIAL_QUANTITY, entry.getInitialQuantityTicks());
+        buffer.putLong(at + QUANTITY, entry.getQuantityTicks());
+        buffer.putLong(at + UNIT_PRICE, entry.getUnitPriceTicks());
+        buffer.putLong(at + SUBMISSION_TIME, entry.getSubmissionTimeMillis());
+        buffer.putLong(at + SEQUENCE, entry.getSequence());
+        buffer.putLong(at + CURRENCY, CodecKeys.of(entry.getCurrency()));
+        return ENCODED_LENGTH;
+    }
+
+    private void putUuid(int at, UUID uuid) {
+        buffer.putLong(at, uuid.getMostSignificantBits());
+        buffer.putLong(at + 8, uuid.getLeastSignificantBits());
+    }
+}
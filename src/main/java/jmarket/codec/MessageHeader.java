@@ -0,0 +1,98 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The header every encoded message starts with: the id of its template as an unsigned short, the version of the
+ * template it was encoded with as an unsigned short, and the length of the block of fields after the header as an int.
+ * <p>
+ * Fields are only ever added to the end of a block by later versions of a template, so a decoder reads the fields it
+ * knows of from a message of a newer version and uses the block length to skip the rest. Everything is little-endian.
+ */
+public final class MessageHeader {
+    public static final int LENGTH = 8;
+
+    public static final int MARKET_BID = 1;
+    public static final int MARKET_OFFER = 2;
+    public static final int TRANSACTION = 3;
+
+    private MessageHeader() {
+    }
+
+    /**
+     * @param buffer the buffer holding the message
+     * @param offset the offset of the message in the buffer
+     * @return the id of the template of the message
+     */
+    public static int getTemplateId(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    /**
+     * @param buffer the buffer holding the message
+     * @param offset the offset of the message in the buffer
+     * @return the version of the template the message was encoded with
+     */
+    public static int getVersion(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + 2) & 0xFFFF;
+    }
+
+    /**
+     * @param buffer the buffer holding the message
+     * @param offset the offset of the message in the buffer
+     * @return the length of the block of fields after the header
+     */
+    public static int getBlockLength(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + 4);
+    }
+
+    static void write(ByteBuffer buffer, int offset, int templateId, int version, int blockLength) {
+        buffer.putShort(offset, (short) templateId);
+        buffer.putShort(offset + 2, (short) version);
+        buffer.putInt(offset + 4, blockLength);
+    }
+
+    static void checkOrder(ByteBuffer buffer) {
+        if (buffer.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Messages can only be encoded in or decoded from little-endian "
+                    + "buffers.");
+        }
+    }
+
+    /**
+     * Checks that a message is of one of the given templates and has at least the block of the first version.
+     *
+     * @return the template id of the message
+     */
+    static int check(ByteBuffer buffer, int offset, int firstTemplateId, int lastTemplateId, int minBlockLength) {
+        checkOrder(buffer);
+        int templateId = getTemplateId(buffer, offset);
+        if (templateId < firstTemplateId || templateId > lastTemplateId) {
+            throw new IllegalArgumentException("Message has unexpected template id " + templateId + ".");
+        }
+        if (getBlockLength(buffer, offset) < minBlockLength) {
+            throw new IllegalArgumentException("Message block is too short for any version of its template.");
+        }
+        return templateId;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.Currency;
+import jmarket.Marketed;
+import jmarket.TransactionResult;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Decodes a transaction encoded by {@link TransactionEncoder} in place, reading each field from the buffer only when it
+ * is asked for. The same decoder is wrapped around each message read, and nothing is allocated except by the getters
+ * which return a {@link UUID}, which have allocation-free equivalents.
+ * <p>
+ * Not thread-safe.
+ */
+public final class TransactionDecoder {
+    // results are written by their position, so new results must only ever be added to the end of the enum
+    private static final TransactionResult[] RESULTS = TransactionResult.values();
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int block;
+
+    /**
+     * @param buffer the little-endian buffer holding the message
+     * @param offset the offset of the message in the buffer
+     * @return this decoder
+     * @throws IllegalArgumentException if the message is not an encoded transaction
+     */
+    public TransactionDecoder wrap(ByteBuffer buffer, int offset) {
+        MessageHeader.check(buffer, offset, MessageHeader.TRANSACTION, MessageHeader.TRANSACTION,
+                TransactionEncoder.BLOCK_LENGTH);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.block = offset + MessageHeader.LENGTH;
+        return this;
+    }
+
+    public int getVersion() {
+        return MessageHeader.getVersion(buffer, offset);
+    }
+
+    /**
+     * @return the length of the whole message, including the header and any fields of newer versions
+     */
+    public int getEncodedLength() {
+        return MessageHeader.LENGTH + MessageHeader.getBlockLength(buffer, offset);
+    }
+
+    public long getMarketedSenderMostSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.MARKETED_SENDER);
+    }
+
+    public long getMarketedSenderLeastSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.MARKETED_SENDER + 8);
+    }
+
+    /**
+     * @return the unique id of the agent the marketed thing was moved from, or {@code null} if it was not an agent
+     */
+    public UUID getMarketedSenderId() {
+        return getUuid(TransactionEncoder.MARKETED_SENDER);
+    }
+
+    public long getMarketedRecipientMostSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.MARKETED_RECIPIENT);
+    }
+
+    public long getMarketedRecipientLeastSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.MARKETED_RECIPIENT + 8);
+    }
+
+    /**
+     * @return the unique id of the agent the marketed thing was moved to, or {@code null} if it was not an agent
+     */
+    public UUID getMarketedRecipientId() {
+        return getUuid(TransactionEncoder.MARKETED_RECIPIENT);
+    }
+
+    public long getWealthSenderMostSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.WEALTH_SENDER);
+    }
+
+    public long getWealthSenderLeastSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.WEALTH_SENDER + 8);
+    }
+
+    /**
+     * @return the unique id of the holder the wealth was moved from, or {@code null} if it was not an agent
+     */
+    public UUID getWealthSenderId() {
+        return getUuid(TransactionEncoder.WEALTH_SENDER);
+    }
+
+    public long getWealthRecipientMostSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.WEALTH_RECIPIENT);
+    }
+
+    public long getWealthRecipientLeastSignificantBits() {
+        return buffer.getLong(block + TransactionEncoder.WEALTH_RECIPIENT + 8);
+    }
+
+    /**
+     * @return the unique id of the holder the wealth was moved to, or {@code null} if it was not an agent
+     */
+    public UUID getWealthRecipientId() {
+        return getUuid(TransactionEncoder.WEALTH_RECIPIENT);
+    }
+
+    public double getQuantity() {
+        return buffer.getDouble(block + TransactionEncoder.QUANTITY);
+    }
+
+    public double getValue() {
+        return buffer.getDouble(block + TransactionEncoder.AMOUNT);
+    }
+
+    public long getMarketedKey() {
+        return buffer.getLong(block + TransactionEncoder.MARKETED);
+    }
+
+    /**
+     * @return the registered marketed thing with the key of the marketed thing of the transaction, or {@code null} if
+     *         there is none
+     * @see CodecKeys#getMarketed(long)
+     */
+    public Marketed<?> getMarketed() {
+        return CodecKeys.getMarketed(getMarketedKey());
+    }
+
+    public long getCurrencyKey() {
+        return buffer.getLong(block + TransactionEncoder.CURRENCY);
+    }
+
+    /**
+     * @return the registered currency with the key of the currency of the transaction, or {@code null} if there is none
+     * @see CodecKeys#getCurrency(long)
+     */
+    public Currency getCurrency() {
+        return CodecKeys.getCurrency(getCurrencyKey());
+    }
+
+    /**
+     * @return the result of the transaction, or {@code null} if it is one this version does not know of
+     */
+    public TransactionResult getState() {
+        int ordinal = buffer.get(block + TransactionEncoder.RESULT);
+        return ordinal >= 0 && ordinal < RESULTS.length ? RESULTS[ordinal] : null;
+    }
+
+    public boolean isExecuted() {
+        return buffer.get(block + TransactionEncoder.EXECUTED) != 0;
+    }
+
+    private UUID getUuid(int field) {
+        long most = buffer.getLong(block + field);
+        long least = buffer.getLong(block + field + 8);
+        return most == 0 && least == 0 ? null : new UUID(most, least);
+    }
+}
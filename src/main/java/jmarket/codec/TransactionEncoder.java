@@ -0,0 +1,151 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.Marketed;
+import jmarket.MarketedTransfer;
+import jmarket.Transaction;
+import jmarket.TransactionResult;
+import jmarket.WealthHolder;
+import jmarket.WealthTransfer;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Encodes a {@link Transaction} into a buffer with a fixed layout, after a {@link MessageHeader}. A trade reported to a
+ * {@link jmarket.market.TradeConsumer} can be encoded in the same layout without creating a transaction. The same
+ * encoder is wrapped around each place a message is written, and encoding allocates nothing.
+ * <p>
+ * The block of version 1 holds, at these offsets: the unique ids of the sender (0) and recipient (16) of the marketed
+ * thing and of the sender (32) and recipient (48) of the wealth, each as its most then least significant bits and as 0
+ * for a holder which is not an agent; the quantity of the marketed thing (64) and the amount of wealth (72); the keys
+ * of the marketed thing (80) and of the currency (88) from {@link CodecKeys}; the result by its position in
+ * {@link TransactionResult} (96); and whether the transaction was executed (97).
+ * <p>
+ * Not thread-safe.
+ */
+public final class TransactionEncoder {
+    public static final int VERSION = 1;
+    public static final int BLOCK_LENGTH = 104;
+    public static final int ENCODED_LENGTH = MessageHeader.LENGTH + BLOCK_LENGTH;
+
+    static final int MARKETED_SENDER = 0;
+    static final int MARKETED_RECIPIENT = 16;
+    static final int WEALTH_SENDER = 32;
+    static final int WEALTH_RECIPIENT = 48;
+    static final int QUANTITY = 64;
+    static final int AMOUNT = 72;
+    static final int MARKETED = 80;
+    static final int CURRENCY = 88;
+    static final int RESULT = 96;
+    static final int EXECUTED = 97;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * @param buffer the little-endian buffer to encode into
+     * @param offset the offset in the buffer to encode the next message at
+     * @return this encoder
+     */
+    public TransactionEncoder wrap(ByteBuffer buffer, int offset) {
+        MessageHeader.checkOrder(buffer);
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Encodes a transaction at the offset this encoder is wrapped at.
+     *
+     * @param transaction the transaction to encode
+     * @return the number of bytes written, which is always {@link #ENCODED_LENGTH}
+     */
+    public int encode(Transaction<?> transaction) {
+        MarketedTransfer<?> marketed = transaction.getMarketedComponent();
+        WealthTransfer wealth = transaction.getWealthComponent();
+        int at = begin();
+        putHolder(at + MARKETED_SENDER, marketed.getSender());
+        putHolder(at + MARKETED_RECIPIENT, marketed.getRecipient());
+        putHolder(at + WEALTH_SENDER, wealth.getSender());
+        putHolder(at + WEALTH_RECIPIENT, wealth.getRecipient());
+        buffer.putDouble(at + QUANTITY, marketed.getQuantity());
+        buffer.putDouble(at + AMOUNT, wealth.getAmount());
+        buffer.putLong(at + MARKETED, CodecKeys.of(marketed.getMarketed()));
+        buffer.putLong(at + CURRENCY, CodecKeys.of(wealth.getTransactionCurrency()));
+        putResult(at, transaction.getState(), transaction.isExecuted());
+        return ENCODED_LENGTH;
+    }
+
+    /**
+     * Encodes a trade in the layout of the transaction it stands for, as reported to a
+     * {@link jmarket.market.TradeConsumer}.
+     *
+     * @param marketed the marketed thing traded
+     * @param currency the transaction currency of the market
+     * @param buyer the agent of the bid
+     * @param seller the agent of the offer
+     * @param unitPriceTicks the unit price of the trade, in ticks
+     * @param quantityTicks the quantity of the trade, in ticks
+     * @param result the result of the trade
+     * @return the number of bytes written, which is always {@link #ENCODED_LENGTH}
+     */
+    public int encodeTrade(Marketed<?> marketed, Currency currency, Agent buyer, Agent seller, long unitPriceTicks,
+            long quantityTicks, TransactionResult result) {
+        double quantity = currency.fromTicks(quantityTicks);
+        int at = begin();
+        putHolder(at + MARKETED_SENDER, seller);
+        putHolder(at + MARKETED_RECIPIENT, buyer);
+        putHolder(at + WEALTH_SENDER, buyer);
+        putHolder(at + WEALTH_RECIPIENT, seller);
+        buffer.putDouble(at + QUANTITY, quantity);
+        buffer.putDouble(at + AMOUNT, quantity * currency.fromTicks(unitPriceTicks));
+        buffer.putLong(at + MARKETED, CodecKeys.of(marketed));
+        buffer.putLong(at + CURRENCY, CodecKeys.of(currency));
+        putResult(at, result, result == TransactionResult.SUCCESS);
+        return ENCODED_LENGTH;
+    }
+
+    private int begin() {
+        MessageHeader.write(buffer, offset, MessageHeader.TRANSACTION, VERSION, BLOCK_LENGTH);
+        return offset + MessageHeader.LENGTH;
+    }
+
+    private void putResult(int at, TransactionResult result, boolean executed) {
+        buffer.put(at + RESULT, (byte) result.ordinal());
+        buffer.put(at + EXECUTED, (byte) (executed ? 1 : 0));
+        buffer.putShort(at + EXECUTED + 1, (short) 0);
+        buffer.putInt(at + EXECUTED + 3, 0);
+    }
+
+    private void putHolder(int at, WealthHolder holder) {
+        if (holder instanceof Agent) {
+            UUID uuid = ((Agent) holder).getUniqueId();
+            buffer.putLong(at, uuid.getMostSignificantBits());
+            buffer.putLong(at + 8, uuid.getLeastSignificantBits());
+        } else {
+            buffer.putLong(at, 0);
+            buffer.putLong(at + 8, 0);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+/**
+ * Decides when a {@link Journal} forces what has been written to it onto storage. Records are written to a mapped file,
+ * so they survive the process dying as soon as they are appended, and forcing only guards against the machine itself
+ * going down.
+ */
+public final class FsyncPolicy {
+    /**
+     * Never forces, leaving the operating system to write pages back in its own time.
+     */
+    public static final FsyncPolicy NEVER = new FsyncPolicy(false, 0);
+    /**
+     * Forces everything appended whenever a batch is committed with {@link Journal#commit()}.
+     */
+    public static final FsyncPolicy PER_BATCH = new FsyncPolicy(true, 0);
+
+    private final boolean perBatch;
+    private final long intervalMillis;
+
+    private FsyncPolicy(boolean perBatch, long intervalMillis) {
+        this.perBatch = perBatch;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Forces everything appended from a background thread at a fixed interval, so that at most about that much is lost
+     * if the machine goes down, while committing a batch costs nothing.
+     *
+     * @param intervalMillis the time between forces, in milliseconds
+     * @return a policy forcing at the given interval
+     */
+    public static FsyncPolicy interval(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Fsync interval must be positive.");
+        }
+        return new FsyncPolicy(false, intervalMillis);
+    }
+
+    public boolean isPerBatch() {
+        return perBatch;
+    }
+
+    /**
+     * @return the time between forces in milliseconds, or 0 if the policy does not force at an interval
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.codec.CodecKeys;
+import jmarket.codec.MarketEntryEncoder;
+import jmarket.market.MarketBid;
+import jmarket.market.MarketEntry;
+import jmarket.market.MarketOffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * A write-ahead journal of what happens in markets, appended to a memory-mapped file in fixed-size regions. When
+ * records are forced onto storage is decided by the {@link FsyncPolicy}, and {@link #commit()} marks the end of a
+ * batch. The length of each record is written last, so a record torn by a crash reads as the end of the journal.
+ * Everything is little-endian.
+ * <p>
+ * Thread-safe.
+ */
+public final class Journal implements AutoCloseable {
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    static final int HEADER_LENGTH = 16;
+    // the type code of a record which only skips the rest of its region
+    static final int PADDING = 0;
+    // written in place of the id of an agent for wealth created or destroyed outside any market
+    static final UUID NO_AGENT = new UUID(0, 0);
+    // the length of each fill of a netted batch, after the id of the market and the number of fills
+    static final int NETTED_FILL_LENGTH = 48;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int regionSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final Thread forcer;
+
+    // guarded by this
+    private MappedByteBuffer region;
+    private int regionIndex;
+    private int position;
+    private long lastSequence;
+    private boolean dirty;
+    private boolean closed;
+    // every region appended to since they were last forced, including the current one
+    private final List<MappedByteBuffer> unforced = new ArrayList<>();
+    private final MarketEntryEncoder entryEncoder = new MarketEntryEncoder();
+
+    private Journal(Path path, FileChannel channel, int regionSize, FsyncPolicy fsyncPolicy) {
+        this.path = path;
+        this.channel = channel;
+        this.regionSize = regionSize;
+        this.fsyncPolicy = fsyncPolicy;
+
+        scanToEnd();
+
+        if (fsyncPolicy.getIntervalMillis() > 0) {
+            forcer = new Thread(this::forceAtInterval, "jmarket-journal-fsync");
+            forcer.setDaemon(true);
+            forcer.start();
+        } else {
+            forcer = null;
+        }
+    }
+
+    /**
+     * Opens a journal with the default region size, creating the file if it does not exist and otherwise continuing
+     * after the last complete record in it.
+     *
+     * @param path the file of the journal
+     * @param fsyncPolicy when to force records onto storage
+     * @return the opened journal
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static Journal open(Path path, FsyncPolicy fsyncPolicy) throws IOException {
+        return open(path, DEFAULT_REGION_SIZE, fsyncPolicy);
+    }
+
+    /**
+     * Opens a journal as {@link #open(Path, FsyncPolicy)} does.
+     *
+     * @param regionSize the number of bytes mapped at a time, which must be a multiple of eight and the same every time
+     *                   the journal is opened
+     */
+    public static Journal open(Path path, int regionSize, FsyncPolicy fsyncPolicy) throws IOException {
+        if (regionSize < 4096 || regionSize % 8 != 0) {
+            throw new IllegalArgumentException("Journal region size must be a multiple of 8 of at least 4096 bytes.");
+        }
+        if (fsyncPolicy == null) {
+            throw new IllegalArgumentException("Journal must have an fsync policy.");
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new Journal(path, channel, regionSize, fsyncPolicy);
+        } catch (UncheckedIOException e) {
+            channel.close();
+            throw e.getCause();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getRegionSize() {
+        return regionSize;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * @return the sequence number of the last record appended, or 0 if the journal is empty
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the offset in the file at which the next record will be appended, from which a {@link JournalReader} can
+     *         read every record appended after this call
+     */
+    public synchronized long getPosition() {
+        return (long) regionIndex * regionSize + position;
+    }
+
+    /**
+     * Appends a bid which was added to a market, after it was given its sequence in the market.
+     *
+     * @param marketId the id the application knows the market by
+     * @param bid the bid added
+     * @return the sequence number of the record
+     */
+    public long appendBid(int marketId, MarketBid bid) {
+        return appendEntry(JournalRecordType.ADD_BID, marketId, bid);
+    }
+
+    /**
+     * Appends an offer which was added to a market, after it was given its sequence in the market.
+     *
+     * @param marketId the id the application knows the market by
+     * @param offer the offer added
+     * @return the sequence number of the record
+     */
+    public long appendOffer(int marketId, MarketOffer offer) {
+        return appendEntry(JournalRecordType.ADD_OFFER, marketId, offer);
+    }
+
+    private synchronized long appendEntry(JournalRecordType type, int marketId, MarketEntry entry) {
+        // the entry itself is written in its own encoding, aligned after the id of the market
+        int body = 8 + MarketEntryEncoder.ENCODED_LENGTH;
+        int offset = begin(body);
+        int at = offset + HEADER_LENGTH;
+        region.putInt(at, marketId);
+        region.putInt(at + 4, 0);
+        entryEncoder.wrap(region, at + 8).encode(entry);
+        return finish(offset, type, body);
+    }
+
+    /**
+     * Appends the removal of a resting entry from a market without it being filled, whether it was cancelled or dropped
+     * by the market.
+     *
+     * @param marketId the id the application knows the market by
+     * @param uniqueId the unique id of the entry
+     * @return the sequence number of the record
+     */
+    public synchronized long appendCancel(int marketId, UUID uniqueId) {
+        int body = 20;
+        int offset = begin(body);
+        int at = offset + HEADER_LENGTH;
+        region.putInt(at, marketId);
+        putUuid(at + 4, uniqueId);
+        return finish(offset, JournalRecordType.CANCEL, body);
+    }
+
+    /**
+     * Appends an amendment of a resting entry.
+     *
+     * @param marketId the id the application knows the market by
+     * @param uniqueId the unique id of the entry
+     * @param quantityTicks the new unfilled quantity, in ticks
+     * @param unitPriceTicks the new unit price, in ticks
+     * @return the sequence number of the record
+     */
+    public synchronized long appendAmend(int marketId, UUID uniqueId, long quantityTicks, long unitPriceTicks) {
+        int body = 36;
+        int offset = begin(body);
+        int at = offset + HEADER_LENGTH;
+        region.putInt(at, marketId);
+        putUuid(at + 4, uniqueId);
+        region.putLong(at + 20, quantityTicks);
+        region.putLong(at + 28, unitPriceTicks);
+        return finish(offset, JournalRecordType.AMEND, body);
+    }
+
+    /**
+     * Appends a fill between a bid and an offer which was settled, moving the marketed thing from the seller to the
+     * buyer and its value from the buyer to the seller.
+     *
+     * @param marketId the id the application knows the market by
+     * @param bidId the unique id of the bid
+     * @param offerId the unique id of the offer
+     * @param unitPriceTicks the unit price of the fill, in ticks
+     * @param quantityTicks the quantity of the fill, in ticks
+     * @return the sequence number of the record
+     */
+    public synchronized long appendFill(int marketId, UUID bidId, UUID offerId, long unitPriceTicks,
+            long quantityTicks) {
+        int body = 52;
+        int offset = begin(body);
+        int at = offset + HEADER_LENGTH;
+        region.putInt(at, marketId);
+        putUuid(at + 4, bidId);
+        putUuid(at + 20, offerId);
+        region.putLong(at + 36, unitPriceTicks);
+        region.putLong(at + 44, quantityTicks);
+        return finish(offset, JournalRecordType.FILL, body);
+    }
+
+    /**
+     * @return the most fills a netted batch can have for it to fit in one record
+     */
+    public int getMaxNettedFills() {
+        return (regionSize - HEADER_LENGTH - 8) / NETTED_FILL_LENGTH;
+    }
+
+    /**
+     * Appends the fills of a batch which was settled as one, as a single record.
+     *
+     * @param marketId the id the application knows the market by
+     * @param fillCount the number of fills, which must be no more than {@link #getMaxNettedFills()}
+     * @param bidIds the unique id of the bid of each fill, in the order the fills were made
+     * @param offerIds the unique id of the offer of each fill
+     * @param unitPriceTicks the unit price of each fill, in ticks
+     * @param quantityTicks the quantity of each fill, in ticks
+     * @return the sequence number of the record
+     */
+    public synchronized long appendNetted(int marketId, int fillCount, UUID[] bidIds, UUID[] offerIds,
+            long[] unitPriceTicks, long[] quantityTicks) {
+        if (fillCount < 1 || fillCount > getMaxNettedFills()) {
+            throw new IllegalArgumentException("Cannot append a netted batch of " + fillCount + " fills.");
+        }
+
+        int body = 8 + fillCount * NETTED_FILL_LENGTH;
+        int offset = begin(body);
+        int at = offset + HEADER_LENGTH;
+        region.putInt(at, marketId);
+        region.putInt(at + 4, fillCount);
+        for (int i = 0; i < fillCount; i++) {
+            int fill = at + 8 + i * NETTED_FILL_LENGTH;
+            putUuid(fill, bidIds[i]);
+            putUuid(fill + 16, offerIds[i]);
+            region.putLong(fill + 32, unitPriceTicks[i]);
+            region.putLong(fill + 40, quantityTicks[i]);
+        }
+        return finish(offset, JournalRecordType.NETTED, body);
+    }
+
+    /**
+     * Appends a movement of wealth made outside any market.
+     *
+     * @param sender the id of the agent the wealth was taken from, or {@code null} if it was created
+     * @param recipient the id of the agent the wealth was given to, or {@code null} if it was destroyed
+     * @param currency the currency moved
+     * @param amount the amount moved
+     * @return the sequence number of the record
+     */
+    public synchronized long appendTransfer(UUID sender, UUID recipient, Currency currency, double amount) {
+        int body = 48;
+        int offset = begin(body);
+        int at = offset + HEADER_LENGTH;
+        putUuid(at, sender == null ? NO_AGENT : sender);
+        putUuid(at + 16, recipient == null ? NO_AGENT : recipient);
+        region.putLong(at + 32, CodecKeys.of(currency));
+        region.putDouble(at + 40, amount);
+        return finish(offset, JournalRecordType.TRANSFER, body);
+    }
+
+    /**
+     * Moves wealth outside any market and appends the movement as one step, so it is journalled in the order it was
+     * made. Movements of wealth outside markets must be made this way for the balances of agents to be recovered
+     * exactly.
+     *
+     * @param sender the agent to take the wealth from, or {@code null} to create it
+     * @param recipient the agent to give the wealth to, or {@code null} to destroy it
+     * @param currency the currency to move
+     * @param amount the amount to move
+     * @return whether the wealth was moved, in which case the movement was appended
+     */
+    public synchronized boolean transfer(Agent sender, Agent recipient, Currency currency, double amount) {
+        if (sender == null && recipient == null) {
+            throw new IllegalArgumentException("Cannot transfer wealth without a sender or a recipient.");
+        }
+        if (closed) {
+            throw new IllegalStateException("Cannot append to a closed journal.");
+        }
+
+        boolean moved;
+        if (sender == null) {
+            moved = recipient.give(currency, amount);
+        } else if (recipient == null) {
+            moved = sender.take(currency, amount);
+        } else {
+            moved = sender.transfer(recipient, currency, amount);
+        }
+        if (moved) {
+            appendTransfer(sender == null ? null : sender.getUniqueId(),
+                    recipient == null ? null : recipient.getUniqueId(), currency, amount);
+        }
+        return moved;
+    }
+
+    /**
+     * Runs a change which moves wealth and appends its records as one step, holding the lock every append takes as
+     * {@link #transfer(Agent, Agent, Currency, double)} does, so changes made by different markets are journalled in
+     * the order their wealth moved.
+     *
+     * @param change the change to make, which may append to this journal
+     * @return what the change returned
+     */
+    public synchronized <T> T whileLocked(Supplier<T> change) {
+        return change.get();
+    }
+
+    /**
+     * Marks the end of a batch of records. Under {@link FsyncPolicy#PER_BATCH}, everything appended is forced onto
+     * storage before this returns, so many records share the cost of one force.
+     */
+    public void commit() {
+        if (fsyncPolicy.isPerBatch()) {
+            force();
+        }
+    }
+
+    /**
+     * Forces everything appended so far onto storage.
+     */
+    public void force() {
+        MappedByteBuffer[] regions;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            regions = unforced.toArray(new MappedByteBuffer[0]);
+            unforced.clear();
+            unforced.add(region);
+            dirty = false;
+        }
+
+        // forced outside the lock, so appending carries on meanwhile
+        for (MappedByteBuffer forced : regions) {
+            forced.force();
+        }
+    }
+
+    /**
+     * Stops forcing at an interval, forces everything appended unless the policy is {@link FsyncPolicy#NEVER}, and
+     * closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        if (forcer != null) {
+            forcer.interrupt();
+            try {
+                forcer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            force();
+        }
+        channel.close();
+    }
+
+    private void forceAtInterval() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(fsyncPolicy.getIntervalMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+            force();
+        }
+    }
+
+    /**
+     * Finds the end of the last complete record, so appending carries on from there.
+     */
+    private void scanToEnd() {
+        mapRegion(0);
+        while (true) {
+            if (position == regionSize) {
+                mapRegion(regionIndex + 1);
+                continue;
+            }
+            int length = region.getInt(position);
+            if (length < 8 || length > regionSize - position) {
+                // nothing, or nothing complete, has been written here
+                break;
+            }
+            if (region.getInt(position + 4) == PADDING) {
+                mapRegion(regionIndex + 1);
+                continue;
+            }
+            lastSequence = region.getLong(position + 8);
+            position += length;
+        }
+        unforced.add(region);
+    }
+
+    /**
+     * Reserves space for a record with a body of the given length, moving on to the next region if it does not fit in
+     * this one. Must be called holding the lock of this journal.
+     *
+     * @return the offset of the record in the current region
+     */
+    private int begin(int bodyLength) {
+        if (closed) {
+            throw new IllegalStateException("Cannot append to a closed journal.");
+        }
+
+        int length = align(HEADER_LENGTH + bodyLength);
+        if (position + length > regionSize) {
+            if (position < regionSize) {
+                // lengths are all multiples of eight, so there is always room for the type and length of the padding
+                region.putInt(position + 4, PADDING);
+                region.putInt(position, regionSize - position);
+            }
+            mapRegion(regionIndex + 1);
+            unforced.add(region);
+        }
+        dirty = true;
+        return position;
+    }
+
+    private long finish(int offset, JournalRecordType type, int bodyLength) {
+        int length = align(HEADER_LENGTH + bodyLength);
+        long sequence = ++lastSequence;
+        region.putInt(offset + 4, type.getCode());
+        region.putLong(offset + 8, sequence);
+        // the length is written last, so the record is only seen once it is complete
+        region.putInt(offset, length);
+        position = offset + length;
+        return sequence;
+    }
+
+    private void mapRegion(int index) {
+        try {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, (long) index * regionSize, regionSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map region " + index + " of the journal.", e);
+        }
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        regionIndex = index;
+        position = 0;
+    }
+
+    private void putUuid(int offset, UUID uuid) {
+        region.putLong(offset, uuid.getMostSignificantBits());
+        region.putLong(offset + 8, uuid.getLeastSignificantBits());
+    }
+
+    static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Reads the records of a {@link Journal} in place, mapping the file read-only one region at a time. Reading can start
+ * from any position returned by {@link Journal#getPosition()}, so only the records after a snapshot need to be read to
+ * recover from it.
+ * <p>
+ * Not thread-safe.
+ */
+public final class JournalReader implements AutoCloseable {
+    private final FileChannel channel;
+    private final int regionSize;
+    // the same view is moved from record to record
+    private final JournalRecord record = new JournalRecord();
+
+    private JournalReader(FileChannel channel, int regionSize) {
+        this.channel = channel;
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Opens a journal for reading.
+     *
+     * @param path the file of the journal
+     * @param regionSize the region size the journal was written with
+     * @return the opened reader
+     * @throws IOException if the file cannot be opened
+     */
+    public static JournalReader open(Path path, int regionSize) throws IOException {
+        if (regionSize < 4096 || regionSize % 8 != 0) {
+            throw new IllegalArgumentException("Journal region size must be a multiple of 8 of at least 4096 bytes.");
+        }
+        return new JournalReader(FileChannel.open(path, StandardOpenOption.READ), regionSize);
+    }
+
+    /**
+     * Reads every complete record from the given position onwards, passing each to the handler in the order they were
+     * appended. The record passed is only valid until the handler returns.
+     *
+     * @param position the position to start reading from, as returned by {@link Journal#getPosition()}, or 0 to read
+     *                 the whole journal
+     * @param handler the handler to pass each record to
+     * @return the position after the last complete record
+     * @throws IOException if the file cannot be mapped
+     */
+    public long read(long position, Consumer<? super JournalRecord> handler) throws IOException {
+        return read(position, Long.MAX_VALUE, handler);
+    }
+
+    /**
+     * Reads the records from one position to another, as {@link #read(long, Consumer)} does. A journal which is still
+     * being appended to is read safely up to a position it has returned from {@link Journal#getPosition()}.
+     *
+     * @param end the position to stop reading at
+     */
+    public long read(long position, long end, Consumer<? super JournalRecord> handler) throws IOException {
+        if (position < 0 || position % 8 != 0) {
+            throw new IllegalArgumentException("Cannot read a journal from a position which is not the start of a "
+                    + "record.");
+        }
+
+        int regionIndex = (int) (position / regionSize);
+        int offset = (int) (position % regionSize);
+        MappedByteBuffer region = map(regionIndex);
+        while (region != null && (long) regionIndex * regionSize + offset < end) {
+            if (offset == regionSize) {
+                region = map(++regionIndex);
+                offset = 0;
+                continue;
+            }
+            // padding can be shorter than a header, but always has room for its length and type
+            if (offset + 8 > region.limit()) {
+                break;
+            }
+            int length = region.getInt(offset);
+            if (length < 8 || length > region.limit() - offset) {
+                // nothing, or nothing complete, has been written here
+                break;
+            }
+            int code = region.getInt(offset + 4);
+            if (code == Journal.PADDING) {
+                region = map(++regionIndex);
+                offset = 0;
+                continue;
+            }
+            JournalRecordType type = JournalRecordType.fromCode(code);
+            if (type == null) {
+                throw new IllegalStateException("Unknown journal record type " + code + " at position "
+                        + ((long) regionIndex * regionSize + offset) + ".");
+            }
+
+            record.wrap(region, offset, type);
+            handler.accept(record);
+            offset += length;
+        }
+        return (long) regionIndex * regionSize + offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the region with the given index, or {@code null} if the file does not reach it
+     */
+    private MappedByteBuffer map(int index) throws IOException {
+        long start = (long) index * regionSize;
+        long available = channel.size() - start;
+        if (available <= 0) {
+            return null;
+        }
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, available));
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        return region;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import jmarket.codec.MarketEntryDecoder;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * A view of one record of a {@link Journal}, read in place from the mapping of the journal. A reader moves the same
+ * view from record to record, so a record must not be kept after it has been handled. Each field can only be read from
+ * the types of record which have it.
+ * <p>
+ * Not thread-safe.
+ */
+public final class JournalRecord {
+    private ByteBuffer buffer;
+    private int offset;
+    private JournalRecordType type;
+    private final MarketEntryDecoder entry = new MarketEntryDecoder();
+
+    JournalRecord() {
+    }
+
+    void wrap(ByteBuffer buffer, int offset, JournalRecordType type) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.type = type;
+        if (type == JournalRecordType.ADD_BID || type == JournalRecordType.ADD_OFFER) {
+            entry.wrap(buffer, body() + 8);
+        }
+    }
+
+    public JournalRecordType getType() {
+        return type;
+    }
+
+    public long getSequence() {
+        return buffer.getLong(offset + 8);
+    }
+
+    /**
+     * @return the id of the market of an addition, cancellation, amendment, fill or netted batch
+     */
+    public int getMarketId() {
+        require(type != JournalRecordType.TRANSFER);
+        return buffer.getInt(body());
+    }
+
+    /**
+     * @return the entry added, decoded in place
+     */
+    public MarketEntryDecoder getEntry() {
+        requireAdd();
+        return entry;
+    }
+
+    /**
+     * @return the unique id of the entry added, cancelled or amended
+     */
+    public UUID getEntryId() {
+        if (type == JournalRecordType.ADD_BID || type == JournalRecordType.ADD_OFFER) {
+            return entry.getEntryId();
+        }
+        require(type == JournalRecordType.CANCEL || type == JournalRecordType.AMEND);
+        return getUuid(body() + 4);
+    }
+
+    /**
+     * @return the unique id of the agent of the entry added
+     */
+    public UUID getAgentId() {
+        requireAdd();
+        return entry.getAgentId();
+    }
+
+    /**
+     * @return the key of the currency of the entry added or the wealth transferred, as given by
+     *         {@link jmarket.codec.CodecKeys#of(jmarket.Currency)}
+     */
+    public long getCurrencyKey() {
+        if (type == JournalRecordType.TRANSFER) {
+            return buffer.getLong(body() + 32);
+        }
+        requireAdd();
+        return entry.getCurrencyKey();
+    }
+
+    /**
+     * @return the quantity, in ticks, of the entry added, of the amended entry or of the fill
+     */
+    public long getQuantityTicks() {
+        switch (type) {
+            case ADD_BID:
+            case ADD_OFFER:
+                return entry.getQuantityTicks();
+            case AMEND:
+                return buffer.getLong(body() + 20);
+            case FILL:
+                return buffer.getLong(body() + 44);
+            default:
+                throw unavailable();
+        }
+    }
+
+    /**
+     * @return the unit price, in ticks, of the entry added, of the amended entry or of the fill
+     */
+    public long getUnitPriceTicks() {
+        switch (type) {
+            case ADD_BID:
+            case ADD_OFFER:
+                return entry.getUnitPriceTicks();
+            case AMEND:
+                return buffer.getLong(body() + 28);
+            case FILL:
+                return buffer.getLong(body() + 36);
+            default:
+                throw unavailable();
+        }
+    }
+
+    /**
+     * @return the submission time of the entry added, in milliseconds since the epoch
+     */
+    public long getSubmissionTime() {
+        requireAdd();
+        return entry.getSubmissionTime();
+    }
+
+    /**
+     * @return the sequence the entry added was given in its market
+     */
+    public long getEntrySequence() {
+        requireAdd();
+        return entry.getSequence();
+    }
+
+    /**
+     * @return the unique id of the bid of the fill
+     */
+    public UUID getBidId() {
+        require(type == JournalRecordType.FILL);
+        return getUuid(body() + 4);
+    }
+
+    /**
+     * @return the unique id of the offer of the fill
+     */
+    public UUID getOfferId() {
+        require(type == JournalRecordType.FILL);
+        return getUuid(body() + 20);
+    }
+
+    /**
+     * @return the number of fills of the netted batch
+     */
+    public int getFillCount() {
+        require(type == JournalRecordType.NETTED);
+        return buffer.getInt(body() + 4);
+    }
+
+    /**
+     * @param fill the index of a fill of the netted batch
+     * @return the unique id of the bid of the fill
+     */
+    public UUID getBidId(int fill) {
+        return getUuid(nettedFill(fill));
+    }
+
+    /**
+     * @param fill the index of a fill of the netted batch
+     * @return the unique id of the offer of the fill
+     */
+    public UUID getOfferId(int fill) {
+        return getUuid(nettedFill(fill) + 16);
+    }
+
+    /**
+     * @param fill the index of a fill of the netted batch
+     * @return the unit price of the fill, in ticks
+     */
+    public long getUnitPriceTicks(int fill) {
+        return buffer.getLong(nettedFill(fill) + 32);
+    }
+
+    /**
+     * @param fill the index of a fill of the netted batch
+     * @return the quantity of the fill, in ticks
+     */
+    public long getQuantityTicks(int fill) {
+        return buffer.getLong(nettedFill(fill) + 40);
+    }
+
+    /**
+     * @return the unique id of the agent the wealth was transferred from, or {@code null} if it was created
+     */
+    public UUID getSenderId() {
+        require(type == JournalRecordType.TRANSFER);
+        return getAgent(body());
+    }
+
+    /**
+     * @return the unique id of the agent the wealth was transferred to, or {@code null} if it was destroyed
+     */
+    public UUID getRecipientId() {
+        require(type == JournalRecordType.TRANSFER);
+        return getAgent(body() + 16);
+    }
+
+    /**
+     * @return the amount of wealth transferred
+     */
+    public double getAmount() {
+        require(type == JournalRecordType.TRANSFER);
+        return buffer.getDouble(body() + 40);
+    }
+
+    private int body() {
+        return offset + Journal.HEADER_LENGTH;
+    }
+
+    private int nettedFill(int fill) {
+        if (fill < 0 || fill >= getFillCount()) {
+            throw new IndexOutOfBoundsException("The netted batch has no fill " + fill + ".");
+        }
+        return body() + 8 + fill * Journal.NETTED_FILL_LENGTH;
+    }
+
+    private UUID getUuid(int at) {
+        return new UUID(buffer.getLong(at), buffer.getLong(at + 8));
+    }
+
+    private UUID getAgent(int at) {
+        UUID uuid = getUuid(at);
+        return uuid.equals(Journal.NO_AGENT) ? null : uuid;
+    }
+
+    private void requireAdd() {
+        require(type == JournalRecordType.ADD_BID || type == JournalRecordType.ADD_OFFER);
+    }
+
+    private void require(boolean available) {
+        if (!available) {
+            throw unavailable();
+        }
+    }
+
+    private IllegalStateException unavailable() {
+        return new IllegalStateException("A " + type + " record does not have that field.");
+    }
+}
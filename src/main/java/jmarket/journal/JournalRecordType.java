@@ -0,0 +1,62 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+/**
+ * The kinds of record written to a {@link Journal}.
+ */
+public enum JournalRecordType {
+    ADD_BID(1),
+    ADD_OFFER(2),
+    CANCEL(3),
+    AMEND(4),
+    FILL(5),
+    TRANSFER(6),
+    NETTED(7);
+
+    private static final JournalRecordType[] BY_CODE = new JournalRecordType[8];
+
+    static {
+        for (JournalRecordType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    JournalRecordType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the code the type is written as, which never changes once a journal has been written with it
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param code a code as returned by {@link #getCode()}
+     * @return the type with the given code, or {@code null} if there is none
+     */
+    public static JournalRecordType fromCode(int code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
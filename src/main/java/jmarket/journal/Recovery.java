@@ -0,0 +1,149 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.codec.CodecKeys;
+import jmarket.market.DefaultMarket;
+import jmarket.market.MarketBid;
+import jmarket.market.MarketOffer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Recovers markets and the balances of agents after a restart, by restoring the latest {@link Snapshot} and then
+ * replaying only the journal records appended after it.
+ */
+public final class Recovery {
+    private Recovery() {
+    }
+
+    /**
+     * Restores the given markets and the agents they involve from a snapshot, if there is one, then replays the rest of
+     * the journal. The markets must be as they were when created: with no resting entries and no journal. Once this
+     * returns, the journal can be opened again and set on each market.
+     *
+     * @param snapshot the file of the latest snapshot, or {@code null} to replay the whole journal
+     * @param journal the file of the journal
+     * @param regionSize the region size the journal was written with
+     * @param markets the markets to recover, by the ids they are known by in the journal
+     * @param agents gets or creates the agent with each unique id, which must hold nothing when first created
+     * @return the sequence number of the last journal record recovered
+     * @throws IOException if the snapshot or the journal cannot be read
+     * @throws IllegalStateException if the journal does not follow on from the snapshot
+     */
+    public static long recover(Path snapshot, Path journal, int regionSize,
+            Map<Integer, ? extends DefaultMarket<?>> markets, Function<UUID, ? extends Agent> agents)
+            throws IOException {
+        long position = 0;
+        long[] lastSequence = new long[1];
+        if (snapshot != null) {
+            Snapshot loaded = Snapshot.load(snapshot);
+            loaded.restore(markets, agents);
+            position = loaded.getJournalPosition();
+            lastSequence[0] = loaded.getJournalSequence();
+        }
+
+        try (JournalReader reader = JournalReader.open(journal, regionSize)) {
+            reader.read(position, record -> {
+                if (record.getSequence() <= lastSequence[0]) {
+                    return;
+                }
+                replay(record, markets, agents);
+                lastSequence[0] = record.getSequence();
+            });
+        }
+        return lastSequence[0];
+    }
+
+    /**
+     * Replays one journal record into the given markets and agents.
+     */
+    static void replay(JournalRecord record, Map<Integer, ? extends DefaultMarket<?>> markets,
+            Function<UUID, ? extends Agent> agents) {
+        if (record.getType() == JournalRecordType.TRANSFER) {
+            UUID senderId = record.getSenderId();
+            UUID recipientId = record.getRecipientId();
+            Currency currency = CodecKeys.getCurrency(record.getCurrencyKey());
+            if (currency == null) {
+                throw new IllegalStateException("The currency of a transfer at sequence " + record.getSequence()
+                        + " is not registered.");
+            }
+            Agent sender = senderId == null ? null : agents.apply(senderId);
+            Agent recipient = recipientId == null ? null : agents.apply(recipientId);
+            if (sender == null) {
+                recipient.give(currency, record.getAmount());
+            } else if (recipient == null) {
+                sender.take(currency, record.getAmount());
+            } else {
+                sender.transfer(recipient, currency, record.getAmount());
+            }
+            return;
+        }
+
+        DefaultMarket<?> market = markets.get(record.getMarketId());
+        if (market == null) {
+            throw new IllegalStateException("No market was given for id " + record.getMarketId() + ".");
+        }
+        switch (record.getType()) {
+            case ADD_BID:
+                market.replayAdd(MarketBid.restore(agents.apply(record.getAgentId()), market.getTransactionCurrency(),
+                        record.getQuantityTicks(), record.getQuantityTicks(), record.getUnitPriceTicks(),
+                        record.getEntryId(), record.getSubmissionTime(), record.getEntrySequence()));
+                break;
+            case ADD_OFFER:
+                market.replayAdd(MarketOffer.restore(agents.apply(record.getAgentId()), market.getTransactionCurrency(),
+                        record.getQuantityTicks(), record.getQuantityTicks(), record.getUnitPriceTicks(),
+                        record.getEntryId(), record.getSubmissionTime(), record.getEntrySequence()));
+                break;
+            case CANCEL:
+                market.replayCancel(record.getEntryId());
+                break;
+            case AMEND:
+                market.replayAmend(record.getEntryId(), record.getQuantityTicks(), record.getUnitPriceTicks());
+                break;
+            case FILL:
+                market.replayFill(record.getBidId(), record.getOfferId(), record.getUnitPriceTicks(),
+                        record.getQuantityTicks());
+                break;
+            case NETTED:
+                int fills = record.getFillCount();
+                UUID[] bidIds = new UUID[fills];
+                UUID[] offerIds = new UUID[fills];
+                long[] unitPriceTicks = new long[fills];
+                long[] quantityTicks = new long[fills];
+                for (int i = 0; i < fills; i++) {
+                    bidIds[i] = record.getBidId(i);
+                    offerIds[i] = record.getOfferId(i);
+                    unitPriceTicks[i] = record.getUnitPriceTicks(i);
+                    quantityTicks[i] = record.getQuantityTicks(i);
+                }
+                market.replayNetted(bidIds, offerIds, unitPriceTicks, quantityTicks);
+                break;
+            default:
+                throw new IllegalStateException("Cannot replay a " + record.getType() + " record.");
+        }
+    }
+}
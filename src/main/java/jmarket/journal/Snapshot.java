@@ -0,0 +1,299 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.WealthSnapshot;
+import jmarket.codec.MarketEntryDecoder;
+import jmarket.codec.MarketEntryEncoder;
+import jmarket.market.DefaultMarket;
+import jmarket.market.MarketBid;
+import jmarket.market.MarketEntry;
+import jmarket.market.MarketOffer;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * A binary snapshot of the books of a set of markets and the balances of a set of agents, with the {@link Journal}
+ * position it was taken at, so {@link Recovery} only replays the records after it. It is written from markets nothing
+ * else is changing, such as the shadows of a {@link Snapshotter}. Everything is little-endian.
+ * <p>
+ * Loaded snapshots are not thread-safe.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x4E534D4A;
+    private static final int VERSION = 2;
+
+    private final ByteBuffer buffer;
+    private final long journalSequence;
+    private final long journalPosition;
+    private final long timestamp;
+    // where the currencies of the snapshot start
+    private final int body;
+
+    private Snapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("The file is not a snapshot.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Snapshot version " + buffer.getInt(4) + " is not supported.");
+        }
+        journalSequence = buffer.getLong(8);
+        journalPosition = buffer.getLong(16);
+        timestamp = buffer.getLong(24);
+        body = 32;
+    }
+
+    /**
+     * Writes a snapshot of the given markets and agents, as of a journal record, to a file, replacing the file in one
+     * step once it has been written completely. Nothing may change the markets or agents while they are written.
+     *
+     * @param path the file to write the snapshot to
+     * @param journalSequence the sequence number of the last journal record the markets and agents include
+     * @param journalPosition the position in the journal of the first record they do not include
+     * @param markets the markets to write, by the ids they are known by in the journal
+     * @param agents every agent which holds wealth, including any escrow of the markets
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static void write(Path path, long journalSequence, long journalPosition,
+            Map<Integer, ? extends DefaultMarket<?>> markets, Collection<? extends Agent> agents) throws IOException {
+        Writer writer = new Writer();
+        writer.write(journalSequence, journalPosition, new TreeMap<>(markets), agents);
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer written = writer.buffer.flip();
+            while (written.hasRemaining()) {
+                channel.write(written);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot by mapping its file.
+     *
+     * @param path the file of the snapshot
+     * @return the loaded snapshot
+     * @throws IOException if the file cannot be mapped
+     * @throws IllegalArgumentException if the file is not a snapshot of a supported version
+     */
+    public static Snapshot load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < 32) {
+                throw new IllegalArgumentException("The file is not a snapshot.");
+            }
+            return new Snapshot(buffer);
+        }
+    }
+
+    /**
+     * @return the sequence number of the last journal record included in this snapshot
+     */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * @return the position in the journal of the first record not included in this snapshot
+     */
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    /**
+     * @return the time this snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Restores the balances of every agent in this snapshot and the books of every market, which must all be as they
+     * were when created: holding nothing, with no resting entries and no journal.
+     *
+     * @param markets the markets to restore, by the ids they are known by in the journal
+     * @param agents gets or creates the agent with each unique id
+     * @throws IllegalStateException if the snapshot holds a currency which is not registered or a market which is not
+     *         given
+     */
+    public void restore(Map<Integer, ? extends DefaultMarket<?>> markets, Function<UUID, ? extends Agent> agents) {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(body);
+        MarketEntryDecoder decoder = new MarketEntryDecoder();
+        try {
+            int currencyCount = in.getInt();
+            Currency[] currencies = new Currency[currencyCount];
+            for (int i = 0; i < currencyCount; i++) {
+                int id = in.getInt();
+                byte[] name = new byte[in.getShort()];
+                in.get(name);
+                String currencyName = new String(name, StandardCharsets.UTF_8);
+                Currency currency = Currency.getByName(currencyName);
+                if (currency == null) {
+                    throw new IllegalStateException("Currency " + currencyName + " is not registered.");
+                }
+                if (id >= currencies.length) {
+                    throw new IllegalStateException("The snapshot is corrupt.");
+                }
+                currencies[id] = currency;
+            }
+
+            int agentCount = in.getInt();
+            for (int i = 0; i < agentCount; i++) {
+                Agent agent = agents.apply(getUuid(in));
+                int balances = in.getInt();
+                for (int j = 0; j < balances; j++) {
+                    Currency currency = currencies[in.getInt()];
+                    agent.give(currency, in.getDouble());
+                }
+            }
+
+            int marketCount = in.getInt();
+            for (int i = 0; i < marketCount; i++) {
+                int marketId = in.getInt();
+                DefaultMarket<?> market = markets.get(marketId);
+                if (market == null) {
+                    throw new IllegalStateException("No market was given for id " + marketId + ".");
+                }
+                long lastSequence = in.getLong();
+                int entries = in.getInt();
+                Currency currency = market.getTransactionCurrency();
+                for (int j = 0; j < entries; j++) {
+                    MarketEntryDecoder entry = decoder.wrap(in, in.position());
+                    Agent agent = agents.apply(entry.getAgentId());
+                    market.restoreEntry(entry.isBid()
+                            ? MarketBid.restore(agent, currency, entry.getInitialQuantityTicks(),
+                                    entry.getQuantityTicks(), entry.getUnitPriceTicks(), entry.getEntryId(),
+                                    entry.getSubmissionTime(), entry.getSequence())
+                            : MarketOffer.restore(agent, currency, entry.getInitialQuantityTicks(),
+                                    entry.getQuantityTicks(), entry.getUnitPriceTicks(), entry.getEntryId(),
+                                    entry.getSubmissionTime(), entry.getSequence()));
+                    in.position(in.position() + entry.getEncodedLength());
+                }
+                market.restoreLastSequence(lastSequence);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("The snapshot is corrupt.", e);
+        }
+    }
+
+    private static UUID getUuid(ByteBuffer in) {
+        return new UUID(in.getLong(), in.getLong());
+    }
+
+    /**
+     * Encodes the state of the markets and agents into a buffer which grows as needed.
+     */
+    private static final class Writer {
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private final MarketEntryEncoder encoder = new MarketEntryEncoder();
+
+        private void write(long journalSequence, long journalPosition, Map<Integer, ? extends DefaultMarket<?>> markets,
+                Collection<? extends Agent> agents) {
+            ensure(32);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(journalSequence);
+            buffer.putLong(journalPosition);
+            buffer.putLong(System.currentTimeMillis());
+
+            int currencyCount = Currency.getRegisteredCount();
+            ensure(4);
+            buffer.putInt(currencyCount);
+            for (int id = 0; id < currencyCount; id++) {
+                byte[] name = Currency.getById(id).getName().getBytes(StandardCharsets.UTF_8);
+                ensure(6 + name.length);
+                buffer.putInt(id);
+                buffer.putShort((short) name.length);
+                buffer.put(name);
+            }
+
+            ensure(4);
+            buffer.putInt(agents.size());
+            for (Agent agent : agents) {
+                WealthSnapshot wealth = agent.getCurrentWealth();
+                ensure(20 + 12 * wealth.getHeldCurrencies().size());
+                putUuid(agent.getUniqueId());
+                buffer.putInt(wealth.getHeldCurrencies().size());
+                for (Currency currency : wealth.getHeldCurrencies()) {
+                    buffer.putInt(currency.getId());
+                    buffer.putDouble(wealth.getAmount(currency));
+                }
+            }
+
+            ensure(4);
+            buffer.putInt(markets.size());
+            for (Map.Entry<Integer, ? extends DefaultMarket<?>> entry : markets.entrySet()) {
+                DefaultMarket<?> market = entry.getValue();
+                ensure(16);
+                buffer.putInt(entry.getKey());
+                buffer.putLong(market.getLastSequence());
+                int countAt = buffer.position();
+                buffer.putInt(0);
+                int[] count = new int[1];
+                market.forEachEntry(marketEntry -> {
+                    putEntry(marketEntry);
+                    count[0]++;
+                });
+                buffer.putInt(countAt, count[0]);
+            }
+        }
+
+        private void putEntry(MarketEntry entry) {
+            ensure(MarketEntryEncoder.ENCODED_LENGTH);
+            int written = encoder.wrap(buffer, buffer.position()).encode(entry);
+            buffer.position(buffer.position() + written);
+        }
+
+        private void putUuid(UUID uuid) {
+            buffer.putLong(uuid.getMostSignificantBits());
+            buffer.putLong(uuid.getLeastSignificantBits());
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                grown.put(buffer.flip());
+                buffer = grown;
+            }
+        }
+    }
+}
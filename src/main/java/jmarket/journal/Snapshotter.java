@@ -0,0 +1,197 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import jmarket.Agent;
+import jmarket.market.DefaultMarket;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Takes a {@link Snapshot} into a directory at a fixed interval, keeping only the most recent few. Snapshots are taken
+ * from shadow copies of the markets, brought up to date from the journal each time, so the markets are never held up.
+ * <p>
+ * Thread-safe.
+ */
+public final class Snapshotter implements AutoCloseable {
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final Path directory;
+    private final Journal journal;
+    private final Map<Integer, ? extends DefaultMarket<?>> shadows;
+    private final Map<UUID, Agent> agents;
+    private final int retained;
+    private final Thread thread;
+
+    // guarded by this
+    private long sequence;
+    private long position;
+
+    private volatile IOException lastFailure;
+
+    /**
+     * Creates a snapshotter, restoring the shadow markets from the latest snapshot in the directory if there is one.
+     *
+     * @param directory the directory to write snapshots to, which must exist
+     * @param journal the journal the markets append to
+     * @param shadows a shadow of each market, by the id it is known by in the journal, created as the market was but
+     *                used for nothing else
+     * @param agents the agents of the shadow markets by unique id, including any escrow, to which every other agent the
+     *               journal involves is added as it is met
+     * @param intervalMillis the time between snapshots, or 0 to only take them when {@link #takeSnapshot()} is called
+     * @param retained the number of snapshots to keep, which must be at least one
+     * @throws IOException if the latest snapshot cannot be read
+     */
+    public Snapshotter(Path directory, Journal journal, Map<Integer, ? extends DefaultMarket<?>> shadows,
+            Map<UUID, Agent> agents, long intervalMillis, int retained) throws IOException {
+        if (intervalMillis < 0 || retained < 1) {
+            throw new IllegalArgumentException("Snapshots must be taken at a non-negative interval and at least one "
+                    + "kept.");
+        }
+
+        this.directory = directory;
+        this.journal = journal;
+        this.shadows = shadows;
+        this.agents = agents;
+        this.retained = retained;
+
+        Path latest = findLatest(directory);
+        if (latest != null) {
+            Snapshot snapshot = Snapshot.load(latest);
+            snapshot.restore(shadows, this::getAgent);
+            sequence = snapshot.getJournalSequence();
+            position = snapshot.getJournalPosition();
+        }
+
+        if (intervalMillis > 0) {
+            thread = new Thread(() -> snapshotAtInterval(intervalMillis), "jmarket-snapshot");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            thread = null;
+        }
+    }
+
+    /**
+     * Takes a snapshot now, of every record appended to the journal before this is called, then deletes all but the
+     * most recent snapshots.
+     *
+     * @return the file of the snapshot
+     * @throws IOException if the journal cannot be read or the snapshot cannot be written
+     */
+    public synchronized Path takeSnapshot() throws IOException {
+        // the end is taken from the journal itself, so only records it has finished appending are read
+        long end = journal.getPosition();
+        try (JournalReader reader = JournalReader.open(journal.getPath(), journal.getRegionSize())) {
+            position = reader.read(position, end, record -> {
+                if (record.getSequence() <= sequence) {
+                    return;
+                }
+                Recovery.replay(record, shadows, this::getAgent);
+                sequence = record.getSequence();
+            });
+        }
+
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+        Snapshot.write(path, sequence, position, shadows, agents.values());
+
+        List<Path> snapshots = list(directory);
+        for (int i = 0; i < snapshots.size() - retained; i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+        return path;
+    }
+
+    /**
+     * @return the failure of the last snapshot taken at the interval, or {@code null} if it succeeded
+     */
+    public IOException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Finds the most recent snapshot in a directory written to by a snapshotter.
+     *
+     * @param directory the directory of the snapshots
+     * @return the file of the most recent snapshot, or {@code null} if there is none
+     * @throws IOException if the directory cannot be read
+     */
+    public static Path findLatest(Path directory) throws IOException {
+        List<Path> snapshots = list(directory);
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    @Override
+    public void close() {
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Agent getAgent(UUID uniqueId) {
+        return agents.computeIfAbsent(uniqueId, id -> new Agent(id, "Shadow"));
+    }
+
+    private void snapshotAtInterval(long intervalMillis) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                takeSnapshot();
+                lastFailure = null;
+            } catch (IOException e) {
+                lastFailure = e;
+            } catch (UncheckedIOException e) {
+                lastFailure = e.getCause();
+            }
+        }
+    }
+
+    /**
+     * @return the snapshots in a directory, from the oldest to the most recent
+     */
+    private static List<Path> list(Path directory) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "[0-9]*" + SUFFIX)) {
+            stream.forEach(snapshots::add);
+        }
+        // the sequences are zero-padded, so names sort in the order the snapshots were taken
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * What bids and offers have in common. The quantity and unit price are stored as ticks of the currency so they can be
+ * compared and matched exactly.
+ */
+abstract class AbstractMarketEntry implements MarketEntry {
+    private final Agent agent;
+    private final Currency currency;
+    private final long quantityTicks;
+    private final long unitPriceTicks;
+    /**
+     * The quantity which has not been filled yet, which is decremented in place by the market as fills are made.
+     */
+    private volatile long remainingQuantityTicks;
+
+    private final UUID uniqueId;
+    private final long submissionTime;
+    /**
+     * The position of this entry in the arrival order of the market it was added to, or 0 if it has not been added to
+     * one. Assigned once by the market while it is locked.
+     */
+    private volatile long sequence;
+
+    /**
+     * @throws IllegalArgumentException if the quantity is less than one tick
+     */
+    AbstractMarketEntry(Agent agent, Currency currency, long quantityTicks, long unitPriceTicks, UUID uniqueId,
+            long submissionTime) {
+        if (quantityTicks <= 0) {
+            throw new IllegalArgumentException("Cannot make an entry for a quantity of less than one tick of its "
+                    + "currency.");
+        }
+        this.agent = agent;
+        this.currency = currency;
+        this.quantityTicks = quantityTicks;
+        this.remainingQuantityTicks = quantityTicks;
+        this.unitPriceTicks = unitPriceTicks;
+        this.uniqueId = uniqueId;
+        this.submissionTime = submissionTime;
+    }
+
+    /**
+     * Puts back the state of an entry recreated as it was while resting in a market.
+     */
+    final void restoreState(long remainingQuantityTicks, long sequence) {
+        if (remainingQuantityTicks <= 0 || remainingQuantityTicks > quantityTicks || sequence <= 0) {
+            throw new IllegalArgumentException("Cannot restore an entry which is filled or was never added to a "
+                    + "market.");
+        }
+        this.remainingQuantityTicks = remainingQuantityTicks;
+        this.sequence = sequence;
+    }
+
+    @Override
+    public Agent getAgent() {
+        return agent;
+    }
+
+    /**
+     * @return the quantity this entry was made for, including any quantity which has since been filled
+     */
+    public double getInitialQuantity() {
+        return currency.fromTicks(quantityTicks);
+    }
+
+    /**
+     * @return the quantity of this entry which has not been filled yet
+     */
+    @Override
+    public double getQuantity() {
+        return currency.fromTicks(remainingQuantityTicks);
+    }
+
+    @Override
+    public double getUnitPrice() {
+        return currency.fromTicks(unitPriceTicks);
+    }
+
+    @Override
+    public long getQuantityTicks() {
+        return remainingQuantityTicks;
+    }
+
+    /**
+     * Records that some of the remaining quantity of this entry has been filled. Only called by the market holding this
+     * entry, while it is locked.
+     *
+     * @param quantityTicks the quantity filled, in ticks
+     * @return whether this entry is now completely filled
+     */
+    boolean fill(long quantityTicks) {
+        if (quantityTicks > remainingQuantityTicks) {
+            throw new IllegalArgumentException("Cannot fill more than the remaining quantity of an entry.");
+        }
+        remainingQuantityTicks -= quantityTicks;
+        return remainingQuantityTicks == 0;
+    }
+
+    @Override
+    public long getUnitPriceTicks() {
+        return unitPriceTicks;
+    }
+
+    @Override
+    public Date getSubmissionTime() {
+        return new Date(submissionTime);
+    }
+
+    @Override
+    public long getSubmissionTimeMillis() {
+        return submissionTime;
+    }
+
+    @Override
+    public long getInitialQuantityTicks() {
+        return quantityTicks;
+    }
+
+    @Override
+    public UUID getUniqueId() {
+        return uniqueId;
+    }
+
+    @Override
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        if (this.sequence != 0) {
+            throw new IllegalArgumentException("Cannot add an entry to more than one market.");
+        }
+        this.sequence = sequence;
+    }
+
+    /**
+     * Takes back the sequence of an entry which could not be added to its market after all.
+     */
+    void clearSequence() {
+        sequence = 0;
+    }
+
+    @Override
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    @Override
+    public double getValue() {
+        return getQuantity() * getUnitPrice();
+    }
+
+    /**
+     * Breaks a tie between this entry and another at the same price by which arrived first. Entries added to a market
+     * come first, in the order they were added, then entries not added to one yet, in the order they were submitted,
+     * and then by unique id, so entries are always in one total order.
+     *
+     * @return positive if this entry arrived first, negative if the other one did, or 0 if they are the same entry
+     */
+    final int compareArrival(AbstractMarketEntry o) {
+        // an entry added to a market arrived before any which has not been added yet
+        long arrival = sequence == 0 ? Long.MAX_VALUE : sequence;
+        long otherArrival = o.sequence == 0 ? Long.MAX_VALUE : o.sequence;
+        int comparison = Long.compare(otherArrival, arrival);
+        if (comparison == 0) {
+            comparison = Long.compare(o.submissionTime, submissionTime);
+        }
+        if (comparison == 0) {
+            comparison = o.uniqueId.compareTo(uniqueId);
+        }
+        return comparison;
+    }
+
+    // comparing unique ids should be enough to compare entry equality
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        return uniqueId.equals(((AbstractMarketEntry) o).uniqueId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(uniqueId);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.Marketed;
+
+import java.util.Set;
+
+/**
+ * A market which clears as a uniform-price call auction. Entries rest until {@link #update()}, which fills every
+ * crossing entry at the price transacting the most quantity, found in one pass over the price levels. Ties go to the
+ * smallest imbalance, then to the middle of the tied range. Fills are settled as in any other market, so in netted
+ * batches if they are set (see {@link #setNettedSettlement(Agent)}).
+ * <p>
+ * Thread-safe.
+ */
+public class CallAuctionMarket<T extends Marketed<T>> extends DefaultMarket<T> {
+    // scratch space for the price levels of each book and the candidate clearing prices, guarded by the book locks
+    private long[] bidPrices = new long[0];
+    private long[] bidQuantities = new long[0];
+    private long[] offerPrices = new long[0];
+    private long[] offerQuantities = new long[0];
+    private long[] candidates = new long[0];
+    // the price the auction being cleared fills at, guarded by the book locks
+    private long clearingPrice;
+
+    public CallAuctionMarket(T marketed, Currency transactionCurrency) {
+        super(marketed, transactionCurrency);
+    }
+
+    public CallAuctionMarket(T marketed, Currency transactionCurrency, Set<MarketBid> bids, Set<MarketOffer> offers) {
+        super(marketed, transactionCurrency, bids, offers);
+    }
+
+    /**
+     * Clears the auction, filling every entry which crosses at the clearing price.
+     */
+    @Override
+    protected void match(TradeConsumer trades) {
+        OrderBook<MarketBid> bids = getBidBook();
+        OrderBook<MarketOffer> offers = getOfferBook();
+        if (bids.isEmpty() || offers.isEmpty()
+                || bids.peekBest().getUnitPriceTicks() < offers.peekBest().getUnitPriceTicks()) {
+            return;
+        }
+
+        int bidLevels = bids.getLevelCount();
+        int offerLevels = offers.getLevelCount();
+        ensureCapacity(bidLevels, offerLevels);
+        bids.getLevels(bidPrices, bidQuantities, bidLevels);
+        offers.getLevels(offerPrices, offerQuantities, offerLevels);
+
+        // every bid at or above the clearing price can now be filled against every offer at or below it
+        clearingPrice = findClearingPrice(bidLevels, offerLevels);
+        super.match(trades);
+    }
+
+    /**
+     * Gets the clearing price of the auction being cleared, whatever the prices of the entries.
+     */
+    @Override
+    protected long getTransactionPrice(MarketBid bid, MarketOffer offer) {
+        return clearingPrice;
+    }
+
+    /**
+     * Finds the clearing price given the levels of both books, which must cross. Bid levels are ordered from the
+     * highest price to the lowest and offer levels from the lowest to the highest.
+     */
+    private long findClearingPrice(int bidLevels, int offerLevels) {
+        // merge the prices of both books into ascending order, only keeping those at which the books cross
+        long lowest = offerPrices[0];
+        long highest = bidPrices[0];
+        int candidateCount = 0;
+        int b = bidLevels - 1;
+        int o = 0;
+        while (b >= 0 || o < offerLevels) {
+            long price;
+            if (o >= offerLevels || (b >= 0 && bidPrices[b] < offerPrices[o])) {
+                price = bidPrices[b--];
+            } else {
+                price = offerPrices[o++];
+            }
+            if (price > highest) {
+                break;
+            }
+            if (price >= lowest && (candidateCount == 0 || candidates[candidateCount - 1] != price)) {
+                candidates[candidateCount++] = price;
+            }
+        }
+
+        // demand at a price is the quantity bid at or above it, supply the quantity offered at or below it
+        long demand = 0;
+        for (int i = 0; i < bidLevels; i++) {
+            demand += bidQuantities[i];
+        }
+        long supply = 0;
+        b = bidLevels - 1;
+        o = 0;
+
+        long bestVolume = -1;
+        long bestImbalance = Long.MAX_VALUE;
+        long low = lowest;
+        long high = lowest;
+        for (int i = 0; i < candidateCount; i++) {
+            long price = candidates[i];
+            while (b >= 0 && bidPrices[b] < price) {
+                demand -= bidQuantities[b--];
+            }
+            while (o < offerLevels && offerPrices[o] <= price) {
+                supply += offerQuantities[o++];
+            }
+
+            long volume = Math.min(demand, supply);
+            long imbalance = Math.abs(demand - supply);
+            if (volume > bestVolume || (volume == bestVolume && imbalance < bestImbalance)) {
+                bestVolume = volume;
+                bestImbalance = imbalance;
+                low = price;
+                high = price;
+            } else if (volume == bestVolume && imbalance == bestImbalance) {
+                high = price;
+            }
+        }
+
+        return low + (high - low) / 2;
+    }
+
+    private void ensureCapacity(int bidLevels, int offerLevels) {
+        if (bidPrices.length < bidLevels) {
+            bidPrices = new long[bidLevels];
+            bidQuantities = new long[bidLevels];
+        }
+        if (offerPrices.length < offerLevels) {
+            offerPrices = new long[offerLevels];
+            offerQuantities = new long[offerLevels];
+        }
+        if (candidates.length < bidLevels + offerLevels) {
+            candidates = new long[bidLevels + offerLevels];
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Currency;
+import jmarket.Marketed;
+import jmarket.Transaction;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A market which matches each entry against the other side of the book as it is added, at the price of the resting
+ * entry, leaving only the unfilled remainder resting. Trades are reported on the adding thread while the market is
+ * locked, so listeners should return quickly.
+ * <p>
+ * Thread-safe.
+ */
+public class ContinuousMarket<T extends Marketed<T>> extends DefaultMarket<T> {
+    private final TradeConsumer tradeListener;
+
+    // the entry currently being matched on arrival, guarded by the book locks
+    private MarketEntry incoming;
+
+    public ContinuousMarket(T marketed, Currency transactionCurrency, Consumer<? super Transaction<T>> tradeListener) {
+        super(marketed, transactionCurrency);
+        if (tradeListener == null) {
+            throw new IllegalArgumentException("Continuous market must have a trade listener.");
+        }
+
+        this.tradeListener = toTradeConsumer(tradeListener);
+    }
+
+    public ContinuousMarket(T marketed, Currency transactionCurrency, TradeConsumer tradeListener) {
+        super(marketed, transactionCurrency);
+        if (tradeListener == null) {
+            throw new IllegalArgumentException("Continuous market must have a trade listener.");
+        }
+
+        this.tradeListener = tradeListener;
+    }
+
+    public ContinuousMarket(T marketed, Currency transactionCurrency, Set<MarketBid> bids, Set<MarketOffer> offers,
+            Consumer<? super Transaction<T>> tradeListener) {
+        this(marketed, transactionCurrency, tradeListener);
+        bids.forEach(this::addBid);
+        offers.forEach(this::addOffer);
+    }
+
+    @Override
+    public void addBid(MarketBid bid) {
+        lockBooks();
+        try {
+            super.addBid(bid);
+            incoming = bid;
+            match(tradeListener);
+        } finally {
+            incoming = null;
+            unlockBooks();
+        }
+        commitJournal();
+    }
+
+    @Override
+    public void addOffer(MarketOffer offer) {
+        lockBooks();
+        try {
+            super.addOffer(offer);
+            incoming = offer;
+            match(tradeListener);
+        } finally {
+            incoming = null;
+            unlockBooks();
+        }
+        commitJournal();
+    }
+
+    /**
+     * Amends a resting entry, then matches it straight away if its new price crosses the opposite side of the book.
+     */
+    @Override
+    public boolean amend(UUID uniqueId, double quantity, double unitPrice) {
+        lockBooks();
+        try {
+            MarketEntry amended = amendEntry(uniqueId, quantity, unitPrice);
+            if (amended == null) {
+                return false;
+            }
+            incoming = amended;
+            match(tradeListener);
+        } finally {
+            incoming = null;
+            unlockBooks();
+        }
+        commitJournal();
+        return true;
+    }
+
+    /**
+     * Gets the price of whichever of the given entries was resting in the book when the other arrived, or the default
+     * price when both were already resting.
+     */
+    @Override
+    protected long getTransactionPrice(MarketBid bid, MarketOffer offer) {
+        // the book never crosses between arrivals, so every match made on arrival involves the incoming entry
+        if (incoming instanceof MarketBid) {
+            return offer.getUnitPriceTicks();
+        }
+        if (incoming instanceof MarketOffer) {
+            return bid.getUnitPriceTicks();
+        }
+        return super.getTransactionPrice(bid, offer);
+    }
+}
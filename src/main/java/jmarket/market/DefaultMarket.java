@@ -19,48 +19,88 @@
  */
 package jmarket.market;
 
+import jmarket.Agent;
 import jmarket.Currency;
 import jmarket.Marketed;
-import jmarket.MarketedTransfer;
+import jmarket.MarketedCurrency;
+import jmarket.MarketedTransferResult;
 import jmarket.Transaction;
 import jmarket.TransactionResult;
-import jmarket.WealthTransfer;
+import jmarket.WealthListener;
+import jmarket.journal.Journal;
+import jmarket.market.data.CandleAggregator;
+import jmarket.market.data.MarketDataFeed;
+import jmarket.market.data.MarketEventType;
 
 import gnu.trove.set.hash.THashSet;
 
+import java.time.Clock;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
- * Default implementation of a market.
+ * Default implementation of a market. Bids their bidder can no longer fund are dropped when the market is updated.
+ * Entries can be held in escrow (see {@link #setEscrow(Agent)}), or fills settled in netted batches (see
+ * {@link #setNettedSettlement(Agent)}).
  * <p>
  * Thread-safe.
  */
 public class DefaultMarket<T extends Marketed<T>> implements Market<T> {
     private final T marketed;
     private final Currency transactionCurrency;
-    private final Set<MarketBid> bids;
-    private final Set<MarketOffer> offers;
+    private final OrderBook<MarketBid> bids = OrderBook.bids();
+    private final OrderBook<MarketOffer> offers = OrderBook.offers();
+
+    // assigns each entry its position in the arrival order of this market, shared by both books
+    private final AtomicLong sequence = new AtomicLong();
+
+    // guarded by the book locks
+    private Clock clock = Clock.systemUTC();
+    private MarketDataFeed feed;
+    private CandleAggregator candles;
+    private Agent escrow;
+    // the counterparty of netted settlement, or null to settle each fill on its own
+    private Agent clearing;
+    // written to under the book locks, and volatile so batches can be committed after unlocking
+    private volatile Journal journal;
+    private int journalMarketId;
+
+    // the bidders this market is listening to, guarded by the bids lock
+    private final Set<Agent> watchedBidders = new THashSet<>();
+    // the bidders whose bids need checking at the next update, added to by any thread
+    private final Set<Agent> biddersToCheck = ConcurrentHashMap.newKeySet();
+    private final WealthListener fundingListener = (agent, currency) -> {
+        if (currency.equals(getTransactionCurrency())) {
+            biddersToCheck.add(agent);
+        }
+    };
 
     private ReadWriteLock bidsLock = new ReentrantReadWriteLock();
     private ReadWriteLock offersLock = new ReentrantReadWriteLock();
 
     public DefaultMarket(T marketed, Currency transactionCurrency) {
-        this(marketed, transactionCurrency, new HashSet<>(), new HashSet<>());
+        this.marketed = marketed;
+        this.transactionCurrency = transactionCurrency;
     }
 
     public DefaultMarket(T marketed, Currency transactionCurrency, Set<MarketBid> bids, Set<MarketOffer> offers) {
-        this.marketed = marketed;
-        this.transactionCurrency = transactionCurrency;
-        this.bids = bids;
-        this.offers = offers;
+        this(marketed, transactionCurrency);
+        bids.forEach(this::addBid);
+        offers.forEach(this::addOffer);
     }
 
     @Override
@@ -73,12 +113,192 @@ public class DefaultMarket<T extends Marketed<T>> implements Market<T> {
         return transactionCurrency;
     }
 
+    /**
+     * Sets the feed changes to the books of this market and trades made in it are published to. Publishing never waits
+     * for subscribers, so a slow subscriber cannot hold up matching.
+     *
+     * @param feed the feed to publish to, or {@code null} to stop publishing
+     */
+    public void setMarketDataFeed(MarketDataFeed feed) {
+        lockBooks();
+        try {
+            this.feed = feed;
+            bids.setMarketDataFeed(feed);
+            offers.setMarketDataFeed(feed);
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Sets the clock the trades made in this market are timed by, which is the system clock by default.
+     *
+     * @param clock the clock to time trades by
+     */
+    public void setClock(Clock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("Market must have a clock.");
+        }
+
+        lockBooks();
+        try {
+            this.clock = clock;
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Sets the aggregator every successful trade made in this market is recorded by, as it is settled.
+     *
+     * @param candles the aggregator to record trades in, or {@code null} to stop recording
+     * @throws IllegalArgumentException if the aggregator is for a different transaction currency
+     */
+    public void setCandleAggregator(CandleAggregator candles) {
+        if (candles != null && !candles.getTransactionCurrency().equals(transactionCurrency)) {
+            throw new IllegalArgumentException("Cannot record trades in an aggregator with a different transaction "
+                    + "currency.");
+        }
+
+        lockBooks();
+        try {
+            this.candles = candles;
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Sets the agent which holds the funds of resting bids and the goods of resting offers. While set, adding a bid
+     * moves its value from the bidder to the escrow and adding an offer moves its quantity from the seller, and both
+     * are rejected if that is not possible. Fills are then settled from the escrow, refunding the bidder any price
+     * improvement, and whatever is left of an entry is refunded when it is cancelled or amended.
+     *
+     * @param escrow the agent to hold reserved funds and goods, which should not trade itself, or {@code null} to stop
+     *               reserving
+     * @throws IllegalStateException if the market has resting entries or settles in netted batches
+     */
+    public void setEscrow(Agent escrow) {
+        lockBooks();
+        try {
+            if (!bids.isEmpty() || !offers.isEmpty()) {
+                throw new IllegalStateException("Cannot change the escrow of a market with resting entries.");
+            }
+            if (escrow != null && clearing != null) {
+                throw new IllegalStateException("Cannot hold entries in escrow in a market which settles in netted "
+                        + "batches.");
+            }
+            this.escrow = escrow;
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Sets the journal every change to the books of this market, and every fill settled, is appended to. Batches are
+     * committed at the end of each update, and by subclasses at the end of each of their own batches. Wealth is moved
+     * and journalled as one step of the journal, so markets sharing it can match on separate threads.
+     *
+     * @param journal the journal to append to, or {@code null} to stop journalling
+     * @param marketId the id this market is known by in the journal
+     */
+    public void setJournal(Journal journal, int marketId) {
+        lockBooks();
+        try {
+            this.journal = journal;
+            this.journalMarketId = marketId;
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Commits the batch of journal records appended since the last commit, if this market has a journal. Called without
+     * holding the book locks, so forcing the journal does not hold up matching.
+     */
+    protected void commitJournal() {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.commit();
+        }
+    }
+
+    /**
+     * Sets the agent the fills of each matching pass are settled through as one netted batch. Agents which owe on
+     * balance pay into the clearing agent, which pays out only if all of them could, and a batch which cannot settle
+     * falls back to settling each fill on its own. Fills are still reported one by one but journalled as one record.
+     * The clearing agent holds nothing between batches: whatever rounding the amounts leaves in it, less than a tick,
+     * goes to the last agent paid. Cannot be combined with an escrow, which already settles every fill from one agent.
+     *
+     * @param clearing the agent to settle through, which should neither trade itself nor clear for another market, or
+     *                 {@code null} to settle each fill on its own
+     * @throws IllegalStateException if the market holds entries in escrow
+     */
+    public void setNettedSettlement(Agent clearing) {
+        lockBooks();
+        try {
+            if (clearing != null && escrow != null) {
+                throw new IllegalStateException("Cannot settle in netted batches in a market which holds entries in "
+                        + "escrow.");
+            }
+            this.clearing = clearing;
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Gets the book of bids itself, which must only be read or modified while holding the appropriate lock.
+     */
+    protected final OrderBook<MarketBid> getBidBook() {
+        return bids;
+    }
+
+    /**
+     * Gets the book of offers itself, which must only be read or modified while holding the appropriate lock.
+     */
+    protected final OrderBook<MarketOffer> getOfferBook() {
+        return offers;
+    }
+
+    /**
+     * Passes every resting bid and then every resting offer to the given consumer, each book in priority order from its
+     * best entry to its worst.
+     *
+     * @param consumer the consumer to pass each entry to
+     */
+    public void forEachEntry(Consumer<? super MarketEntry> consumer) {
+        Lock bReadLock = bidsLock.readLock();
+        bReadLock.lock();
+        try {
+            bids.forEach(consumer);
+        } finally {
+            bReadLock.unlock();
+        }
+        Lock oReadLock = offersLock.readLock();
+        oReadLock.lock();
+        try {
+            offers.forEach(consumer);
+        } finally {
+            oReadLock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence last given to an entry added to or amended in this market, or 0 if there has been none
+     */
+    public long getLastSequence() {
+        return sequence.get();
+    }
+
     @Override
     public Collection<MarketBid> getBids() {
         Lock readLock = bidsLock.readLock();
         readLock.lock();
         try {
-            return new THashSet<>(bids);
+            Set<MarketBid> result = new THashSet<>(bids.size());
+            bids.forEach(result::add);
+            return result;
         } finally {
             readLock.unlock();
         }
@@ -93,7 +313,29 @@ public class DefaultMarket<T extends Marketed<T>> implements Market<T> {
         Lock writeLock = bidsLock.writeLock();
         writeLock.lock();
         try {
-            bids.add(bid);
+            if (escrow != null) {
+                journalled(() -> {
+                    reserve(bid, reservation(bid));
+                    try {
+                        addToBook(bids, bid);
+                    } catch (RuntimeException e) {
+                        release(bid, reservation(bid));
+                        throw e;
+                    }
+                    return null;
+                });
+                // the bid is paid for, so its funding never needs checking
+                return;
+            }
+
+            addToBook(bids, bid);
+
+            Agent bidder = bid.getBidder();
+            if (watchedBidders.add(bidder)) {
+                bidder.addWealthListener(fundingListener);
+            }
+            // a new bid has not been checked yet
+            biddersToCheck.add(bidder);
         } finally {
             writeLock.unlock();
         }
@@ -104,7 +346,9 @@ public class DefaultMarket<T extends Marketed<T>> implements Market<T> {
         Lock readLock = offersLock.readLock();
         readLock.lock();
         try {
-            return new THashSet<>(offers);
+            Set<MarketOffer> result = new THashSet<>(offers.size());
+            offers.forEach(result::add);
+            return result;
         } finally {
             readLock.unlock();
         }
@@ -119,82 +363,1141 @@ public class DefaultMarket<T extends Marketed<T>> implements Market<T> {
         Lock writeLock = offersLock.writeLock();
         writeLock.lock();
         try {
-            offers.add(offer);
+            journalled(() -> {
+                if (escrow != null) {
+                    reserve(offer, reservation(offer));
+                }
+                try {
+                    addToBook(offers, offer);
+                } catch (RuntimeException e) {
+                    if (escrow != null) {
+                        release(offer, reservation(offer));
+                    }
+                    throw e;
+                }
+                return null;
+            });
         } finally {
             writeLock.unlock();
         }
     }
 
+    /**
+     * Gives an entry the next sequence, adds it to its book and journals it. If any of that fails, the entry is taken
+     * back out of the book and left without a sequence, as it was. Must only be called while holding the write lock of
+     * the book.
+     */
+    private <E extends AbstractMarketEntry> void addToBook(OrderBook<E> book, E entry) {
+        entry.setSequence(sequence.incrementAndGet());
+        boolean added = false;
+        try {
+            book.add(entry);
+            added = true;
+            if (journal != null) {
+                if (entry instanceof MarketBid) {
+                    journal.appendBid(journalMarketId, (MarketBid) entry);
+                } else {
+                    journal.appendOffer(journalMarketId, (MarketOffer) entry);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (added) {
+                book.remove(entry.getUniqueId());
+            }
+            entry.clearSequence();
+            throw e;
+        }
+    }
+
     @Override
-    public Set<Transaction<T>> update() {
+    public double getBestBidPrice() {
+        Lock readLock = bidsLock.readLock();
+        readLock.lock();
+        try {
+            return bids.isEmpty() ? Double.NaN : transactionCurrency.fromTicks(bids.getBestPrice());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public double getBestOfferPrice() {
+        Lock readLock = offersLock.readLock();
+        readLock.lock();
+        try {
+            return offers.isEmpty() ? Double.NaN : transactionCurrency.fromTicks(offers.getBestPrice());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public double getBidDepth() {
+        Lock readLock = bidsLock.readLock();
+        readLock.lock();
+        try {
+            return transactionCurrency.fromTicks(bids.getQuantity());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public double getOfferDepth() {
+        Lock readLock = offersLock.readLock();
+        readLock.lock();
+        try {
+            return transactionCurrency.fromTicks(offers.getQuantity());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int getBidLevels(long[] prices, long[] quantities) {
+        Lock readLock = bidsLock.readLock();
+        readLock.lock();
+        try {
+            return bids.getLevels(prices, quantities, Math.min(prices.length, quantities.length));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int getOfferLevels(long[] prices, long[] quantities) {
+        Lock readLock = offersLock.readLock();
+        readLock.lock();
+        try {
+            return offers.getLevels(prices, quantities, Math.min(prices.length, quantities.length));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean cancel(UUID uniqueId) {
         Lock bWriteLock = bidsLock.writeLock();
         bWriteLock.lock();
-
-        bids.removeIf(bid -> !bid.getBidder().has(bid.getCurrency(), bid.getValue()));
+        try {
+            MarketBid bid = bids.remove(uniqueId);
+            if (bid != null) {
+                removed(bid);
+                return true;
+            }
+        } finally {
+            bWriteLock.unlock();
+        }
 
         Lock oWriteLock = offersLock.writeLock();
         oWriteLock.lock();
+        try {
+            MarketOffer offer = offers.remove(uniqueId);
+            if (offer == null) {
+                return false;
+            }
+            removed(offer);
+            return true;
+        } finally {
+            oWriteLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean amend(UUID uniqueId, double quantity, double unitPrice) {
+        return amendEntry(uniqueId, quantity, unitPrice) != null;
+    }
+
+    /**
+     * Amends a resting bid or offer as described by {@link #amend(UUID, double, double)}.
+     *
+     * @return the entry resting in its place after the amendment, or {@code null} if there was no resting entry with
+     *         the given unique id
+     */
+    protected MarketEntry amendEntry(UUID uniqueId, double quantity, double unitPrice) {
+        long quantityTicks = transactionCurrency.toTicks(quantity);
+        long unitPriceTicks = transactionCurrency.toTicks(unitPrice);
+        if (quantityTicks <= 0) {
+            throw new IllegalArgumentException("Cannot amend an entry to a quantity of nothing.");
+        }
 
+        lockBooks();
+        try {
+            return journalled(() -> amendResting(uniqueId, quantityTicks, unitPriceTicks));
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Amends a resting bid or offer, moving the difference in and out of escrow and journalling the amendment. Must
+     * only be called while holding the write locks of both books.
+     */
+    private MarketEntry amendResting(UUID uniqueId, long quantityTicks, long unitPriceTicks) {
+        MarketBid bid = bids.get(uniqueId);
+        if (bid != null) {
+            if (unitPriceTicks == bid.getUnitPriceTicks() && quantityTicks <= bid.getQuantityTicks()) {
+                if (quantityTicks < bid.getQuantityTicks()) {
+                    double reserved = reservation(bid);
+                    bids.reduce(uniqueId, quantityTicks);
+                    if (escrow != null) {
+                        release(bid, reserved - reservation(bid));
+                    }
+                    journalAmend(uniqueId, quantityTicks, unitPriceTicks);
+                }
+                return bid;
+            }
+            MarketBid amended = bid.amended(quantityTicks, unitPriceTicks);
+            if (escrow != null) {
+                // settle the difference first, so the entry is left alone if it cannot be funded
+                double reserved = reservation(bid);
+                double required = reservation(amended);
+                if (required > reserved) {
+                    reserve(bid, required - reserved);
+                } else {
+                    release(bid, reserved - required);
+                }
+            } else if (amended.getValue() > bid.getValue()) {
+                // the bidder may not be able to fund the larger bid
+                biddersToCheck.add(bid.getBidder());
+            }
+            bids.remove(uniqueId);
+            amended.setSequence(sequence.incrementAndGet());
+            bids.add(amended);
+            journalAmend(uniqueId, quantityTicks, unitPriceTicks);
+            return amended;
+        }
+
+        MarketOffer offer = offers.get(uniqueId);
+        if (offer != null) {
+            if (unitPriceTicks == offer.getUnitPriceTicks() && quantityTicks <= offer.getQuantityTicks()) {
+                if (quantityTicks < offer.getQuantityTicks()) {
+                    double reserved = reservation(offer);
+                    offers.reduce(uniqueId, quantityTicks);
+                    if (escrow != null) {
+                        release(offer, reserved - reservation(offer));
+                    }
+                    journalAmend(uniqueId, quantityTicks, unitPriceTicks);
+                }
+                return offer;
+            }
+            MarketOffer amended = offer.amended(quantityTicks, unitPriceTicks);
+            if (escrow != null) {
+                // settle the difference first, so the entry is left alone if it cannot be funded
+                double reserved = reservation(offer);
+                double required = reservation(amended);
+                if (required > reserved) {
+                    reserve(offer, required - reserved);
+                } else {
+                    release(offer, reserved - required);
+                }
+            }
+            offers.remove(uniqueId);
+            amended.setSequence(sequence.incrementAndGet());
+            offers.add(amended);
+            journalAmend(uniqueId, quantityTicks, unitPriceTicks);
+            return amended;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Set<Agent> getParticipants() {
+        Set<Agent> result = new THashSet<>();
+        forEachParticipant(result::add);
+        return result;
+    }
+
+    /**
+     * Passes every agent with resting entries, read from the index of each book by agent, then the escrow and the
+     * clearing agent if they are set, since updating this market moves wealth through them too.
+     */
+    @Override
+    public void forEachParticipant(Consumer<? super Agent> consumer) {
+        Lock bReadLock = bidsLock.readLock();
+        bReadLock.lock();
+        try {
+            bids.forEachAgent(consumer);
+            // written to while holding both write locks, so either read lock is enough
+            if (escrow != null) {
+                consumer.accept(escrow);
+            }
+            if (clearing != null) {
+                consumer.accept(clearing);
+            }
+        } finally {
+            bReadLock.unlock();
+        }
+        Lock oReadLock = offersLock.readLock();
+        oReadLock.lock();
+        try {
+            offers.forEachAgent(consumer);
+        } finally {
+            oReadLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Transaction<T>> update() {
         Set<Transaction<T>> result = new HashSet<>();
+        updateBooks(toTradeConsumer(result::add));
+        return result;
+    }
+
+    /**
+     * Updates the market, reporting each trade straight from the matching loop without creating any transaction.
+     */
+    @Override
+    public void update(TradeConsumer trades) {
+        updateBooks(trades);
+    }
 
+    // not overridable, so subclasses which route updates elsewhere can still call either update of this class
+    private void updateBooks(TradeConsumer trades) {
+        lockBooks();
         try {
-            List<MarketBid> bidList = new ArrayList<>(bids);
-            Collections.sort(bidList);
-            List<MarketOffer> offerList = new ArrayList<>(offers);
-            Collections.sort(offerList);
+            dropUnfundedBids();
+            match(trades);
+        } finally {
+            unlockBooks();
+        }
+        commitJournal();
+    }
+
+    /**
+     * Adapts a consumer of transactions to receive trades, building a transaction for each trade as it is reported.
+     *
+     * @param sink the consumer of transactions
+     * @return a consumer of trades which passes a transaction for each trade to the sink
+     */
+    protected final TradeConsumer toTradeConsumer(Consumer<? super Transaction<T>> sink) {
+        return (timeMillis, buyer, seller, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result) ->
+                sink.accept(TradeBuffer.toTransaction(marketed, transactionCurrency, buyer, seller, unitPriceTicks,
+                        quantityTicks, result));
+    }
+
+    /**
+     * Drops the bids of bidders whose wealth has gone down since they were last checked, and who can no longer fund
+     * them. Must only be called while holding the write lock of the bids.
+     */
+    protected void dropUnfundedBids() {
+        Iterator<Agent> iterator = biddersToCheck.iterator();
+        while (iterator.hasNext()) {
+            Agent bidder = iterator.next();
+            // removed before checking, so a decrease from now on is caught by the next update
+            iterator.remove();
 
-            // as the list is sorted this will now loop from highest bid to lowest
-            for (int i = 0; i < bidList.size(); i++) {
-                MarketBid bid = bidList.get(i);
-                MarketOffer bestOffer = offerList.get(0);
+            bids.removeIf(bidder, bid -> {
+                if (bidder.has(bid.getCurrency(), bid.getValue())) {
+                    return false;
+                }
+                removed(bid);
+                return true;
+            });
+            unwatchIfIdle(bidder);
+        }
+    }
+
+    /**
+     * Stops listening to the wealth of a bidder once it has no bids left resting in this market. Must only be called
+     * while holding the write lock of the bids.
+     */
+    private void unwatchIfIdle(Agent bidder) {
+        if (!bids.hasEntriesOf(bidder) && watchedBidders.remove(bidder)) {
+            bidder.removeWealthListener(fundingListener);
+        }
+    }
+
+    /**
+     * Matches the best bids against the best offers until the books no longer cross, settling a trade for each match.
+     * Must only be called while holding the write locks of both books.
+     *
+     * @param trades receives every trade settled, whether or not it succeeded
+     */
+    protected void match(TradeConsumer trades) {
+        if (clearing != null) {
+            // a batch holds no more fills than fit in one journal record, so batches are settled until none is left
+            while (settleNetted(trades)) {
+                if (bids.isEmpty() || offers.isEmpty() || !crosses(bids.peekBest(), offers.peekBest())) {
+                    return;
+                }
+            }
+        }
+
+        // the books are sorted so this always matches the highest bid against the lowest offer
+        while (!bids.isEmpty() && !offers.isEmpty()) {
+            MarketBid bid = bids.peekBest();
+            MarketOffer bestOffer = offers.peekBest();
+
+            // if our current highest bid and lowest offer cannot both accept the price, no transactions can be made
+            if (!crosses(bid, bestOffer)) {
+                break;
+            }
+
+            // here, we know that the current bid-offer combination is a match on price
+            // however, they are not necessarily the same quantities
+            long quantityTicks = Math.min(bestOffer.getQuantityTicks(), bid.getQuantityTicks());
+            settleBest(quantityTicks, getTransactionPrice(bid, bestOffer), trades);
+        }
+    }
+
+    /**
+     * @return whether a bid and an offer can be filled against each other at the price this market would transact them
+     *         at
+     */
+    private boolean crosses(MarketBid bid, MarketOffer offer) {
+        long unitPriceTicks = getTransactionPrice(bid, offer);
+        return unitPriceTicks <= bid.getUnitPriceTicks() && unitPriceTicks >= offer.getUnitPriceTicks();
+    }
+
+    /**
+     * Settles a trade between the best bid and the best offer, moving wealth and the marketed thing directly, then
+     * fills or removes them according to the result. Must only be called while holding the write locks of both books,
+     * neither of which may be empty.
+     *
+     * @param quantityTicks the quantity to transact, which must not exceed that of either entry
+     * @param unitPriceTicks the unit price to transact at
+     * @param trades receives the trade, whether or not it succeeded
+     * @return the result of the trade
+     */
+    protected TransactionResult settleBest(long quantityTicks, long unitPriceTicks, TradeConsumer trades) {
+        MarketBid bid = bids.peekBest();
+        MarketOffer bestOffer = offers.peekBest();
+        TransactionResult transactionResult = journalled(() -> settleFill(bid, bestOffer, quantityTicks,
+                unitPriceTicks));
+        long timeMillis = clock.millis();
+        trades.onTrade(timeMillis, bid.getBidder(), bestOffer.getSeller(), bid.getSequence(), bestOffer.getSequence(),
+                unitPriceTicks, quantityTicks, transactionResult);
+
+        /*
+         * success -> fill both offer and bid in place (removing whichever is completely filled)
+         * marketed sender not enough -> remove offer, retain bid
+         * wealth sender too poor -> remove bid, retain offer
+         * marketed recipient cannot receive -> remove bid, retain offer
+         * anything else -> remove bid, retain offer, so matching always makes progress
+         */
+
+        if (transactionResult == TransactionResult.SUCCESS && feed != null) {
+            feed.publish(MarketEventType.TRADE, true, bid.getSequence(), bestOffer.getSequence(), unitPriceTicks,
+                    quantityTicks);
+        }
+        if (candles != null) {
+            candles.onTrade(timeMillis, bid.getBidder(), bestOffer.getSeller(), bid.getSequence(),
+                    bestOffer.getSequence(), unitPriceTicks, quantityTicks, transactionResult);
+        }
+        if (transactionResult == TransactionResult.SUCCESS
+                || transactionResult == TransactionResult.MARKETED_SENDER_NOT_ENOUGH) {
+            if (transactionResult == TransactionResult.SUCCESS) {
+                offers.fillBest(quantityTicks);
+            } else {
+                removed(offers.pollBest());
+            }
+        }
 
-                // if our current highest bid offer is less than the lowest offer, no transactions can be made
-                if (bid.getUnitPrice() < bestOffer.getUnitPrice()) {
+        if (transactionResult != TransactionResult.MARKETED_SENDER_NOT_ENOUGH) {
+            if (transactionResult == TransactionResult.SUCCESS) {
+                bids.fillBest(quantityTicks);
+                unwatchIfIdle(bid.getBidder());
+            } else {
+                removed(bids.pollBest());
+            }
+        }
+
+        return transactionResult;
+    }
+
+    /**
+     * Settles a fill between a bid and an offer, journalling it and refunding the bid any improvement on the price it
+     * reserved in escrow if it succeeded.
+     *
+     * @return the result of the trade
+     */
+    private TransactionResult settleFill(MarketBid bid, MarketOffer offer, long quantityTicks, long unitPriceTicks) {
+        // with an escrow, both sides have already been paid in, so settle from it
+        Agent goodsSender = escrow != null ? escrow : offer.getSeller();
+        Agent fundsSender = escrow != null ? escrow : bid.getBidder();
+        TransactionResult result = settle(goodsSender, fundsSender, bid.getBidder(), offer.getSeller(),
+                transactionCurrency.fromTicks(quantityTicks), valueOf(Math.multiplyExact(quantityTicks,
+                        unitPriceTicks)));
+        if (result != TransactionResult.SUCCESS) {
+            return result;
+        }
+
+        if (journal != null) {
+            journal.appendFill(journalMarketId, bid.getUniqueId(), offer.getUniqueId(), unitPriceTicks, quantityTicks);
+        }
+        if (escrow != null && unitPriceTicks < bid.getUnitPriceTicks()) {
+            // the bid reserved its own price for this quantity, so refund the improvement
+            release(bid, valueOf(Math.multiplyExact(quantityTicks, bid.getUnitPriceTicks() - unitPriceTicks)));
+        }
+        return result;
+    }
+
+    /**
+     * Moves the marketed thing and then the wealth of a trade, in the same order and with the same results as executing
+     * a {@link Transaction} would, but without creating one. If the wealth cannot be moved after all, the marketed
+     * thing is moved back.
+     *
+     * @throws IllegalStateException if the marketed thing could not be moved back
+     */
+    private TransactionResult settle(Agent goodsSender, Agent fundsSender, Agent buyer, Agent seller, double quantity,
+            double value) {
+        // checked first, as the marketed thing is moved before the wealth
+        if (!fundsSender.has(transactionCurrency, value)) {
+            return TransactionResult.WEALTH_SENDER_TOO_POOR;
+        }
+
+        MarketedTransferResult marketedResult = marketed.transfer(goodsSender, buyer, quantity);
+        if (marketedResult == MarketedTransferResult.SENDER_NOT_ENOUGH) {
+            return TransactionResult.MARKETED_SENDER_NOT_ENOUGH;
+        }
+        if (marketedResult == MarketedTransferResult.RECIPIENT_CANNOT_RECEIVE) {
+            return TransactionResult.MARKETED_RECIPIENT_CANNOT_RECEIVE;
+        }
+        if (marketedResult == MarketedTransferResult.ERROR) {
+            return TransactionResult.MARKETED_ERROR;
+        }
+
+        if (fundsSender.transfer(seller, transactionCurrency, value)) {
+            return TransactionResult.SUCCESS;
+        }
+        // the wealth went between checking and moving it, so the marketed thing is moved back
+        if (payMarketed(buyer, goodsSender, quantity) != MarketedTransferResult.SUCCESS) {
+            throw new IllegalStateException("Could not move back the marketed thing of a trade which could not be paid "
+                    + "for.");
+        }
+        return TransactionResult.WEALTH_ERROR;
+    }
+
+    /**
+     * Settles the fills the books cross for as one netted batch (see {@link #setNettedSettlement(Agent)}).
+     *
+     * @return whether the batch was settled, or if not, nothing was changed
+     */
+    private boolean settleNetted(TradeConsumer trades) {
+        // walk the books best first, as the matching loop would, without changing them
+        int maxFills = journal != null ? journal.getMaxNettedFills() : Integer.MAX_VALUE;
+        List<Fill> fills = new ArrayList<>();
+        Iterator<MarketBid> bidIterator = bids.iterator();
+        Iterator<MarketOffer> offerIterator = offers.iterator();
+        MarketBid bid = null;
+        MarketOffer offer = null;
+        long bidRemaining = 0;
+        long offerRemaining = 0;
+        while (fills.size() < maxFills) {
+            if (bidRemaining == 0) {
+                if (!bidIterator.hasNext()) {
+                    break;
+                }
+                bid = bidIterator.next();
+                bidRemaining = bid.getQuantityTicks();
+            }
+            if (offerRemaining == 0) {
+                if (!offerIterator.hasNext()) {
                     break;
                 }
+                offer = offerIterator.next();
+                offerRemaining = offer.getQuantityTicks();
+            }
+            if (!crosses(bid, offer)) {
+                break;
+            }
 
-                // here, we know that the current bid-offer combination is a match on price
-                // however, they are not necessarily the same quantities
-                double transactionQuantity = Math.min(bestOffer.getQuantity(), bid.getQuantity());
-                double unitPrice = Math.min(bestOffer.getUnitPrice(), bid.getUnitPrice());
+            long quantityTicks = Math.min(bidRemaining, offerRemaining);
+            fills.add(new Fill(bid, offer, quantityTicks, getTransactionPrice(bid, offer)));
+            bidRemaining -= quantityTicks;
+            offerRemaining -= quantityTicks;
+        }
+        if (fills.isEmpty()) {
+            return true;
+        }
 
-                MarketedTransfer<T> marketedTransfer = marketed.getTransfer(bestOffer.getSeller(), bid.getBidder(), transactionQuantity);
-                WealthTransfer wealthTransfer = new WealthTransfer(bid.getBidder(), bestOffer.getSeller(), transactionCurrency, transactionQuantity * unitPrice);
-                Transaction<T> transaction = new Transaction<>(marketedTransfer, wealthTransfer);
+        Map<Agent, Position> positions = net(fills);
+        if (positions == null) {
+            return false;
+        }
+        boolean settled = journalled(() -> {
+            if (!settlePositions(positions)) {
+                return false;
+            }
+            if (journal != null) {
+                journalNetted(fills);
+            }
+            return true;
+        });
+        if (!settled) {
+            return false;
+        }
 
-                TransactionResult transactionResult = transaction.execute();
-                result.add(transaction);
+        // the fills were found best first, so each is now against the best entries
+        long timeMillis = clock.millis();
+        for (Fill fill : fills) {
+            trades.onTrade(timeMillis, fill.bid.getBidder(), fill.offer.getSeller(), fill.bid.getSequence(),
+                    fill.offer.getSequence(), fill.unitPriceTicks, fill.quantityTicks, TransactionResult.SUCCESS);
 
-                /*
-                 * success -> remove both offer and bid (and replace if not exact quantity match)
-                 * marketed sender not enough -> remove offer, retain bid
-                 * wealth sender too poor -> remove bid, retain offer
-                 * marketed recipient cannot receive -> remove bid, retain offer
-                 */
+            if (feed != null) {
+                feed.publish(MarketEventType.TRADE, true, fill.bid.getSequence(), fill.offer.getSequence(),
+                        fill.unitPriceTicks, fill.quantityTicks);
+            }
+            if (candles != null) {
+                candles.onTrade(timeMillis, fill.bid.getBidder(), fill.offer.getSeller(), fill.bid.getSequence(),
+                        fill.offer.getSequence(), fill.unitPriceTicks, fill.quantityTicks, TransactionResult.SUCCESS);
+            }
+            offers.fillBest(fill.quantityTicks);
+            bids.fillBest(fill.quantityTicks);
+            unwatchIfIdle(fill.bid.getBidder());
+        }
+        return true;
+    }
 
-                if (transactionResult == TransactionResult.SUCCESS || transactionResult == TransactionResult.MARKETED_SENDER_NOT_ENOUGH) {
-                    if (bestOffer.getQuantity() > transactionQuantity) {
-                        offerList.set(0, new MarketOffer(bestOffer.getSeller(), transactionCurrency, bestOffer.getQuantity() - transactionQuantity, bestOffer.getUnitPrice()));
-                    } else {
-                        offerList.remove(0);
-                    }
+    /**
+     * Appends a settled netted batch to the journal as one record.
+     */
+    private void journalNetted(List<Fill> fills) {
+        int count = fills.size();
+        UUID[] bidIds = new UUID[count];
+        UUID[] offerIds = new UUID[count];
+        long[] unitPriceTicks = new long[count];
+        long[] quantityTicks = new long[count];
+        for (int i = 0; i < count; i++) {
+            Fill fill = fills.get(i);
+            bidIds[i] = fill.bid.getUniqueId();
+            offerIds[i] = fill.offer.getUniqueId();
+            unitPriceTicks[i] = fill.unitPriceTicks;
+            quantityTicks[i] = fill.quantityTicks;
+        }
+        journal.appendNetted(journalMarketId, count, bidIds, offerIds, unitPriceTicks, quantityTicks);
+    }
+
+    /**
+     * Works out what each agent of a batch of fills is owed on balance, in the order the agents first appear in it.
+     *
+     * @return the position of each agent, or {@code null} if the batch is too large to net exactly
+     */
+    private static Map<Agent, Position> net(List<Fill> fills) {
+        Map<Agent, Position> positions = new LinkedHashMap<>();
+        try {
+            for (Fill fill : fills) {
+                long value = Math.multiplyExact(fill.quantityTicks, fill.unitPriceTicks);
+                Position buyer = positions.computeIfAbsent(fill.bid.getBidder(), agent -> new Position());
+                buyer.value = Math.subtractExact(buyer.value, value);
+                buyer.quantityTicks = Math.addExact(buyer.quantityTicks, fill.quantityTicks);
+                Position seller = positions.computeIfAbsent(fill.offer.getSeller(), agent -> new Position());
+                seller.value = Math.addExact(seller.value, value);
+                seller.quantityTicks = Math.subtractExact(seller.quantityTicks, fill.quantityTicks);
+            }
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        return positions;
+    }
+
+    /**
+     * Settles the positions of a netted batch through the clearing agent. Nothing is collected unless everyone owed the
+     * marketed thing can receive it, and if anything cannot be collected or paid out, everything moved so far is moved
+     * back. Whatever rounding leaves in clearing once everyone is paid goes to the last agent paid.
+     *
+     * @return whether the positions were settled, or if not, nothing was changed
+     * @throws IllegalStateException if something paid out could not be moved back, which leaves it in clearing
+     */
+    private boolean settlePositions(Map<Agent, Position> positions) {
+        for (Map.Entry<Agent, Position> entry : positions.entrySet()) {
+            if (entry.getValue().quantityTicks > 0 && !canReceive(entry.getKey(), entry.getValue().quantityTicks)) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<Agent, Position> entry : positions.entrySet()) {
+            Agent agent = entry.getKey();
+            Position position = entry.getValue();
+            if (position.value < 0) {
+                double value = valueOf(-position.value);
+                if (!agent.transfer(clearing, transactionCurrency, value)) {
+                    unwind(positions);
+                    return false;
                 }
+                position.valueMoved = value;
+            }
+            if (position.quantityTicks < 0) {
+                double quantity = transactionCurrency.fromTicks(-position.quantityTicks);
+                if (marketed.transfer(agent, clearing, quantity) != MarketedTransferResult.SUCCESS) {
+                    unwind(positions);
+                    return false;
+                }
+                position.quantityMoved = quantity;
+            }
+        }
+
+        // the marketed thing is paid out first, as only its recipients can refuse it
+        Agent lastPaid = null;
+        for (Map.Entry<Agent, Position> entry : positions.entrySet()) {
+            Position position = entry.getValue();
+            if (position.quantityTicks > 0) {
+                double quantity = transactionCurrency.fromTicks(position.quantityTicks);
+                if (payMarketed(clearing, entry.getKey(), quantity) != MarketedTransferResult.SUCCESS) {
+                    unwind(positions);
+                    return false;
+                }
+                position.quantityMoved = quantity;
+                lastPaid = entry.getKey();
+            }
+        }
+        if (lastPaid != null && marketed instanceof MarketedCurrency) {
+            sweep(((MarketedCurrency) marketed).getCurrency(), lastPaid);
+        }
+
+        lastPaid = null;
+        for (Map.Entry<Agent, Position> entry : positions.entrySet()) {
+            Position position = entry.getValue();
+            if (position.value > 0) {
+                double value = valueOf(position.value);
+                if (!pay(clearing, entry.getKey(), transactionCurrency, value)) {
+                    unwind(positions);
+                    return false;
+                }
+                position.valueMoved = value;
+                lastPaid = entry.getKey();
+            }
+        }
+        if (lastPaid != null) {
+            sweep(transactionCurrency, lastPaid);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether an agent can be given a quantity of the marketed thing, as far as can be told before the clearing
+     *         agent holds it
+     */
+    private boolean canReceive(Agent agent, long quantityTicks) {
+        double quantity = transactionCurrency.fromTicks(quantityTicks);
+        MarketedTransferResult predicted = marketed.getTransfer(clearing, agent, quantity).getPredictedResult();
+        return predicted != MarketedTransferResult.RECIPIENT_CANNOT_RECEIVE
+                && predicted != MarketedTransferResult.ERROR;
+    }
+
+    /**
+     * Moves back everything moved so far for a netted batch which could not be settled: first what was paid out, then
+     * what was paid in.
+     */
+    private void unwind(Map<Agent, Position> positions) {
+        boolean unwound = true;
+        for (Map.Entry<Agent, Position> entry : positions.entrySet()) {
+            Agent agent = entry.getKey();
+            Position position = entry.getValue();
+            if (position.quantityTicks > 0 && position.quantityMoved > 0) {
+                unwound &= marketed.transfer(agent, clearing, position.quantityMoved) == MarketedTransferResult.SUCCESS;
+            }
+            if (position.value > 0 && position.valueMoved > 0) {
+                unwound &= agent.transfer(clearing, transactionCurrency, position.valueMoved);
+            }
+        }
+        for (Map.Entry<Agent, Position> entry : positions.entrySet()) {
+            Agent agent = entry.getKey();
+            Position position = entry.getValue();
+            if (position.quantityTicks < 0 && position.quantityMoved > 0) {
+                unwound &= payMarketed(clearing, agent, position.quantityMoved) == MarketedTransferResult.SUCCESS;
+            }
+            if (position.value < 0 && position.valueMoved > 0) {
+                unwound &= pay(clearing, agent, transactionCurrency, position.valueMoved);
+            }
+            position.quantityMoved = 0;
+            position.valueMoved = 0;
+        }
+        if (!unwound) {
+            throw new IllegalStateException("Could not move back everything moved for a netted batch, so the clearing "
+                    + "agent holds what was left.");
+        }
+    }
+
+    /**
+     * Gives whatever the clearing agent still holds of a currency to an agent.
+     */
+    private void sweep(Currency currency, Agent recipient) {
+        double residue = clearing.getCurrentWealth().getAmount(currency);
+        if (residue > 0) {
+            clearing.transfer(recipient, currency, residue);
+        }
+    }
+
+    /**
+     * @return the value of a number of ticks of the unit price times ticks of the quantity
+     */
+    private double valueOf(long value) {
+        return transactionCurrency.fromTicks(value) / transactionCurrency.getTicksPerUnit();
+    }
+
+    /**
+     * Pays an amount of the transaction currency out of an agent which this market holds wealth in, such as the escrow.
+     */
+    private void pay(Agent holder, Agent recipient, double amount) {
+        pay(holder, recipient, transactionCurrency, amount);
+    }
+
+    /**
+     * Pays an amount of a currency out of an agent which this market holds wealth in.
+     *
+     * @return whether the amount, or what was left of it after rounding, was paid
+     */
+    private static boolean pay(Agent holder, Agent recipient, Currency currency, double amount) {
+        if (holder.transfer(recipient, currency, amount)) {
+            return true;
+        }
+        // only rounding can leave the holder short, in which case the remainder belongs to the recipient
+        double remainder = holder.getCurrentWealth().getAmount(currency);
+        return remainder > 0 && holder.transfer(recipient, currency, remainder);
+    }
+
+    /**
+     * Moves a quantity of the marketed thing out of an agent which this market holds it in, allowing for rounding as
+     * {@link #pay(Agent, Agent, Currency, double)} does when the marketed thing is a currency.
+     */
+    private MarketedTransferResult payMarketed(Agent holder, Agent recipient, double quantity) {
+        if (marketed instanceof MarketedCurrency) {
+            return pay(holder, recipient, ((MarketedCurrency) marketed).getCurrency(), quantity)
+                    ? MarketedTransferResult.SUCCESS : MarketedTransferResult.SENDER_NOT_ENOUGH;
+        }
+        return marketed.transfer(holder, recipient, quantity);
+    }
+
+    /**
+     * @return what an entry needs held in escrow, which is the value of a bid, worked out in ticks, or the quantity of
+     *         an offer
+     */
+    private double reservation(MarketEntry entry) {
+        return entry instanceof MarketBid ? valueOf(Math.multiplyExact(entry.getQuantityTicks(),
+                entry.getUnitPriceTicks())) : entry.getQuantity();
+    }
+
+    /**
+     * Moves an amount, of the transaction currency for a bid or of the marketed thing for an offer, from the agent of
+     * the entry into escrow. Must only be called while an escrow is set and the book of the entry is locked.
+     *
+     * @throws IllegalArgumentException if the agent does not have the amount
+     */
+    private void reserve(MarketEntry entry, double amount) {
+        if (entry instanceof MarketBid) {
+            if (!entry.getAgent().transfer(escrow, transactionCurrency, amount)) {
+                throw new IllegalArgumentException("Bidder cannot fund the bid.");
+            }
+        } else if (marketed.transfer(entry.getAgent(), escrow, amount) != MarketedTransferResult.SUCCESS) {
+            throw new IllegalArgumentException("Seller does not have the quantity offered.");
+        }
+    }
+
+    /**
+     * Moves an amount reserved by {@link #reserve(MarketEntry, double)} back to the agent of the entry.
+     */
+    private void release(MarketEntry entry, double amount) {
+        if (amount <= 0) {
+            return;
+        }
+        if (entry instanceof MarketBid) {
+            pay(escrow, entry.getAgent(), amount);
+        } else {
+            marketed.transfer(escrow, entry.getAgent(), amount);
+        }
+    }
+
+    /**
+     * Records that an entry has left the book without being filled, journalling its removal, refunding everything still
+     * reserved for it if an escrow is set and otherwise no longer watching a bidder with no bids left.
+     */
+    private void removed(MarketEntry entry) {
+        if (escrow == null) {
+            if (journal != null) {
+                journal.appendCancel(journalMarketId, entry.getUniqueId());
+            }
+            if (entry instanceof MarketBid) {
+                unwatchIfIdle(entry.getAgent());
+            }
+            return;
+        }
+        journalled(() -> {
+            if (journal != null) {
+                journal.appendCancel(journalMarketId, entry.getUniqueId());
+            }
+            release(entry, reservation(entry));
+            return null;
+        });
+    }
+
+    /**
+     * Makes a change which moves wealth and journals it as one step of the journal, if this market has one, so the
+     * records of markets sharing a journal are in the order their wealth moved and replay the same way. Must only be
+     * called while holding a book lock, which is always taken before the journal's.
+     */
+    private <R> R journalled(Supplier<R> change) {
+        Journal journal = this.journal;
+        return journal == null ? change.get() : journal.whileLocked(change);
+    }
 
-                if (transactionResult == TransactionResult.SUCCESS || transactionResult == TransactionResult.WEALTH_SENDER_TOO_POOR
-                        || transactionResult == TransactionResult.MARKETED_RECIPIENT_CANNOT_RECEIVE) {
-                    if (bid.getQuantity() > transactionQuantity) {
-                        bidList.set(i, new MarketBid(bid.getBidder(), transactionCurrency, bid.getQuantity() - transactionQuantity, bid.getUnitPrice()));
-                    } else {
-                        bidList.remove(i);
-                        i--;
+    private void journalAmend(UUID uniqueId, long quantityTicks, long unitPriceTicks) {
+        if (journal != null) {
+            journal.appendAmend(journalMarketId, uniqueId, quantityTicks, unitPriceTicks);
+        }
+    }
+
+    /**
+     * Puts an entry recreated from a snapshot back into its book as it was, without matching it, journalling it or
+     * reserving anything for it. This and the other methods for restoring a market must only be used before the market
+     * is otherwise used, and while it has no journal.
+     *
+     * @param entry the entry to restore, recreated with its sequence in this market
+     * @throws IllegalArgumentException if the entry is in a different currency or is already resting in this market
+     */
+    public final void restoreEntry(MarketEntry entry) {
+        if (!entry.getCurrency().equals(transactionCurrency)) {
+            throw new IllegalArgumentException("Cannot restore an entry to a market with a different transaction "
+                    + "currency.");
+        }
+
+        lockBooks();
+        try {
+            checkRestorable();
+            if (entry instanceof MarketOffer) {
+                offers.add((MarketOffer) entry);
+            } else {
+                bids.add((MarketBid) entry);
+                Agent bidder = entry.getAgent();
+                if (escrow == null) {
+                    if (watchedBidders.add(bidder)) {
+                        bidder.addWealthListener(fundingListener);
                     }
+                    biddersToCheck.add(bidder);
                 }
             }
+            restoreLastSequence(entry.getSequence());
         } finally {
-            oWriteLock.unlock();
-            bWriteLock.unlock();
+            unlockBooks();
         }
+    }
 
-        return result;
+    /**
+     * Makes sure the next sequence this market gives out is after the given one, so amendments replayed after restoring
+     * entries are given the same sequences as they originally were.
+     *
+     * @param lastSequence the last sequence the market had given out, as returned by {@link #getLastSequence()}
+     */
+    public final void restoreLastSequence(long lastSequence) {
+        sequence.accumulateAndGet(lastSequence, Math::max);
+    }
+
+    /**
+     * Replays the addition of an entry read from a journal, reserving it in escrow if an escrow is set but otherwise as
+     * {@link #restoreEntry(MarketEntry)}.
+     *
+     * @param entry the entry added, recreated with the sequence it was given
+     * @throws IllegalArgumentException if the entry cannot be restored or reserved
+     */
+    public final void replayAdd(MarketEntry entry) {
+        lockBooks();
+        try {
+            checkRestorable();
+            if (escrow == null) {
+                restoreEntry(entry);
+                return;
+            }
+            reserve(entry, reservation(entry));
+            try {
+                restoreEntry(entry);
+            } catch (RuntimeException e) {
+                release(entry, reservation(entry));
+                throw e;
+            }
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Replays the removal of an entry read from a journal, refunding whatever it had reserved if an escrow is set.
+     *
+     * @param uniqueId the unique id of the entry
+     * @return whether the entry was resting in this market
+     */
+    public final boolean replayCancel(UUID uniqueId) {
+        lockBooks();
+        try {
+            checkRestorable();
+            MarketEntry entry = bids.remove(uniqueId);
+            if (entry == null) {
+                entry = offers.remove(uniqueId);
+            }
+            if (entry == null) {
+                return false;
+            }
+            removed(entry);
+            return true;
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Replays an amendment read from a journal, as {@link #amend(UUID, double, double)} would make it but without
+     * matching.
+     *
+     * @param uniqueId the unique id of the entry
+     * @param quantityTicks the new unfilled quantity, in ticks
+     * @param unitPriceTicks the new unit price, in ticks
+     * @return whether the entry was resting in this market
+     */
+    public final boolean replayAmend(UUID uniqueId, long quantityTicks, long unitPriceTicks) {
+        lockBooks();
+        try {
+            checkRestorable();
+            return amendEntry(uniqueId, transactionCurrency.fromTicks(quantityTicks),
+                    transactionCurrency.fromTicks(unitPriceTicks)) != null;
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Replays a fill read from a journal, settling it between the agents of the bid and the offer as it originally was
+     * and then filling both entries in place.
+     *
+     * @param bidId the unique id of the bid
+     * @param offerId the unique id of the offer
+     * @param unitPriceTicks the unit price of the fill, in ticks
+     * @param quantityTicks the quantity of the fill, in ticks
+     * @throws IllegalStateException if either entry is not resting in this market, or the fill cannot be settled, which
+     *         means the market was not restored to the state the fill was made in
+     */
+    public final void replayFill(UUID bidId, UUID offerId, long unitPriceTicks, long quantityTicks) {
+        lockBooks();
+        try {
+            checkRestorable();
+            MarketBid bid = bids.get(bidId);
+            MarketOffer offer = offers.get(offerId);
+            if (bid == null || offer == null) {
+                throw new IllegalStateException("Cannot replay a fill of an entry which is not resting in the market.");
+            }
+
+            TransactionResult result = settleFill(bid, offer, quantityTicks, unitPriceTicks);
+            if (result != TransactionResult.SUCCESS) {
+                throw new IllegalStateException("Could not settle a replayed fill: " + result + ".");
+            }
+
+            fill(bids, bid, quantityTicks);
+            fill(offers, offer, quantityTicks);
+            unwatchIfIdle(bid.getBidder());
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    /**
+     * Replays a netted batch read from a journal, settling the batch as a whole and then filling every entry in place.
+     *
+     * @param bidIds the unique id of the bid of each fill, in the order the fills were made
+     * @param offerIds the unique id of the offer of each fill
+     * @param unitPriceTicks the unit price of each fill, in ticks
+     * @param quantityTicks the quantity of each fill, in ticks
+     * @throws IllegalStateException if an entry is not resting in this market or the batch cannot be settled
+     */
+    public final void replayNetted(UUID[] bidIds, UUID[] offerIds, long[] unitPriceTicks, long[] quantityTicks) {
+        lockBooks();
+        try {
+            checkRestorable();
+            if (clearing == null) {
+                throw new IllegalStateException("Cannot replay a netted batch without netted settlement.");
+            }
+            List<Fill> fills = new ArrayList<>(bidIds.length);
+            for (int i = 0; i < bidIds.length; i++) {
+                MarketBid bid = bids.get(bidIds[i]);
+                MarketOffer offer = offers.get(offerIds[i]);
+                if (bid == null || offer == null) {
+                    throw new IllegalStateException("Cannot replay a fill of an entry which is not resting in the "
+                            + "market.");
+                }
+                fills.add(new Fill(bid, offer, quantityTicks[i], unitPriceTicks[i]));
+            }
+
+            Map<Agent, Position> positions = net(fills);
+            if (positions == null || !settlePositions(positions)) {
+                throw new IllegalStateException("Could not settle a replayed netted batch.");
+            }
+            for (Fill fill : fills) {
+                fill(bids, fill.bid, fill.quantityTicks);
+                fill(offers, fill.offer, fill.quantityTicks);
+                unwatchIfIdle(fill.bid.getBidder());
+            }
+        } finally {
+            unlockBooks();
+        }
+    }
+
+    private void checkRestorable() {
+        if (journal != null) {
+            throw new IllegalStateException("Cannot restore a market while it has a journal.");
+        }
+    }
+
+    /**
+     * Fills an entry which is not necessarily the best in its book, removing it once it is completely filled.
+     */
+    private static <E extends MarketEntry> void fill(OrderBook<E> book, E entry, long quantityTicks) {
+        if (quantityTicks >= entry.getQuantityTicks()) {
+            book.remove(entry.getUniqueId());
+        } else {
+            book.reduce(entry.getUniqueId(), entry.getQuantityTicks() - quantityTicks);
+        }
+    }
+
+    /**
+     * Gets the unit price a match between the given bid and offer should be transacted at.
+     *
+     * @param bid the bid being matched
+     * @param offer the offer being matched
+     * @return the unit price of the transaction in ticks, which by default is the lower of the two prices
+     */
+    protected long getTransactionPrice(MarketBid bid, MarketOffer offer) {
+        return Math.min(offer.getUnitPriceTicks(), bid.getUnitPriceTicks());
+    }
+
+    /**
+     * Acquires the write locks of both books. Subclasses must always acquire both through this method so the locks are
+     * taken in a consistent order.
+     */
+    protected void lockBooks() {
+        bidsLock.writeLock().lock();
+        offersLock.writeLock().lock();
+    }
+
+    protected void unlockBooks() {
+        offersLock.writeLock().unlock();
+        bidsLock.writeLock().unlock();
+    }
+
+    /**
+     * What an agent is owed on balance by a netted batch, and what has been moved for it so far.
+     */
+    private static final class Position {
+        // the value owed, in ticks of the unit price times ticks of the quantity, and the quantity owed, in ticks
+        private long value;
+        private long quantityTicks;
+        // what has been paid in or out for the agent, so it can be moved back
+        private double valueMoved;
+        private double quantityMoved;
+    }
+
+    /**
+     * A fill found while working out a netted batch.
+     */
+    private static final class Fill {
+        private final MarketBid bid;
+        private final MarketOffer offer;
+        private final long quantityTicks;
+        private final long unitPriceTicks;
+
+        private Fill(MarketBid bid, MarketOffer offer, long quantityTicks, long unitPriceTicks) {
+            this.bid = bid;
+            this.offer = offer;
+            this.quantityTicks = quantityTicks;
+            this.unitPriceTicks = unitPriceTicks;
+        }
     }
 }
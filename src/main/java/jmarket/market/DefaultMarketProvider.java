@@ -0,0 +1,236 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.Marketed;
+import jmarket.MarketedType;
+import jmarket.Transaction;
+import jmarket.access.AccessRestrictor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Default implementation of a market provider, which updates its markets in parallel. Markets sharing a participant are
+ * grouped and updated one after another in the order they were added, so the outcome does not depend on scheduling.
+ * <p>
+ * Thread-safe.
+ */
+public class DefaultMarketProvider implements MarketProvider {
+    private final Currency transactionCurrency;
+    private final Set<MarketedType> providedTypes;
+    private final ForkJoinPool pool;
+
+    private final ConcurrentMap<Marketed<?>, Market<?>> markets = new ConcurrentHashMap<>();
+    // the markets in the order they were added, which is the order markets sharing participants are updated in
+    private final List<Market<?>> marketOrder = new CopyOnWriteArrayList<>();
+    private final List<AccessRestrictor<MarketProvider, Agent>> accessRestrictors = new CopyOnWriteArrayList<>();
+
+    public DefaultMarketProvider(Currency transactionCurrency, Collection<MarketedType> providedTypes) {
+        this(transactionCurrency, providedTypes, ForkJoinPool.commonPool());
+    }
+
+    public DefaultMarketProvider(Currency transactionCurrency, Collection<MarketedType> providedTypes,
+            ForkJoinPool pool) {
+        if (transactionCurrency == null) {
+            throw new IllegalArgumentException("Market provider must have a transaction currency.");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Market provider must have a pool to update markets in.");
+        }
+
+        this.transactionCurrency = transactionCurrency;
+        this.providedTypes = providedTypes.isEmpty()
+                ? EnumSet.noneOf(MarketedType.class) : EnumSet.copyOf(providedTypes);
+        this.pool = pool;
+    }
+
+    @Override
+    public Currency getTransactionCurrency() {
+        return transactionCurrency;
+    }
+
+    /**
+     * Gets the market for the given marketed thing, creating a {@link DefaultMarket} for it if there is not one
+     * already.
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public <T extends Marketed> Market<T> getMarket(T marketed) {
+        if (!canProvide(marketed.getType())) {
+            throw new IllegalArgumentException("Cannot provide a market for " + marketed.getType() + ".");
+        }
+
+        // the provider interface only bounds the marketed type by the raw type, so the market is created raw
+        return (Market<T>) markets.computeIfAbsent(marketed, m -> {
+            Market<?> market = new DefaultMarket(m, transactionCurrency);
+            marketOrder.add(market);
+            return market;
+        });
+    }
+
+    /**
+     * Adds an existing market to this provider, for instance one which is not a {@link DefaultMarket}.
+     *
+     * @param market the market to add
+     * @throws IllegalArgumentException if there is already a market for the same marketed thing
+     */
+    public void addMarket(Market<?> market) {
+        if (!market.getTransactionCurrency().equals(transactionCurrency)) {
+            throw new IllegalArgumentException("Cannot add a market with a different transaction currency.");
+        }
+        if (markets.putIfAbsent(market.getMarketed(), market) != null) {
+            throw new IllegalArgumentException("There is already a market for " + market.getMarketed().getName() + ".");
+        }
+        marketOrder.add(market);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean marketExists(Marketed marketed) {
+        return markets.containsKey(marketed);
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Map<Market, Set<Transaction>> updateMarkets() {
+        List<Market<?>> toUpdate = new ArrayList<>(marketOrder);
+        List<UpdateTask> tasks = new ArrayList<>();
+        for (List<Market<?>> group : groupByParticipants(toUpdate)) {
+            tasks.add(new UpdateTask(group));
+        }
+
+        Map<Market<?>, Set<? extends Transaction<?>>> updated = new HashMap<>();
+        if (tasks.size() == 1) {
+            // no point handing a single group to the pool
+            updated.putAll(tasks.get(0).compute());
+        } else {
+            pool.invoke(ForkJoinTask.adapt(() -> {
+                ForkJoinTask.invokeAll(tasks);
+            }));
+            tasks.forEach(task -> updated.putAll(task.join()));
+        }
+        // the provider interface returns raw types
+        return (Map) updated;
+    }
+
+    @Override
+    public boolean canProvide(MarketedType marketedType) {
+        return providedTypes.contains(marketedType);
+    }
+
+    public void addAccessRestrictor(AccessRestrictor<MarketProvider, Agent> restrictor) {
+        accessRestrictors.add(restrictor);
+    }
+
+    @Override
+    public boolean canAccess(Agent participant) {
+        for (AccessRestrictor<MarketProvider, Agent> restrictor : accessRestrictors) {
+            if (restrictor.preventsAccess(this, participant)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits the given markets into groups such that no two groups share a participant, using a union-find over the
+     * markets each agent participates in. The order of markets within each group is preserved.
+     */
+    private static List<List<Market<?>>> groupByParticipants(List<Market<?>> toGroup) {
+        int[] parents = new int[toGroup.size()];
+        Map<Agent, Integer> firstMarkets = new HashMap<>();
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = i;
+            int market = i;
+            toGroup.get(i).forEachParticipant(participant -> {
+                Integer first = firstMarkets.putIfAbsent(participant, market);
+                if (first != null) {
+                    union(parents, first, market);
+                }
+            });
+        }
+
+        Map<Integer, List<Market<?>>> groups = new HashMap<>();
+        List<List<Market<?>>> result = new ArrayList<>();
+        for (int i = 0; i < parents.length; i++) {
+            List<Market<?>> group = groups.get(find(parents, i));
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(find(parents, i), group);
+                result.add(group);
+            }
+            group.add(toGroup.get(i));
+        }
+        return result;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            // halve the path as we go so later finds are quicker
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        if (rootA != rootB) {
+            parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /**
+     * Updates a group of markets sharing participants, one after another.
+     */
+    private static final class UpdateTask extends RecursiveTask<Map<Market<?>, Set<? extends Transaction<?>>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Market<?>> group;
+
+        private UpdateTask(List<Market<?>> group) {
+            this.group = group;
+        }
+
+        @Override
+        protected Map<Market<?>, Set<? extends Transaction<?>>> compute() {
+            Map<Market<?>, Set<? extends Transaction<?>>> result = new HashMap<>();
+            for (Market<?> market : group) {
+                result.put(market, market.update());
+            }
+            return result;
+        }
+    }
+}
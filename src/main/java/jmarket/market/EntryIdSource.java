@@ -0,0 +1,66 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A source of unique ids for market entries.
+ */
+@FunctionalInterface
+public interface EntryIdSource {
+    /**
+     * Generates ids from a counter behind a prefix chosen randomly once, so generating an id is a single atomic
+     * increment. Used by default when an entry is created without an id source.
+     */
+    EntryIdSource SEQUENTIAL = sequential();
+
+    /**
+     * Generates random ids with {@link UUID#randomUUID()}, which is considerably slower than a sequential source but
+     * does not reveal how many entries have been made.
+     */
+    EntryIdSource RANDOM = UUID::randomUUID;
+
+    UUID nextUniqueId();
+
+    /**
+     * Creates a new source of sequential ids, with its own randomly chosen prefix.
+     *
+     * @return a new sequential id source
+     */
+    static EntryIdSource sequential() {
+        return sequential(UUID.randomUUID().getMostSignificantBits());
+    }
+
+    /**
+     * Creates a new source of sequential ids with the given prefix. Sources with the same prefix generate the same ids.
+     * Ids are marked as version 8 (custom) UUIDs with the IETF variant, so they never equal a random version 4 id.
+     *
+     * @param prefix the most significant bits of every id generated, except for the four version bits
+     * @return a new sequential id source
+     */
+    static EntryIdSource sequential(long prefix) {
+        long mostSigBits = (prefix & ~0xF000L) | 0x8000L;
+        AtomicLong counter = new AtomicLong();
+        // the counter fills the 62 bits left after the variant
+        return () -> new UUID(mostSigBits, (counter.incrementAndGet() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+    }
+}
@@ -19,12 +19,16 @@
  */
 package jmarket.market;
 
+import jmarket.Agent;
 import jmarket.Currency;
 import jmarket.Marketed;
 import jmarket.Transaction;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
 
 /**
  * Represents a market for one good, service, commodity, currency or other.
@@ -42,6 +46,91 @@ public interface Market<T extends Marketed> {
 
     void addOffer(MarketOffer offer);
 
+    /**
+     * @return the unit price of the best resting bid, or {@link Double#NaN} if there are no bids
+     */
+    double getBestBidPrice();
+
+    /**
+     * @return the unit price of the best resting offer, or {@link Double#NaN} if there are no offers
+     */
+    double getBestOfferPrice();
+
+    /**
+     * @return the total unfilled quantity of every resting bid
+     */
+    double getBidDepth();
+
+    /**
+     * @return the total unfilled quantity of every resting offer
+     */
+    double getOfferDepth();
+
+    /**
+     * Copies the best price levels of the resting bids into the given arrays, from the best level to the worst. Prices
+     * and quantities are in ticks of the transaction currency, and the quantity of a level is the total unfilled
+     * quantity of every bid at that price.
+     *
+     * @param prices the array to copy the price of each level into
+     * @param quantities the array to copy the quantity of each level into
+     * @return the number of levels copied, which is at most the length of the shorter array
+     */
+    int getBidLevels(long[] prices, long[] quantities);
+
+    /**
+     * Copies the best price levels of the resting offers into the given arrays, as {@link #getBidLevels(long[],
+     * long[])} does for bids.
+     *
+     * @param prices the array to copy the price of each level into
+     * @param quantities the array to copy the quantity of each level into
+     * @return the number of levels copied, which is at most the length of the shorter array
+     */
+    int getOfferLevels(long[] prices, long[] quantities);
+
+    /**
+     * Withdraws a resting bid or offer from this market.
+     *
+     * @param uniqueId the unique id of the bid or offer
+     * @return whether a resting bid or offer with the given unique id was found and withdrawn
+     */
+    boolean cancel(UUID uniqueId);
+
+    /**
+     * Changes the unfilled quantity and unit price of a resting bid or offer. An amendment which only reduces the
+     * quantity keeps the priority of the entry. Any other amendment replaces it with an entry with the same unique id
+     * which is queued behind every other entry at its new price.
+     *
+     * @param uniqueId the unique id of the bid or offer
+     * @param quantity the new unfilled quantity, which must be positive
+     * @param unitPrice the new unit price
+     * @return whether a resting bid or offer with the given unique id was found and amended
+     */
+    boolean amend(UUID uniqueId, double quantity, double unitPrice);
+
+    /**
+     * Gets every agent with a bid or offer resting in this market, and any other agent an update moves wealth through.
+     * Markets with no participants in common can be updated at the same time without competing for the wealth of any
+     * agent.
+     *
+     * @return a new set of the agents participating in this market
+     */
+    default Set<Agent> getParticipants() {
+        Set<Agent> result = new HashSet<>();
+        forEachParticipant(result::add);
+        return result;
+    }
+
+    /**
+     * Passes every agent participating in this market to the given consumer, as {@link #getParticipants()} would
+     * return them but without collecting them. An agent may be passed more than once.
+     *
+     * @param consumer the consumer to pass each participant to, which must not call back into this market
+     */
+    default void forEachParticipant(Consumer<? super Agent> consumer) {
+        getBids().forEach(bid -> consumer.accept(bid.getAgent()));
+        getOffers().forEach(offer -> consumer.accept(offer.getAgent()));
+    }
+
     /**
      * Attempts to match existing bids and offers, then executes matched transactions. Note that the returned
      * transactions have already been executed, although may not have succeeded.
@@ -51,4 +140,25 @@ public interface Market<T extends Marketed> {
      * @return a set of all transactions made in the update
      */
     Set<Transaction<T>> update();
+
+    /**
+     * Updates the market as {@link #update()} does, but reports each trade made to the given consumer rather than
+     * collecting transactions. By default the transactions made by {@link #update()} are reported, timed at the end of
+     * the update and with sequences of 0 as the entries they were made between are not known, and implementations
+     * should override this to report trades without creating them.
+     *
+     * @param trades the consumer to report each trade to
+     */
+    default void update(TradeConsumer trades) {
+        Currency currency = getTransactionCurrency();
+        Set<Transaction<T>> transactions = update();
+        long timeMillis = System.currentTimeMillis();
+        for (Transaction<T> transaction : transactions) {
+            double quantity = transaction.getQuantity();
+            long unitPriceTicks = quantity == 0 ? 0 : currency.toTicks(transaction.getValue() / quantity);
+            trades.onTrade(timeMillis, transaction.getMarketedComponent().getRecipient(),
+                    transaction.getMarketedComponent().getSender(), 0, 0, unitPriceTicks, currency.toTicks(quantity),
+                    transaction.getState());
+        }
+    }
 }
@@ -22,70 +22,74 @@ package jmarket.market;
 import jmarket.Agent;
 import jmarket.Currency;
 
-import java.util.Date;
-import java.util.Objects;
+import java.time.Clock;
 import java.util.UUID;
 
 /**
  * Represents a bid made to buy a quantity of something at a certain unit price.
  */
-public final class MarketBid implements MarketEntry, Comparable<MarketBid> {
-    private final Agent bidder;
-    private final Currency bidCurrency;
-    private final double quantity;
-    private final double unitPrice;
-
-    private final UUID uniqueId;
-    private final Date submissionTime;
-
+public final class MarketBid extends AbstractMarketEntry implements Comparable<MarketBid> {
+    /**
+     * @throws IllegalArgumentException if the quantity is less than one tick of the currency
+     */
     public MarketBid(Agent bidder, Currency bidCurrency, double quantity, double unitPrice) {
-        this(bidder, bidCurrency, quantity, unitPrice, UUID.randomUUID(), new Date());
-    }
-
-    private MarketBid(Agent bidder, Currency bidCurrency, double quantity, double unitPrice, UUID uniqueId, Date submissionTime) {
-        this.bidder = bidder;
-        this.bidCurrency = bidCurrency;
-        this.quantity = quantity;
-        this.unitPrice = unitPrice;
-        this.uniqueId = uniqueId;
-        this.submissionTime = submissionTime;
+        this(bidder, bidCurrency, quantity, unitPrice, EntryIdSource.SEQUENTIAL);
     }
 
-    public Agent getBidder() {
-        return bidder;
-    }
-
-    @Override
-    public double getQuantity() {
-        return quantity;
+    public MarketBid(Agent bidder, Currency bidCurrency, double quantity, double unitPrice, EntryIdSource idSource) {
+        this(bidder, bidCurrency, bidCurrency.toTicks(quantity), bidCurrency.toTicks(unitPrice),
+                idSource.nextUniqueId(), System.currentTimeMillis());
     }
 
-    @Override
-    public double getUnitPrice() {
-        return unitPrice;
+    /**
+     * Creates a bid with its submission time read from the given clock rather than the system clock, so that with a
+     * deterministic id source the same bid is created every time recorded order flow is replayed.
+     */
+    public MarketBid(Agent bidder, Currency bidCurrency, double quantity, double unitPrice, EntryIdSource idSource,
+            Clock clock) {
+        this(bidder, bidCurrency, bidCurrency.toTicks(quantity), bidCurrency.toTicks(unitPrice),
+                idSource.nextUniqueId(), clock.millis());
     }
 
-    @Override
-    public Date getSubmissionTime() {
-        return submissionTime;
+    private MarketBid(Agent bidder, Currency bidCurrency, long quantityTicks, long unitPriceTicks, UUID uniqueId,
+            long submissionTime) {
+        super(bidder, bidCurrency, quantityTicks, unitPriceTicks, uniqueId, submissionTime);
     }
 
-    public UUID getUniqueId() {
-        return uniqueId;
+    /**
+     * Recreates a bid as it was while resting in a market, such as from a snapshot or a journal, so that it can be put
+     * back into a market by {@link DefaultMarket#restoreEntry(MarketEntry)}.
+     *
+     * @param quantityTicks the quantity the bid was made for, in ticks
+     * @param remainingQuantityTicks the quantity of the bid which had not been filled, in ticks
+     * @param unitPriceTicks the unit price of the bid, in ticks
+     * @param uniqueId the unique id of the bid
+     * @param submissionTime the time the bid was made, in milliseconds since the epoch
+     * @param sequence the position of the bid in the arrival order of its market
+     * @return the recreated bid
+     */
+    public static MarketBid restore(Agent bidder, Currency bidCurrency, long quantityTicks, long remainingQuantityTicks,
+            long unitPriceTicks, UUID uniqueId, long submissionTime, long sequence) {
+        MarketBid bid = new MarketBid(bidder, bidCurrency, quantityTicks, unitPriceTicks, uniqueId, submissionTime);
+        bid.restoreState(remainingQuantityTicks, sequence);
+        return bid;
     }
 
-    @Override
-    public Currency getCurrency() {
-        return bidCurrency;
+    public Agent getBidder() {
+        return getAgent();
     }
 
-    @Override
-    public double getValue() {
-        return quantity * unitPrice;
+    /**
+     * Creates an entry with the same unique id and submission time as this one, but a different quantity and unit
+     * price, to replace this one in a market.
+     */
+    MarketBid amended(long quantityTicks, long unitPriceTicks) {
+        return new MarketBid(getAgent(), getCurrency(), quantityTicks, unitPriceTicks, getUniqueId(),
+                getSubmissionTimeMillis());
     }
 
     /**
-     * Compares the unit price (and, as a tie-breaker, submission time) of this bid to another. Note that higher unit
+     * Compares the unit price (and, as a tie-breaker, arrival order) of this bid to another. Note that higher unit
      * prices mean a bid is 'better' and therefore if this bid's unit price is higher then a positive value will be
      * returned.
      *
@@ -95,53 +99,12 @@ public final class MarketBid implements MarketEntry, Comparable<MarketBid> {
     @Override
     public int compareTo(MarketBid o) {
         // note: for a bid we want the highest unit prices to produce the highest values
-        if (!o.bidCurrency.equals(bidCurrency)) {
+        if (!o.getCurrency().equals(getCurrency())) {
             throw new IllegalArgumentException("Cannot compare bids in different currencies.");
         }
-        if (equals(o)) {
-            return 0;
-        }
-
-        double significantUnitPrice = bidCurrency.getSignificantComponent(unitPrice);
-        double oSignificantUnitPrice = o.bidCurrency.getSignificantComponent(unitPrice);
-
-        int significantDecimals = bidCurrency.getSignificantDecimals();
-        double unitPriceDiff = significantUnitPrice - oSignificantUnitPrice;
-
-        // the integer to be returned (barring tie-break scenario)
-        // note: this will always be a multiple of 10 as 1 is added to significantDecimals in the power
-        // multiples of 10 are so tie-breaks (+/-1) can be distinguished from price being slightly better
-        int comparison = (int) (unitPriceDiff * Math.pow(10, significantDecimals + 1));
-
-        if (comparison == 0) {
-            // as a tie-breaker, check which offer was submitted first
-            // an offer submitted earlier is prioritised over one submitted later
-            if (submissionTime.before(o.submissionTime)) {
-                comparison += 1;
-            } else if (submissionTime.after(o.submissionTime)) {
-                comparison -= 1;
-            }
-        }
 
-        return comparison;
-    }
-
-    // comparing unique ids should be enough to compare bid equality
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) {
-            return true;
-        }
-        if (!(o instanceof MarketBid)) {
-            return false;
-        }
-        MarketBid bid = (MarketBid) o;
-        return uniqueId.equals(bid.uniqueId);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(uniqueId);
+        int comparison = Long.compare(getUnitPriceTicks(), o.getUnitPriceTicks());
+        // as a tie-breaker, a bid which arrived earlier is prioritised over one which arrived later
+        return comparison != 0 ? comparison : compareArrival(o);
     }
 }
@@ -19,14 +19,57 @@
  */
 package jmarket.market;
 
+import jmarket.Agent;
 import jmarket.Valuable;
 
 import java.util.Date;
+import java.util.UUID;
 
 public interface MarketEntry extends Valuable {
+    /**
+     * @return the agent who made this entry, whether they are the bidder or the seller
+     */
+    Agent getAgent();
+
+    /**
+     * @return the quantity of this entry which has not been filled yet
+     */
     double getQuantity();
 
     double getUnitPrice();
 
+    /**
+     * @return the unfilled quantity of this entry, in ticks of its currency
+     * @see jmarket.Currency#toTicks(double)
+     */
+    long getQuantityTicks();
+
+    /**
+     * @return the unit price of this entry, in ticks of its currency
+     * @see jmarket.Currency#toTicks(double)
+     */
+    long getUnitPriceTicks();
+
     Date getSubmissionTime();
+
+    /**
+     * @return the time this entry was submitted, in milliseconds since the epoch
+     */
+    long getSubmissionTimeMillis();
+
+    /**
+     * @return the quantity this entry was made for, including any quantity which has since been filled, in ticks of its
+     *         currency
+     */
+    long getInitialQuantityTicks();
+
+    UUID getUniqueId();
+
+    /**
+     * Gets the position of this entry in the arrival order of the market it was added to. Entries which arrived at a
+     * market earlier have lower sequences, even if they were submitted within the same millisecond.
+     *
+     * @return the sequence of this entry, or 0 if it has not been added to a market
+     */
+    long getSequence();
 }
@@ -22,70 +22,76 @@ package jmarket.market;
 import jmarket.Agent;
 import jmarket.Currency;
 
-import java.util.Date;
-import java.util.Objects;
+import java.time.Clock;
 import java.util.UUID;
 
 /**
  * Represents an offer made to sell a quantity of something at a certain unit price.
  */
-public final class MarketOffer implements MarketEntry, Comparable<MarketOffer> {
-    private final Agent seller;
-    private final Currency offerCurrency;
-    private final double quantity;
-    private final double unitPrice;
-
-    private final UUID uniqueId;
-    private final Date submissionTime;
-
+public final class MarketOffer extends AbstractMarketEntry implements Comparable<MarketOffer> {
+    /**
+     * @throws IllegalArgumentException if the quantity is less than one tick of the currency
+     */
     public MarketOffer(Agent seller, Currency offerCurrency, double quantity, double unitPrice) {
-        this(seller, offerCurrency, quantity, unitPrice, UUID.randomUUID(), new Date());
-    }
-
-    private MarketOffer(Agent seller, Currency offerCurrency, double quantity, double unitPrice, UUID uniqueId, Date submissionTime) {
-        this.seller = seller;
-        this.offerCurrency = offerCurrency;
-        this.quantity = quantity;
-        this.unitPrice = unitPrice;
-        this.uniqueId = uniqueId;
-        this.submissionTime = submissionTime;
+        this(seller, offerCurrency, quantity, unitPrice, EntryIdSource.SEQUENTIAL);
     }
 
-    public Agent getSeller() {
-        return seller;
-    }
-
-    @Override
-    public double getQuantity() {
-        return quantity;
+    public MarketOffer(Agent seller, Currency offerCurrency, double quantity, double unitPrice,
+            EntryIdSource idSource) {
+        this(seller, offerCurrency, offerCurrency.toTicks(quantity), offerCurrency.toTicks(unitPrice),
+                idSource.nextUniqueId(), System.currentTimeMillis());
     }
 
-    @Override
-    public double getUnitPrice() {
-        return unitPrice;
+    /**
+     * Creates an offer with its submission time read from the given clock rather than the system clock, so that with a
+     * deterministic id source the same offer is created every time recorded order flow is replayed.
+     */
+    public MarketOffer(Agent seller, Currency offerCurrency, double quantity, double unitPrice,
+            EntryIdSource idSource, Clock clock) {
+        this(seller, offerCurrency, offerCurrency.toTicks(quantity), offerCurrency.toTicks(unitPrice),
+                idSource.nextUniqueId(), clock.millis());
     }
 
-    @Override
-    public Date getSubmissionTime() {
-        return submissionTime;
+    private MarketOffer(Agent seller, Currency offerCurrency, long quantityTicks, long unitPriceTicks, UUID uniqueId,
+            long submissionTime) {
+        super(seller, offerCurrency, quantityTicks, unitPriceTicks, uniqueId, submissionTime);
     }
 
-    public UUID getUniqueId() {
-        return uniqueId;
+    /**
+     * Recreates an offer as it was while resting in a market, such as from a snapshot or a journal, so that it can be
+     * put back into a market by {@link DefaultMarket#restoreEntry(MarketEntry)}.
+     *
+     * @param quantityTicks the quantity the offer was made for, in ticks
+     * @param remainingQuantityTicks the quantity of the offer which had not been filled, in ticks
+     * @param unitPriceTicks the unit price of the offer, in ticks
+     * @param uniqueId the unique id of the offer
+     * @param submissionTime the time the offer was made, in milliseconds since the epoch
+     * @param sequence the position of the offer in the arrival order of its market
+     * @return the recreated offer
+     */
+    public static MarketOffer restore(Agent seller, Currency offerCurrency, long quantityTicks,
+            long remainingQuantityTicks, long unitPriceTicks, UUID uniqueId, long submissionTime, long sequence) {
+        MarketOffer offer = new MarketOffer(seller, offerCurrency, quantityTicks, unitPriceTicks, uniqueId,
+                submissionTime);
+        offer.restoreState(remainingQuantityTicks, sequence);
+        return offer;
     }
 
-    @Override
-    public Currency getCurrency() {
-        return offerCurrency;
+    public Agent getSeller() {
+        return getAgent();
     }
 
-    @Override
-    public double getValue() {
-        return quantity * unitPrice;
+    /**
+     * Creates an entry with the same unique id and submission time as this one, but a different quantity and unit
+     * price, to replace this one in a market.
+     */
+    MarketOffer amended(long quantityTicks, long unitPriceTicks) {
+        return new MarketOffer(getAgent(), getCurrency(), quantityTicks, unitPriceTicks, getUniqueId(),
+                getSubmissionTimeMillis());
     }
 
     /**
-     * Compares the unit price (and, as a tie-breaker, submission time) of this offer to another. Note that lower unit
+     * Compares the unit price (and, as a tie-breaker, arrival order) of this offer to another. Note that lower unit
      * prices mean an offer is 'better' and therefore if this offer's unit price is lower then a positive value will be
      * returned.
      *
@@ -95,53 +101,12 @@ public final class MarketOffer implements MarketEntry, Comparable<MarketOffer> {
     @Override
     public int compareTo(MarketOffer o) {
         // note: for an offer we want the lowest unit prices to produce the highest values
-        if (!o.offerCurrency.equals(offerCurrency)) {
+        if (!o.getCurrency().equals(getCurrency())) {
             throw new IllegalArgumentException("Cannot compare offers in different currencies.");
         }
-        if (equals(o)) {
-            return 0;
-        }
-
-        double significantUnitPrice = offerCurrency.getSignificantComponent(unitPrice);
-        double oSignificantUnitPrice = o.offerCurrency.getSignificantComponent(unitPrice);
-
-        int significantDecimals = offerCurrency.getSignificantDecimals();
-        double unitPriceDiff = oSignificantUnitPrice - significantUnitPrice;
-
-        // the integer to be returned (barring tie-break scenario)
-        // note: this will always be a multiple of 10 as 1 is added to significantDecimals in the power
-        // multiples of 10 are so tie-breaks (+/-1) can be distinguished from price being slightly better
-        int comparison = (int) (unitPriceDiff * Math.pow(10, significantDecimals + 1));
-
-        if (comparison == 0) {
-            // as a tie-breaker, check which offer was submitted first
-            // an offer submitted earlier is prioritised over one submitted later
-            if (submissionTime.before(o.submissionTime)) {
-                comparison += 1;
-            } else if (submissionTime.after(o.submissionTime)) {
-                comparison -= 1;
-            }
-        }
 
-        return comparison;
-    }
-
-    // comparing unique ids should be enough to compare offer equality
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) {
-            return true;
-        }
-        if (!(o instanceof MarketOffer)) {
-            return false;
-        }
-        MarketOffer offer = (MarketOffer) o;
-        return uniqueId.equals(offer.uniqueId);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(uniqueId);
+        int comparison = Long.compare(o.getUnitPriceTicks(), getUnitPriceTicks());
+        // as a tie-breaker, an offer which arrived earlier is prioritised over one which arrived later
+        return comparison != 0 ? comparison : compareArrival(o);
     }
 }
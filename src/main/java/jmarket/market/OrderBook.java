@@ -0,0 +1,425 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.market.data.MarketDataFeed;
+import jmarket.market.data.MarketEventType;
+
+import gnu.trove.map.hash.THashMap;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * One side of the book of a market, holding resting entries in price levels sorted from best to worst, each queued in
+ * arrival order. Entries are also indexed by unique id and by agent.
+ * <p>
+ * Not thread-safe.
+ */
+public final class OrderBook<E extends MarketEntry> implements Iterable<E> {
+    private final boolean bids;
+    private final NavigableMap<Long, PriceLevel<E>> levels;
+    private final Map<UUID, PriceLevel.Node<E>> index = new THashMap<>();
+    // the most recently added entry of each agent, from which the rest of their entries are linked
+    private final THashMap<Agent, PriceLevel.Node<E>> agentIndex = new THashMap<>();
+
+    private MarketDataFeed feed;
+
+    private PriceLevel<E> best;
+    private int size;
+    // the total unfilled quantity of every entry in the book, in ticks
+    private long quantity;
+
+    private OrderBook(boolean bids, Comparator<Long> priceOrder) {
+        this.bids = bids;
+        this.levels = new TreeMap<>(priceOrder);
+    }
+
+    /**
+     * @return a new, empty book in which higher prices are better
+     */
+    public static OrderBook<MarketBid> bids() {
+        return new OrderBook<>(true, Comparator.reverseOrder());
+    }
+
+    /**
+     * @return a new, empty book in which lower prices are better
+     */
+    public static OrderBook<MarketOffer> offers() {
+        return new OrderBook<>(false, Comparator.naturalOrder());
+    }
+
+    /**
+     * Sets the feed every entry added to, reduced in or removed from this book is published to.
+     *
+     * @param feed the feed to publish to, or {@code null} to stop publishing
+     */
+    public void setMarketDataFeed(MarketDataFeed feed) {
+        this.feed = feed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the total unfilled quantity of every entry in the book, in ticks
+     */
+    public long getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * @return the unit price of the best entry in ticks, or {@code Long.MIN_VALUE} if the book is empty
+     */
+    public long getBestPrice() {
+        return best == null ? Long.MIN_VALUE : best.getPrice();
+    }
+
+    /**
+     * @return the number of distinct price levels in the book
+     */
+    public int getLevelCount() {
+        return levels.size();
+    }
+
+    /**
+     * Adds the given entry to the back of the queue of its price level.
+     *
+     * @param entry the entry to add
+     * @throws IllegalArgumentException if an entry with the same unique id is already in the book
+     */
+    public void add(E entry) {
+        if (index.containsKey(entry.getUniqueId())) {
+            throw new IllegalArgumentException("Cannot add the same entry to a book twice.");
+        }
+
+        long price = entry.getUnitPriceTicks();
+        PriceLevel<E> level = levels.get(price);
+        if (level == null) {
+            level = new PriceLevel<>(price);
+            levels.put(price, level);
+            if (best == null || levels.comparator().compare(price, best.getPrice()) < 0) {
+                best = level;
+            }
+        }
+        PriceLevel.Node<E> node = level.append(entry);
+        index.put(entry.getUniqueId(), node);
+        linkAgent(node);
+        size++;
+        quantity += entry.getQuantityTicks();
+        publish(MarketEventType.ORDER_ADDED, entry);
+    }
+
+    /**
+     * @param uniqueId the unique id of the entry to get
+     * @return the resting entry with the given unique id, or {@code null} if there is not one
+     */
+    public E get(UUID uniqueId) {
+        PriceLevel.Node<E> node = index.get(uniqueId);
+        return node == null ? null : node.getEntry();
+    }
+
+    /**
+     * @param agent the agent to check for
+     * @return whether the given agent has any entries resting in this book
+     */
+    public boolean hasEntriesOf(Agent agent) {
+        return agentIndex.containsKey(agent);
+    }
+
+    /**
+     * Passes every agent with entries resting in this book to the given consumer once, straight from the index of
+     * entries by agent.
+     *
+     * @param consumer the consumer to pass each agent to
+     */
+    public void forEachAgent(Consumer<? super Agent> consumer) {
+        agentIndex.forEachKey(agent -> {
+            consumer.accept(agent);
+            return true;
+        });
+    }
+
+    /**
+     * Removes the entry with the given unique id.
+     *
+     * @param uniqueId the unique id of the entry to remove
+     * @return the removed entry, or {@code null} if there was no entry with the given unique id
+     */
+    public E remove(UUID uniqueId) {
+        PriceLevel.Node<E> node = index.get(uniqueId);
+        if (node == null) {
+            return null;
+        }
+        unlink(node);
+        return node.getEntry();
+    }
+
+    /**
+     * Reduces the unfilled quantity of the entry with the given unique id in place, without changing its position in
+     * the queue.
+     *
+     * @param uniqueId the unique id of the entry to reduce
+     * @param quantityTicks the new unfilled quantity of the entry, in ticks, which must be positive and no more than
+     *                      its current unfilled quantity
+     * @return whether there was an entry with the given unique id
+     */
+    public boolean reduce(UUID uniqueId, long quantityTicks) {
+        PriceLevel.Node<E> node = index.get(uniqueId);
+        if (node == null) {
+            return false;
+        }
+        E entry = node.getEntry();
+        if (quantityTicks <= 0 || quantityTicks > entry.getQuantityTicks()) {
+            throw new IllegalArgumentException("Can only reduce an entry to a positive quantity smaller than its own.");
+        }
+        long reduction = entry.getQuantityTicks() - quantityTicks;
+        fill(entry, reduction);
+        node.getLevel().reduce(reduction);
+        quantity -= reduction;
+        publish(MarketEventType.ORDER_REDUCED, entry);
+        return true;
+    }
+
+    /**
+     * @return the entry with the best price which has been resting the longest, or {@code null} if the book is empty
+     */
+    public E peekBest() {
+        return best == null ? null : best.getHead().getEntry();
+    }
+
+    /**
+     * Removes and returns the entry which would be returned by {@link #peekBest()}.
+     *
+     * @return the removed entry, or {@code null} if the book is empty
+     */
+    public E pollBest() {
+        if (best == null) {
+            return null;
+        }
+        PriceLevel.Node<E> head = best.getHead();
+        unlink(head);
+        return head.getEntry();
+    }
+
+    /**
+     * Fills some of the remaining quantity of the best entry in place, without changing its position in the queue. The
+     * entry is removed from the book once it is completely filled.
+     *
+     * @param quantityTicks the quantity filled, in ticks
+     * @return whether the best entry was completely filled and removed
+     */
+    public boolean fillBest(long quantityTicks) {
+        if (best == null) {
+            throw new NoSuchElementException("Cannot fill the best entry of an empty book.");
+        }
+        PriceLevel.Node<E> head = best.getHead();
+        boolean filled = fill(head.getEntry(), quantityTicks);
+        best.reduce(quantityTicks);
+        quantity -= quantityTicks;
+        if (filled) {
+            unlink(head);
+            return true;
+        }
+        publish(MarketEventType.ORDER_REDUCED, head.getEntry());
+        return false;
+    }
+
+    /**
+     * Copies the price and total unfilled quantity of the best price levels into the given arrays, from the best level
+     * to the worst.
+     *
+     * @param prices the array to copy the price of each level into, in ticks
+     * @param quantities the array to copy the quantity of each level into, in ticks
+     * @param maxLevels the maximum number of levels to copy, which must not exceed the length of either array
+     * @return the number of levels copied
+     */
+    public int getLevels(long[] prices, long[] quantities, int maxLevels) {
+        int count = 0;
+        for (PriceLevel<E> level : levels.values()) {
+            if (count == maxLevels) {
+                break;
+            }
+            prices[count] = level.getPrice();
+            quantities[count] = level.getQuantity();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes every entry matching the given filter.
+     *
+     * @param filter the filter entries to remove must match
+     * @return whether any entries were removed
+     */
+    public boolean removeIf(Predicate<? super E> filter) {
+        boolean removed = false;
+        Iterator<PriceLevel<E>> levelIterator = levels.values().iterator();
+        while (levelIterator.hasNext()) {
+            PriceLevel<E> level = levelIterator.next();
+            PriceLevel.Node<E> node = level.getHead();
+            while (node != null) {
+                PriceLevel.Node<E> next = node.getNext();
+                if (filter.test(node.getEntry())) {
+                    level.unlink(node);
+                    index.remove(node.getEntry().getUniqueId());
+                    unlinkAgent(node);
+                    size--;
+                    quantity -= node.getEntry().getQuantityTicks();
+                    publish(MarketEventType.ORDER_REMOVED, node.getEntry());
+                    removed = true;
+                }
+                node = next;
+            }
+            if (level.isEmpty()) {
+                levelIterator.remove();
+            }
+        }
+        if (removed) {
+            best = levels.isEmpty() ? null : levels.firstEntry().getValue();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every entry of the given agent matching the given filter, without visiting the entries of other agents.
+     *
+     * @param agent the agent whose entries to check
+     * @param filter the filter entries to remove must match
+     * @return whether any entries were removed
+     */
+    public boolean removeIf(Agent agent, Predicate<? super E> filter) {
+        boolean removed = false;
+        PriceLevel.Node<E> node = agentIndex.get(agent);
+        while (node != null) {
+            PriceLevel.Node<E> next = node.getAgentNext();
+            if (filter.test(node.getEntry())) {
+                unlink(node);
+                removed = true;
+            }
+            node = next;
+        }
+        return removed;
+    }
+
+    /**
+     * Iterates entries from the best price to the worst and, within a price level, in arrival order. The book must not
+     * be modified while iterating.
+     *
+     * @return an iterator over the entries of this book
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private final Iterator<PriceLevel<E>> levelIterator = levels.values().iterator();
+            private PriceLevel.Node<E> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && levelIterator.hasNext()) {
+                    next = levelIterator.next().getHead();
+                }
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                E entry = next.getEntry();
+                next = next.getNext();
+                return entry;
+            }
+        };
+    }
+
+    private static boolean fill(MarketEntry entry, long quantityTicks) {
+        if (entry instanceof MarketBid) {
+            return ((MarketBid) entry).fill(quantityTicks);
+        }
+        return ((MarketOffer) entry).fill(quantityTicks);
+    }
+
+    private void publish(MarketEventType type, E entry) {
+        if (feed != null) {
+            long remaining = type == MarketEventType.ORDER_REMOVED ? 0 : entry.getQuantityTicks();
+            feed.publish(type, bids, entry.getSequence(), 0, entry.getUnitPriceTicks(), remaining);
+        }
+    }
+
+    private void unlink(PriceLevel.Node<E> node) {
+        PriceLevel<E> level = node.getLevel();
+        level.unlink(node);
+        index.remove(node.getEntry().getUniqueId());
+        unlinkAgent(node);
+        size--;
+        quantity -= node.getEntry().getQuantityTicks();
+        publish(MarketEventType.ORDER_REMOVED, node.getEntry());
+        if (level.isEmpty()) {
+            levels.remove(level.getPrice());
+            if (level == best) {
+                best = levels.isEmpty() ? null : levels.firstEntry().getValue();
+            }
+        }
+    }
+
+    private void linkAgent(PriceLevel.Node<E> node) {
+        PriceLevel.Node<E> previous = agentIndex.put(node.getEntry().getAgent(), node);
+        if (previous != null) {
+            node.setAgentNext(previous);
+            previous.setAgentPrev(node);
+        }
+    }
+
+    private void unlinkAgent(PriceLevel.Node<E> node) {
+        PriceLevel.Node<E> prev = node.getAgentPrev();
+        PriceLevel.Node<E> next = node.getAgentNext();
+        if (prev == null) {
+            Agent agent = node.getEntry().getAgent();
+            if (next == null) {
+                agentIndex.remove(agent);
+            } else {
+                agentIndex.put(agent, next);
+            }
+        } else {
+            prev.setAgentNext(next);
+        }
+        if (next != null) {
+            next.setAgentPrev(prev);
+        }
+        node.setAgentPrev(null);
+        node.setAgentNext(null);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+/**
+ * A single price level of an {@link OrderBook}, holding every resting entry at that price in arrival order.
+ * <p>
+ * Not thread-safe.
+ */
+final class PriceLevel<E extends MarketEntry> {
+    private final long price;
+
+    private Node<E> head;
+    private Node<E> tail;
+    private int size;
+    // the total unfilled quantity of the entries in this level, in ticks
+    private long quantity;
+
+    PriceLevel(long price) {
+        this.price = price;
+    }
+
+    /**
+     * @return the unit price of entries in this level, in ticks of their currency
+     */
+    long getPrice() {
+        return price;
+    }
+
+    Node<E> getHead() {
+        return head;
+    }
+
+    /**
+     * @return the total unfilled quantity of the entries in this level, in ticks
+     */
+    long getQuantity() {
+        return quantity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    Node<E> append(E entry) {
+        Node<E> node = new Node<>(this, entry);
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+            node.prev = tail;
+        }
+        tail = node;
+        size++;
+        quantity += entry.getQuantityTicks();
+        return node;
+    }
+
+    /**
+     * Records that the given quantity of an entry in this level has been filled.
+     */
+    void reduce(long filledQuantity) {
+        quantity -= filledQuantity;
+    }
+
+    void unlink(Node<E> node) {
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        size--;
+        quantity -= node.entry.getQuantityTicks();
+    }
+
+    /**
+     * A position in the queue of a price level.
+     */
+    static final class Node<E extends MarketEntry> {
+        private final PriceLevel<E> level;
+        private final E entry;
+
+        private Node<E> prev;
+        private Node<E> next;
+
+        // links to the other entries of the same agent in the book, maintained by the book
+        private Node<E> agentPrev;
+        private Node<E> agentNext;
+
+        private Node(PriceLevel<E> level, E entry) {
+            this.level = level;
+            this.entry = entry;
+        }
+
+        PriceLevel<E> getLevel() {
+            return level;
+        }
+
+        E getEntry() {
+            return entry;
+        }
+
+        Node<E> getNext() {
+            return next;
+        }
+
+        Node<E> getAgentPrev() {
+            return agentPrev;
+        }
+
+        void setAgentPrev(Node<E> agentPrev) {
+            this.agentPrev = agentPrev;
+        }
+
+        Node<E> getAgentNext() {
+            return agentNext;
+        }
+
+        void setAgentNext(Node<E> agentNext) {
+            this.agentNext = agentNext;
+        }
+    }
+}
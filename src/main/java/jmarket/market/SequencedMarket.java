@@ -0,0 +1,476 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Currency;
+import jmarket.Marketed;
+import jmarket.Transaction;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A market in which a single matching thread makes every change to the books, taking commands from a lock-free ring
+ * buffer in the order they were published.
+ * <p>
+ * Adding an entry returns once it is published. {@link #update()}, {@link #cancel(UUID)} and
+ * {@link #amend(UUID, double, double)} wait for the matching thread, while the request methods return a future, which
+ * is completed exceptionally if the matching thread fails to carry out the command. The matching thread is started by
+ * {@link #start()} and stopped by {@link #close()}, and nothing can be published before it is started.
+ * <p>
+ * The matching thread still takes the write locks of the books, once per batch of commands, so that other threads can
+ * read the books consistently through the read locks. Only readers contend for them.
+ * <p>
+ * Thread-safe.
+ */
+public class SequencedMarket<T extends Marketed<T>> extends DefaultMarket<T> implements AutoCloseable {
+    /**
+     * The default number of commands which can be waiting for the matching thread.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 12;
+
+    private static final int ADD_BID = 1;
+    private static final int ADD_OFFER = 2;
+    private static final int CANCEL = 3;
+    private static final int AMEND = 4;
+    private static final int UPDATE = 5;
+    private static final int UPDATE_TRADES = 6;
+    private static final int SYNC = 7;
+    private static final int STOP = 8;
+
+    // the number of times to spin before yielding and then parking while waiting
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long PARK_NANOS = 50_000;
+
+    // set in the claimed sequence once the market is closed
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final Command[] ring;
+    private final int mask;
+    private final ThreadFactory threadFactory;
+
+    // the next sequence to be claimed by a producer, with CLOSED set once the market is closed
+    private final AtomicLong claimed = new AtomicLong();
+    // the next sequence the matching thread will process, every slot before which may be reused
+    private final AtomicLong consumed = new AtomicLong();
+
+    private volatile Thread matchingThread;
+
+    public SequencedMarket(T marketed, Currency transactionCurrency) {
+        this(marketed, transactionCurrency, DEFAULT_CAPACITY, Thread::new);
+    }
+
+    public SequencedMarket(T marketed, Currency transactionCurrency, int capacity, ThreadFactory threadFactory) {
+        super(marketed, transactionCurrency);
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Sequenced market capacity must be a power of two.");
+        }
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("Sequenced market must have a thread factory.");
+        }
+
+        this.ring = new Command[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Command(i - capacity);
+        }
+        this.mask = capacity - 1;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Starts the matching thread.
+     *
+     * @throws IllegalStateException if the market has already been started or closed
+     */
+    public synchronized void start() {
+        if (matchingThread != null || isClosed()) {
+            throw new IllegalStateException("Sequenced market has already been started.");
+        }
+
+        Thread thread = threadFactory.newThread(this::run);
+        matchingThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Publishes a bid to be added by the matching thread, returning without waiting for it. A bid the matching thread
+     * refuses is left without a sequence, and {@link #requestAddBid(MarketBid)} tells the caller why.
+     */
+    @Override
+    public void addBid(MarketBid bid) {
+        requestAddBid(bid);
+    }
+
+    /**
+     * Requests that the matching thread adds a bid once it has processed every command published before this call.
+     *
+     * @param bid the bid to add
+     * @return a future completed once the bid has been added, or completed exceptionally with the reason it was refused
+     * @throws IllegalArgumentException if the bid is in a different currency from the market
+     */
+    public CompletableFuture<Void> requestAddBid(MarketBid bid) {
+        if (!bid.getCurrency().equals(getTransactionCurrency())) {
+            throw new IllegalArgumentException("Cannot add a bid to a market with a different transaction currency.");
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        publish(ADD_BID, bid, null, null, result, 0, 0);
+        return result;
+    }
+
+    /**
+     * Publishes an offer to be added by the matching thread, returning without waiting for it. An offer the matching
+     * thread refuses is left without a sequence, and {@link #requestAddOffer(MarketOffer)} tells the caller why.
+     */
+    @Override
+    public void addOffer(MarketOffer offer) {
+        requestAddOffer(offer);
+    }
+
+    /**
+     * Requests that the matching thread adds an offer once it has processed every command published before this call.
+     *
+     * @param offer the offer to add
+     * @return a future completed once the offer has been added, or completed exceptionally with the reason it was
+     *         refused
+     * @throws IllegalArgumentException if the offer is in a different currency from the market
+     */
+    public CompletableFuture<Void> requestAddOffer(MarketOffer offer) {
+        if (!offer.getCurrency().equals(getTransactionCurrency())) {
+            throw new IllegalArgumentException("Cannot add an offer to a market with a different transaction "
+                    + "currency.");
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        publish(ADD_OFFER, offer, null, null, result, 0, 0);
+        return result;
+    }
+
+    /**
+     * Waits for the matching thread to process every command published before this call, then to cancel the entry.
+     */
+    @Override
+    public boolean cancel(UUID uniqueId) {
+        return requestCancel(uniqueId).join();
+    }
+
+    /**
+     * Requests that the matching thread cancels an entry once it has processed every command published before this
+     * call.
+     *
+     * @param uniqueId the unique id of the bid or offer
+     * @return a future completed with whether a resting bid or offer with the given unique id was found and withdrawn
+     */
+    public CompletableFuture<Boolean> requestCancel(UUID uniqueId) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        publish(CANCEL, null, uniqueId, null, result, 0, 0);
+        return result;
+    }
+
+    /**
+     * Waits for the matching thread to process every command published before this call, then to amend the entry.
+     */
+    @Override
+    public boolean amend(UUID uniqueId, double quantity, double unitPrice) {
+        return requestAmend(uniqueId, quantity, unitPrice).join();
+    }
+
+    /**
+     * Requests that the matching thread amends an entry once it has processed every command published before this call.
+     *
+     * @param uniqueId the unique id of the bid or offer
+     * @param quantity the new unfilled quantity, which must be positive
+     * @param unitPrice the new unit price
+     * @return a future completed with whether a resting bid or offer with the given unique id was found and amended
+     */
+    public CompletableFuture<Boolean> requestAmend(UUID uniqueId, double quantity, double unitPrice) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        publish(AMEND, null, uniqueId, null, result, quantity, unitPrice);
+        return result;
+    }
+
+    /**
+     * Waits for the matching thread to process every command published before this call, then to update the market.
+     *
+     * @return a set of all transactions made in the update
+     */
+    @Override
+    public Set<Transaction<T>> update() {
+        return requestUpdate().join();
+    }
+
+    /**
+     * Requests that the matching thread updates the market once it has processed every command published before this
+     * call.
+     *
+     * @return a future completed with the transactions made in the update
+     */
+    public CompletableFuture<Set<Transaction<T>>> requestUpdate() {
+        CompletableFuture<Set<Transaction<T>>> result = new CompletableFuture<>();
+        publish(UPDATE, null, null, null, result, 0, 0);
+        return result;
+    }
+
+    /**
+     * Waits for the matching thread to process every command published before this call, then to update the market,
+     * reporting each trade to the given consumer on the matching thread.
+     */
+    @Override
+    public void update(TradeConsumer trades) {
+        requestUpdate(trades).join();
+    }
+
+    /**
+     * Requests that the matching thread updates the market once it has processed every command published before this
+     * call, reporting each trade to the given consumer on the matching thread.
+     *
+     * @param trades the consumer to report each trade to
+     * @return a future completed once the update has been made
+     */
+    public CompletableFuture<Void> requestUpdate(TradeConsumer trades) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        publish(UPDATE_TRADES, null, null, trades, result, 0, 0);
+        return result;
+    }
+
+    /**
+     * Waits for the matching thread to process every command published before this call.
+     */
+    public void sync() {
+        requestSync().join();
+    }
+
+    /**
+     * Requests that the matching thread reports when it has processed every command published before this call.
+     *
+     * @return a future completed once those commands have been processed
+     */
+    public CompletableFuture<Void> requestSync() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        publish(SYNC, null, null, null, result, 0, 0);
+        return result;
+    }
+
+    /**
+     * @return whether the market has been closed, after which nothing more can be published to it
+     */
+    public boolean isClosed() {
+        return (claimed.get() & CLOSED) != 0;
+    }
+
+    /**
+     * Stops the matching thread once it has processed every command published before this call, and waits for it to
+     * finish.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        long stop;
+        synchronized (this) {
+            // the last sequence is claimed and the market closed in one step, so nothing can be published after it
+            do {
+                stop = claimed.get();
+                if ((stop & CLOSED) != 0) {
+                    return;
+                }
+            } while (!claimed.compareAndSet(stop, (stop + 1) | CLOSED));
+            thread = matchingThread;
+        }
+
+        if (thread == null) {
+            // nothing can have been published
+            return;
+        }
+
+        write(stop, STOP, null, null, null, null, 0, 0);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Does nothing, as the matching thread commits the journal once per batch after releasing the book locks.
+     */
+    @Override
+    protected void commitJournal() {
+    }
+
+    /**
+     * @throws IllegalStateException if the market has not been started or has been closed
+     */
+    private void publish(int type, MarketEntry entry, UUID uniqueId, TradeConsumer trades, CompletableFuture<?> result,
+            double quantity, double unitPrice) {
+        if (matchingThread == null) {
+            // nothing would ever take the command, so waiting for it or for room in the ring would never end
+            throw new IllegalStateException("Cannot publish to a market which has not been started.");
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if ((sequence & CLOSED) != 0) {
+                throw new IllegalStateException("Cannot publish to a closed market.");
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        write(sequence, type, entry, uniqueId, trades, result, quantity, unitPrice);
+    }
+
+    private void write(long sequence, int type, MarketEntry entry, UUID uniqueId, TradeConsumer trades,
+            CompletableFuture<?> result, double quantity, double unitPrice) {
+        int idle = 0;
+        while (sequence - consumed.get() >= ring.length) {
+            idle = idle(idle);
+        }
+
+        Command command = ring[(int) sequence & mask];
+        command.type = type;
+        command.entry = entry;
+        command.uniqueId = uniqueId;
+        command.trades = trades;
+        command.result = result;
+        command.quantity = quantity;
+        command.unitPrice = unitPrice;
+        command.published = sequence;
+    }
+
+    private void run() {
+        drain(Long.MAX_VALUE);
+    }
+
+    /**
+     * Processes commands in the order they were published until a stop command, or until the given sequence.
+     */
+    private void drain(long end) {
+        long next = consumed.get();
+        int idle = 0;
+        boolean running = true;
+        while (running && next < end) {
+            if (ring[(int) next & mask].published != next) {
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+
+            // process every command published so far as a single batch, holding the book locks once
+            lockBooks();
+            try {
+                Command command;
+                while (running && next < end && (command = ring[(int) next & mask]).published == next) {
+                    running = process(command);
+                    command.entry = null;
+                    command.uniqueId = null;
+                    command.trades = null;
+                    command.result = null;
+                    consumed.lazySet(++next);
+                }
+            } finally {
+                unlockBooks();
+            }
+            // the whole batch is committed to the journal at once
+            super.commitJournal();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean process(Command command) {
+        try {
+            switch (command.type) {
+                case ADD_BID:
+                    super.addBid((MarketBid) command.entry);
+                    ((CompletableFuture<Void>) command.result).complete(null);
+                    break;
+                case ADD_OFFER:
+                    super.addOffer((MarketOffer) command.entry);
+                    ((CompletableFuture<Void>) command.result).complete(null);
+                    break;
+                case CANCEL:
+                    ((CompletableFuture<Boolean>) command.result).complete(super.cancel(command.uniqueId));
+                    break;
+                case AMEND:
+                    ((CompletableFuture<Boolean>) command.result).complete(
+                            super.amend(command.uniqueId, command.quantity, command.unitPrice));
+                    break;
+                case UPDATE:
+                    ((CompletableFuture<Set<Transaction<T>>>) command.result).complete(super.update());
+                    break;
+                case UPDATE_TRADES:
+                    super.update(command.trades);
+                    ((CompletableFuture<Void>) command.result).complete(null);
+                    break;
+                case SYNC:
+                    ((CompletableFuture<Void>) command.result).complete(null);
+                    break;
+                case STOP:
+                    return false;
+                default:
+                    throw new IllegalStateException("Unknown command type " + command.type + ".");
+            }
+        } catch (RuntimeException e) {
+            // every command but stopping has a result, so the failure is reported without stopping the matching thread
+            command.result.completeExceptionally(e);
+        }
+        return true;
+    }
+
+    private static int idle(int idle) {
+        if (idle < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    /**
+     * A pre-allocated slot in the ring buffer. The fields are written by the producer which claimed the slot and then
+     * made visible to the matching thread by writing the sequence to {@code published}.
+     */
+    private static final class Command {
+        private int type;
+        private MarketEntry entry;
+        private UUID uniqueId;
+        private TradeConsumer trades;
+        private double quantity;
+        private double unitPrice;
+        private CompletableFuture<?> result;
+
+        private volatile long published;
+
+        private Command(long published) {
+            this.published = published;
+        }
+    }
+}
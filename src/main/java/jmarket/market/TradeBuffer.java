@@ -0,0 +1,177 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.Marketed;
+import jmarket.Transaction;
+import jmarket.TransactionResult;
+import jmarket.WealthTransfer;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer of trade records, filled by passing it to a market as a {@link TradeConsumer}. Records are kept in
+ * columns and the buffer keeps its capacity when cleared, so once it has grown to the size of a typical update,
+ * recording a trade allocates nothing. A full {@link Transaction} can be built for any record when one is needed.
+ * <p>
+ * Not thread-safe.
+ */
+public final class TradeBuffer implements TradeConsumer {
+    private long[] times;
+    private Agent[] buyers;
+    private Agent[] sellers;
+    private long[] bidSequences;
+    private long[] offerSequences;
+    private long[] unitPrices;
+    private long[] quantities;
+    private TransactionResult[] results;
+    private int size;
+
+    public TradeBuffer() {
+        this(16);
+    }
+
+    public TradeBuffer(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Trade buffer must be able to hold at least one trade.");
+        }
+
+        this.times = new long[initialCapacity];
+        this.buyers = new Agent[initialCapacity];
+        this.sellers = new Agent[initialCapacity];
+        this.bidSequences = new long[initialCapacity];
+        this.offerSequences = new long[initialCapacity];
+        this.unitPrices = new long[initialCapacity];
+        this.quantities = new long[initialCapacity];
+        this.results = new TransactionResult[initialCapacity];
+    }
+
+    @Override
+    public void onTrade(long timeMillis, Agent buyer, Agent seller, long bidSequence, long offerSequence,
+            long unitPriceTicks, long quantityTicks, TransactionResult result) {
+        if (size == buyers.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            buyers = Arrays.copyOf(buyers, capacity);
+            sellers = Arrays.copyOf(sellers, capacity);
+            bidSequences = Arrays.copyOf(bidSequences, capacity);
+            offerSequences = Arrays.copyOf(offerSequences, capacity);
+            unitPrices = Arrays.copyOf(unitPrices, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            results = Arrays.copyOf(results, capacity);
+        }
+
+        times[size] = timeMillis;
+        buyers[size] = buyer;
+        sellers[size] = seller;
+        bidSequences[size] = bidSequence;
+        offerSequences[size] = offerSequence;
+        unitPrices[size] = unitPriceTicks;
+        quantities[size] = quantityTicks;
+        results[size] = result;
+        size++;
+    }
+
+    /**
+     * @return the number of trades recorded since the buffer was last cleared
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Forgets every trade recorded, keeping the capacity of the buffer.
+     */
+    public void clear() {
+        // drop references to agents so the buffer does not keep them alive
+        Arrays.fill(buyers, 0, size, null);
+        Arrays.fill(sellers, 0, size, null);
+        Arrays.fill(results, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * @return the time the trade was made, in milliseconds since the epoch
+     */
+    public long getTimeMillis(int index) {
+        return times[checkIndex(index)];
+    }
+
+    public Agent getBuyer(int index) {
+        return buyers[checkIndex(index)];
+    }
+
+    public Agent getSeller(int index) {
+        return sellers[checkIndex(index)];
+    }
+
+    public long getBidSequence(int index) {
+        return bidSequences[checkIndex(index)];
+    }
+
+    public long getOfferSequence(int index) {
+        return offerSequences[checkIndex(index)];
+    }
+
+    public long getUnitPriceTicks(int index) {
+        return unitPrices[checkIndex(index)];
+    }
+
+    public long getQuantityTicks(int index) {
+        return quantities[checkIndex(index)];
+    }
+
+    public TransactionResult getResult(int index) {
+        return results[checkIndex(index)];
+    }
+
+    /**
+     * Builds the transaction a recorded trade stands for.
+     *
+     * @param index the index of the trade, less than {@link #size()}
+     * @param market the market the trade was made in
+     * @return a transaction recording the trade, which has already been settled and cannot be executed
+     */
+    public <T extends Marketed<T>> Transaction<T> getTransaction(int index, Market<T> market) {
+        checkIndex(index);
+        return toTransaction(market.getMarketed(), market.getTransactionCurrency(), buyers[index], sellers[index],
+                unitPrices[index], quantities[index], results[index]);
+    }
+
+    /**
+     * Builds a transaction recording a trade which has already been settled.
+     */
+    static <T extends Marketed<T>> Transaction<T> toTransaction(T marketed, Currency transactionCurrency, Agent buyer,
+            Agent seller, long unitPriceTicks, long quantityTicks, TransactionResult result) {
+        double quantity = transactionCurrency.fromTicks(quantityTicks);
+        double value = quantity * transactionCurrency.fromTicks(unitPriceTicks);
+        return Transaction.record(marketed.getTransfer(seller, buyer, quantity),
+                new WealthTransfer(buyer, seller, transactionCurrency, value), result);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("There is no trade at index " + index + ".");
+        }
+        return index;
+    }
+}
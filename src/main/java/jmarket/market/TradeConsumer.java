@@ -0,0 +1,45 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.TransactionResult;
+
+/**
+ * Receives a compact record of each trade a market makes, in place of a {@link jmarket.Transaction}. Nothing is
+ * allocated to deliver a trade, so a consumer which keeps only what it needs adds no garbage to the matching path.
+ */
+@FunctionalInterface
+public interface TradeConsumer {
+    /**
+     * Called for each match a market attempts to settle, whether or not it succeeded, while the market is locked.
+     *
+     * @param timeMillis the time the trade was made by the clock of the market, in milliseconds since the epoch
+     * @param buyer the agent whose bid was matched
+     * @param seller the agent whose offer was matched
+     * @param bidSequence the sequence of the bid in its market, or 0 if the market cannot tell
+     * @param offerSequence the sequence of the offer in its market, or 0 if the market cannot tell
+     * @param unitPriceTicks the unit price of the trade, in ticks of the transaction currency
+     * @param quantityTicks the quantity of the trade, in ticks of the transaction currency
+     * @param result the result of settling the trade
+     */
+    void onTrade(long timeMillis, Agent buyer, Agent seller, long bidSequence, long offerSequence, long unitPriceTicks,
+            long quantityTicks, TransactionResult result);
+}
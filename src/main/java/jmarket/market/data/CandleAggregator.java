@@ -0,0 +1,158 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.TransactionResult;
+import jmarket.market.TradeConsumer;
+
+/**
+ * Aggregates the trades made in a market into candles for several intervals, and keeps a tape of the most recent
+ * trades, all in fixed-size primitive rings. It is set on a market with
+ * {@link jmarket.market.DefaultMarket#setCandleAggregator(CandleAggregator)}, or given to any market as a
+ * {@link TradeConsumer}.
+ * <p>
+ * Thread-safe.
+ */
+public class CandleAggregator implements TradeConsumer {
+    private final Currency transactionCurrency;
+    private final CandleSeries[] series;
+
+    private final long[] tapeTimes;
+    private final double[] tapePrices;
+    private final double[] tapeQuantities;
+    private int tapeCurrent = -1;
+    private int tapeSize;
+
+    /**
+     * @param transactionCurrency the transaction currency of the market the trades are made in
+     * @param candleCapacity the number of candles kept for each interval
+     * @param tapeCapacity the number of recent trades kept
+     * @param intervalsMillis the length of each interval to aggregate, in milliseconds
+     */
+    public CandleAggregator(Currency transactionCurrency, int candleCapacity, int tapeCapacity,
+            long... intervalsMillis) {
+        if (transactionCurrency == null) {
+            throw new IllegalArgumentException("Candle aggregator must have a transaction currency.");
+        }
+        if (tapeCapacity <= 0) {
+            throw new IllegalArgumentException("Trade tape must be able to hold at least one trade.");
+        }
+
+        this.transactionCurrency = transactionCurrency;
+        this.series = new CandleSeries[intervalsMillis.length];
+        for (int i = 0; i < intervalsMillis.length; i++) {
+            series[i] = new CandleSeries(intervalsMillis[i], candleCapacity);
+        }
+        this.tapeTimes = new long[tapeCapacity];
+        this.tapePrices = new double[tapeCapacity];
+        this.tapeQuantities = new double[tapeCapacity];
+    }
+
+    /**
+     * @param intervalMillis the length of the interval, as given when this aggregator was created
+     * @return the candles for the given interval
+     * @throws IllegalArgumentException if the interval is not aggregated
+     */
+    public CandleSeries getSeries(long intervalMillis) {
+        for (CandleSeries candles : series) {
+            if (candles.getIntervalMillis() == intervalMillis) {
+                return candles;
+            }
+        }
+        throw new IllegalArgumentException("Interval " + intervalMillis + "ms is not aggregated.");
+    }
+
+    public Currency getTransactionCurrency() {
+        return transactionCurrency;
+    }
+
+    /**
+     * Records a trade if it succeeded.
+     */
+    @Override
+    public void onTrade(long timeMillis, Agent buyer, Agent seller, long bidSequence, long offerSequence,
+            long unitPriceTicks, long quantityTicks, TransactionResult result) {
+        if (result == TransactionResult.SUCCESS && quantityTicks > 0) {
+            onTrade(timeMillis, transactionCurrency.fromTicks(unitPriceTicks),
+                    transactionCurrency.fromTicks(quantityTicks));
+        }
+    }
+
+    /**
+     * Records a trade. Trades are expected in time order.
+     *
+     * @param timeMillis the time of the trade, in milliseconds since the epoch
+     * @param price the unit price of the trade
+     * @param quantity the quantity traded
+     */
+    public void onTrade(long timeMillis, double price, double quantity) {
+        for (CandleSeries candles : series) {
+            candles.add(timeMillis, price, quantity);
+        }
+
+        synchronized (tapeTimes) {
+            tapeCurrent = (tapeCurrent + 1) % tapeTimes.length;
+            tapeSize = Math.min(tapeSize + 1, tapeTimes.length);
+            tapeTimes[tapeCurrent] = timeMillis;
+            tapePrices[tapeCurrent] = price;
+            tapeQuantities[tapeCurrent] = quantity;
+        }
+    }
+
+    /**
+     * @return the number of trades on the tape, at most its capacity
+     */
+    public int getTapeSize() {
+        synchronized (tapeTimes) {
+            return tapeSize;
+        }
+    }
+
+    /**
+     * @param ago how many trades ago the trade was made, where 0 is the most recent, less than {@link #getTapeSize()}
+     * @return the time of the trade, in milliseconds since the epoch
+     */
+    public long getTradeTime(int ago) {
+        synchronized (tapeTimes) {
+            return tapeTimes[tapeIndex(ago)];
+        }
+    }
+
+    public double getTradePrice(int ago) {
+        synchronized (tapeTimes) {
+            return tapePrices[tapeIndex(ago)];
+        }
+    }
+
+    public double getTradeQuantity(int ago) {
+        synchronized (tapeTimes) {
+            return tapeQuantities[tapeIndex(ago)];
+        }
+    }
+
+    private int tapeIndex(int ago) {
+        if (ago < 0 || ago >= tapeSize) {
+            throw new IndexOutOfBoundsException("There is no trade " + ago + " trades ago.");
+        }
+        return Math.floorMod(tapeCurrent - ago, tapeTimes.length);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+/**
+ * The most recent candles of one interval, kept in fixed-size primitive rings by a {@link CandleAggregator}. Candles
+ * are addressed by how many candles ago they were opened, where 0 is the candle currently open. Only intervals in which
+ * a trade was made have a candle.
+ * <p>
+ * Thread-safe.
+ */
+public final class CandleSeries {
+    private final long intervalMillis;
+
+    private final long[] startTimes;
+    private final double[] opens;
+    private final double[] highs;
+    private final double[] lows;
+    private final double[] closes;
+    private final double[] volumes;
+    // the sum of price times quantity, from which the volume-weighted average price is found
+    private final double[] notionals;
+
+    // the index of the current candle and the number of candles held
+    private int current = -1;
+    private int size;
+
+    CandleSeries(long intervalMillis, int capacity) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Candle interval must be positive.");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Candle series must be able to hold at least one candle.");
+        }
+
+        this.intervalMillis = intervalMillis;
+        this.startTimes = new long[capacity];
+        this.opens = new double[capacity];
+        this.highs = new double[capacity];
+        this.lows = new double[capacity];
+        this.closes = new double[capacity];
+        this.volumes = new double[capacity];
+        this.notionals = new double[capacity];
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return the maximum number of candles kept
+     */
+    public int getCapacity() {
+        return startTimes.length;
+    }
+
+    /**
+     * @return the number of candles currently held, at most the capacity
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param ago how many candles ago the candle was opened, less than {@link #size()}
+     * @return the time the interval of the candle started, in milliseconds since the epoch
+     */
+    public synchronized long getStartTime(int ago) {
+        return startTimes[index(ago)];
+    }
+
+    public synchronized double getOpen(int ago) {
+        return opens[index(ago)];
+    }
+
+    public synchronized double getHigh(int ago) {
+        return highs[index(ago)];
+    }
+
+    public synchronized double getLow(int ago) {
+        return lows[index(ago)];
+    }
+
+    public synchronized double getClose(int ago) {
+        return closes[index(ago)];
+    }
+
+    public synchronized double getVolume(int ago) {
+        return volumes[index(ago)];
+    }
+
+    /**
+     * @param ago how many candles ago the candle was opened, less than {@link #size()}
+     * @return the average price of the trades in the candle, weighted by their quantities
+     */
+    public synchronized double getVwap(int ago) {
+        int index = index(ago);
+        return notionals[index] / volumes[index];
+    }
+
+    /**
+     * Adds a trade to the candle for its interval, opening a new candle if the interval has moved on. Trades are
+     * expected in time order, and a trade older than the current candle is added to the current candle.
+     */
+    synchronized void add(long timeMillis, double price, double quantity) {
+        long startTime = timeMillis - Math.floorMod(timeMillis, intervalMillis);
+        if (current < 0 || startTime > startTimes[current]) {
+            current = (current + 1) % startTimes.length;
+            size = Math.min(size + 1, startTimes.length);
+
+            startTimes[current] = startTime;
+            opens[current] = price;
+            highs[current] = price;
+            lows[current] = price;
+            volumes[current] = 0;
+            notionals[current] = 0;
+        } else {
+            highs[current] = Math.max(highs[current], price);
+            lows[current] = Math.min(lows[current], price);
+        }
+        closes[current] = price;
+        volumes[current] += quantity;
+        notionals[current] += price * quantity;
+    }
+
+    private int index(int ago) {
+        if (ago < 0 || ago >= size) {
+            throw new IndexOutOfBoundsException("There is no candle " + ago + " candles ago.");
+        }
+        return Math.floorMod(current - ago, startTimes.length);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * A view of one trade in a {@link TradeHistory}, read in place from the columns of its segment. A scan moves the same
+ * view from trade to trade, so a trade must not be kept after it has been handled.
+ * <p>
+ * Not thread-safe.
+ */
+public final class HistoricTrade {
+    private ByteBuffer buffer;
+    private int column;
+    private int at;
+
+    HistoricTrade() {
+    }
+
+    void wrap(ByteBuffer buffer, int capacity, int index) {
+        this.buffer = buffer;
+        this.column = capacity * 8;
+        this.at = TradeHistory.HEADER_LENGTH + index * 8;
+    }
+
+    /**
+     * @return the time of the trade, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return buffer.getLong(at);
+    }
+
+    public long getUnitPriceTicks() {
+        return buffer.getLong(at + column);
+    }
+
+    public long getQuantityTicks() {
+        return buffer.getLong(at + column * 2);
+    }
+
+    public long getBuyerMostSignificantBits() {
+        return buffer.getLong(at + column * 3);
+    }
+
+    public long getBuyerLeastSignificantBits() {
+        return buffer.getLong(at + column * 4);
+    }
+
+    public UUID getBuyerId() {
+        return new UUID(getBuyerMostSignificantBits(), getBuyerLeastSignificantBits());
+    }
+
+    public long getSellerMostSignificantBits() {
+        return buffer.getLong(at + column * 5);
+    }
+
+    public long getSellerLeastSignificantBits() {
+        return buffer.getLong(at + column * 6);
+    }
+
+    public UUID getSellerId() {
+        return new UUID(getSellerMostSignificantBits(), getSellerLeastSignificantBits());
+    }
+}
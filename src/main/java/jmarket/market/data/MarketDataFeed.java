@@ -0,0 +1,212 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An incremental feed of changes to the book of a market and of the trades made in it. Events are written into a
+ * bounded ring and publishing never waits; a {@link Subscription} which falls more than the ring behind is told through
+ * {@link MarketDataHandler#onEventsLost(long)}.
+ * <p>
+ * Publishing is thread-safe, as the books of a market publish under their own locks. Each subscription must only be
+ * polled by one thread at a time.
+ */
+public final class MarketDataFeed {
+    /**
+     * The default number of events kept for subscribers to read.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    // marks a slot which is being written
+    private static final long WRITING = Long.MIN_VALUE;
+
+    private final Slot[] ring;
+    private final int mask;
+
+    // the sequence the next event published will have
+    private final AtomicLong claimed = new AtomicLong();
+
+    public MarketDataFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MarketDataFeed(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Market data feed capacity must be a power of two.");
+        }
+
+        this.ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot(i - capacity);
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Subscribes to events published from now on.
+     *
+     * @return a new subscription
+     */
+    public Subscription subscribe() {
+        return new Subscription(claimed.get());
+    }
+
+    /**
+     * Publishes an event to every subscription. Only waits if another publisher is still writing the same slot, which
+     * takes the whole ring being published to during one write.
+     *
+     * @param type the type of event
+     * @param bid whether the entry is a bid, or for a trade, {@code true}
+     * @param entrySequence the sequence of the entry, or for a trade, of the bid
+     * @param counterpartySequence for a trade, the sequence of the offer, otherwise 0
+     * @param priceTicks the unit price of the entry, or for a trade, the price transacted at
+     * @param quantityTicks the unfilled quantity left after the event, or for a trade, the quantity transacted
+     */
+    public void publish(MarketEventType type, boolean bid, long entrySequence, long counterpartySequence,
+            long priceTicks, long quantityTicks) {
+        long sequence = claimed.getAndIncrement();
+        Slot slot = ring[(int) sequence & mask];
+
+        // readers check the version either side of reading a slot, so claim it before touching anything else
+        while (true) {
+            long version = slot.version;
+            if (version > sequence) {
+                // a publisher a whole ring ahead has already written here, so this event is lost anyway
+                return;
+            }
+            if (version != WRITING && Slot.VERSION.compareAndSet(slot, version, WRITING)) {
+                break;
+            }
+            Thread.onSpinWait();
+        }
+        VarHandle.storeStoreFence();
+        slot.type = type;
+        slot.bid = bid;
+        slot.entrySequence = entrySequence;
+        slot.counterpartySequence = counterpartySequence;
+        slot.priceTicks = priceTicks;
+        slot.quantityTicks = quantityTicks;
+        slot.version = sequence;
+    }
+
+    /**
+     * A reader of a market data feed, with its own position in the feed.
+     */
+    public final class Subscription {
+        private final MarketEvent event = new MarketEvent();
+        private long next;
+
+        private Subscription(long next) {
+            this.next = next;
+        }
+
+        /**
+         * @return the sequence of the next event this subscription will read
+         */
+        public long getPosition() {
+            return next;
+        }
+
+        /**
+         * Reads events which have been published since the last poll and passes them to the handler, in the order they
+         * were published.
+         *
+         * @param handler the handler to pass events to
+         * @param limit the maximum number of events to read
+         * @return the number of events read
+         */
+        public int poll(MarketDataHandler handler, int limit) {
+            int read = 0;
+            while (read < limit) {
+                Slot slot = ring[(int) next & mask];
+                long version = slot.version;
+                if (version == WRITING) {
+                    if (claimed.get() - next <= ring.length) {
+                        // the event we want is still being written
+                        break;
+                    }
+                    skipLost(handler);
+                    continue;
+                }
+                if (version < next) {
+                    break;
+                }
+                if (version > next) {
+                    skipLost(handler);
+                    continue;
+                }
+
+                event.set(version, slot.type, slot.bid, slot.entrySequence, slot.counterpartySequence, slot.priceTicks,
+                        slot.quantityTicks);
+                VarHandle.loadLoadFence();
+                if (slot.version != version) {
+                    // overwritten while we were reading it
+                    continue;
+                }
+
+                handler.onEvent(event);
+                next++;
+                read++;
+            }
+            return read;
+        }
+
+        private void skipLost(MarketDataHandler handler) {
+            // jump to the oldest event which cannot be overwritten before we get to it
+            long oldest = claimed.get() - ring.length + 1;
+            if (oldest > next) {
+                handler.onEventsLost(oldest - next);
+                next = oldest;
+            }
+        }
+    }
+
+    /**
+     * A pre-allocated slot in the ring. The version is the sequence of the event held, or {@link #WRITING} while a
+     * publisher holds it.
+     */
+    private static final class Slot {
+        private static final VarHandle VERSION;
+
+        static {
+            try {
+                VERSION = MethodHandles.lookup().findVarHandle(Slot.class, "version", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private volatile long version;
+
+        private MarketEventType type;
+        private boolean bid;
+        private long entrySequence;
+        private long counterpartySequence;
+        private long priceTicks;
+        private long quantityTicks;
+
+        private Slot(long version) {
+            this.version = version;
+        }
+    }
+}
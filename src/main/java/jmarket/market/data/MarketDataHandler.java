@@ -0,0 +1,40 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+/**
+ * Receives events read from a {@link MarketDataFeed}.
+ */
+@FunctionalInterface
+public interface MarketDataHandler {
+    /**
+     * @param event the event read, which is reused for the next event once this method returns
+     */
+    void onEvent(MarketEvent event);
+
+    /**
+     * Called when the subscription fell so far behind that events were overwritten before it could read them. A handler
+     * keeping a copy of the book should rebuild it, for instance from {@link jmarket.market.Market#getBidLevels}.
+     *
+     * @param count the number of events which were lost
+     */
+    default void onEventsLost(long count) {
+    }
+}
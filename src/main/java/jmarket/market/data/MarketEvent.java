@@ -0,0 +1,94 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+/**
+ * A single event read from a {@link MarketDataFeed}. Instances are reused for every event a subscription reads, so
+ * handlers must copy out anything they want to keep.
+ * <p>
+ * Entries are identified by their sequence in the market, as returned by
+ * {@link jmarket.market.MarketEntry#getSequence()}, and prices and quantities are in ticks of the transaction currency.
+ */
+public final class MarketEvent {
+    private long sequence;
+    private MarketEventType type;
+    private boolean bid;
+    private long entrySequence;
+    private long counterpartySequence;
+    private long priceTicks;
+    private long quantityTicks;
+
+    /**
+     * @return the position of this event in the feed, which increases by one for every event published
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public MarketEventType getType() {
+        return type;
+    }
+
+    /**
+     * @return whether the entry this event is about is a bid rather than an offer, or for a trade, always {@code true}
+     */
+    public boolean isBid() {
+        return bid;
+    }
+
+    /**
+     * @return the sequence of the entry this event is about, or for a trade, of the bid
+     */
+    public long getEntrySequence() {
+        return entrySequence;
+    }
+
+    /**
+     * @return for a trade, the sequence of the offer, otherwise 0
+     */
+    public long getCounterpartySequence() {
+        return counterpartySequence;
+    }
+
+    /**
+     * @return the unit price of the entry, or for a trade, the price transacted at
+     */
+    public long getPriceTicks() {
+        return priceTicks;
+    }
+
+    /**
+     * @return the unfilled quantity left resting after the event, or for a trade, the quantity transacted
+     */
+    public long getQuantityTicks() {
+        return quantityTicks;
+    }
+
+    void set(long sequence, MarketEventType type, boolean bid, long entrySequence, long counterpartySequence,
+            long priceTicks, long quantityTicks) {
+        this.sequence = sequence;
+        this.type = type;
+        this.bid = bid;
+        this.entrySequence = entrySequence;
+        this.counterpartySequence = counterpartySequence;
+        this.priceTicks = priceTicks;
+        this.quantityTicks = quantityTicks;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+/**
+ * The types of event published by a {@link MarketDataFeed}.
+ */
+public enum MarketEventType {
+    /**
+     * An entry has started resting in the book.
+     */
+    ORDER_ADDED,
+    /**
+     * The unfilled quantity of a resting entry has gone down but not to nothing, through a fill or an amendment.
+     */
+    ORDER_REDUCED,
+    /**
+     * An entry has stopped resting in the book, because it was completely filled, cancelled, amended or dropped.
+     */
+    ORDER_REMOVED,
+    /**
+     * A bid and an offer have been transacted successfully.
+     */
+    TRADE
+}
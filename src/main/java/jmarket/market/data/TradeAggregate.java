@@ -0,0 +1,125 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+/**
+ * The open, high, low, close, volume and VWAP of the trades in a range of a {@link TradeHistory}. Prices and quantities
+ * are in ticks of the transaction currency of the market.
+ */
+public final class TradeAggregate {
+    private long count;
+    private long volumeTicks;
+    // the sum of price times quantity, kept as a double as it can overflow a long
+    private double notional;
+    private long openPriceTicks;
+    private long highPriceTicks = Long.MIN_VALUE;
+    private long lowPriceTicks = Long.MAX_VALUE;
+    private long closePriceTicks;
+    private long firstTime;
+    private long lastTime;
+
+    TradeAggregate() {
+    }
+
+    void begin(long time) {
+        if (count == 0) {
+            firstTime = time;
+        }
+    }
+
+    void add(long unitPriceTicks, long quantityTicks) {
+        if (count == 0) {
+            openPriceTicks = unitPriceTicks;
+        }
+        count++;
+        volumeTicks += quantityTicks;
+        notional += (double) unitPriceTicks * quantityTicks;
+        highPriceTicks = Math.max(highPriceTicks, unitPriceTicks);
+        lowPriceTicks = Math.min(lowPriceTicks, unitPriceTicks);
+        closePriceTicks = unitPriceTicks;
+    }
+
+    void end(long time) {
+        lastTime = time;
+    }
+
+    /**
+     * @return the number of trades in the range
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the total quantity traded in the range
+     */
+    public long getVolumeTicks() {
+        return volumeTicks;
+    }
+
+    /**
+     * @return the unit price of the first trade in the range, or 0 if there were none
+     */
+    public long getOpenPriceTicks() {
+        return openPriceTicks;
+    }
+
+    /**
+     * @return the highest unit price traded in the range, or 0 if there were no trades
+     */
+    public long getHighPriceTicks() {
+        return count == 0 ? 0 : highPriceTicks;
+    }
+
+    /**
+     * @return the lowest unit price traded in the range, or 0 if there were no trades
+     */
+    public long getLowPriceTicks() {
+        return count == 0 ? 0 : lowPriceTicks;
+    }
+
+    /**
+     * @return the unit price of the last trade in the range, or 0 if there were none
+     */
+    public long getClosePriceTicks() {
+        return closePriceTicks;
+    }
+
+    /**
+     * @return the volume weighted average unit price of the range, or {@link Double#NaN} if nothing was traded
+     */
+    public double getVolumeWeightedPriceTicks() {
+        return volumeTicks == 0 ? Double.NaN : notional / volumeTicks;
+    }
+
+    /**
+     * @return the time of the first trade in the range, or 0 if there were none
+     */
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * @return the time of the last trade in the range, or 0 if there were none
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+import jmarket.Agent;
+import jmarket.TransactionResult;
+import jmarket.market.TradeConsumer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * An append-only history of the trades made in one market, kept column by column in memory-mapped segment files, so a
+ * query only maps the segments and columns it reads. A trade timed before the last one is recorded at the time of the
+ * last one, and a history reopened after a crash carries on after the last complete trade.
+ * <p>
+ * Thread-safe. Trades are appended one at a time, while queries run alongside without locking.
+ */
+public final class TradeHistory implements TradeConsumer, AutoCloseable {
+    public static final int DEFAULT_SEGMENT_CAPACITY = 1 << 18;
+
+    private static final String PREFIX = "trades-";
+    private static final String SUFFIX = ".seg";
+    private static final int MAGIC = 0x48544D4A;
+    private static final int VERSION = 1;
+    // magic, version, capacity and padding, then the count and the times of the first and last trades
+    static final int HEADER_LENGTH = 64;
+    private static final int COUNT = 16;
+    private static final int FIRST_TIME = 24;
+    private static final int LAST_TIME = 32;
+    // time, unit price, quantity, then the most and least significant bits of the buyer id and of the seller id
+    private static final int COLUMNS = 7;
+
+    private final Path directory;
+    private final int segmentCapacity;
+
+    // replaced rather than modified, so queries can read it without locking
+    private volatile Segment[] segments;
+    // guarded by this
+    private boolean closed;
+
+    private TradeHistory(Path directory, int segmentCapacity, Segment[] segments) {
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the trade history in a directory, carrying on after the last trade recorded in it if there is one.
+     *
+     * @param directory the directory of the segment files, which must exist
+     * @param segmentCapacity the number of trades in each new segment
+     * @return the opened history
+     * @throws IOException if the directory or its segments cannot be read
+     */
+    public static TradeHistory open(Path directory, int segmentCapacity) throws IOException {
+        if (segmentCapacity <= 0 || segmentCapacity > (Integer.MAX_VALUE - HEADER_LENGTH) / (COLUMNS * 8)) {
+            throw new IllegalArgumentException("Trade history segments must hold at least one trade and fit in one "
+                    + "mapping.");
+        }
+
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "[0-9]*" + SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        // the indices are zero-padded, so names sort in the order the segments were created
+        Collections.sort(paths);
+        Segment[] segments = new Segment[paths.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = Segment.open(paths.get(i), i == segments.length - 1);
+        }
+        return new TradeHistory(directory, segmentCapacity, segments);
+    }
+
+    /**
+     * Records a trade if it succeeded.
+     */
+    @Override
+    public void onTrade(long timeMillis, Agent buyer, Agent seller, long bidSequence, long offerSequence,
+            long unitPriceTicks, long quantityTicks, TransactionResult result) {
+        if (result == TransactionResult.SUCCESS) {
+            append(timeMillis, unitPriceTicks, quantityTicks, buyer.getUniqueId(), seller.getUniqueId());
+        }
+    }
+
+    /**
+     * Records a trade.
+     *
+     * @param timeMillis the time of the trade, in milliseconds since the epoch
+     * @param unitPriceTicks the unit price of the trade, in ticks
+     * @param quantityTicks the quantity of the trade, in ticks
+     * @param buyer the unique id of the buyer
+     * @param seller the unique id of the seller
+     * @throws UncheckedIOException if a new segment cannot be created
+     */
+    public synchronized void append(long timeMillis, long unitPriceTicks, long quantityTicks, UUID buyer, UUID seller) {
+        if (closed) {
+            throw new IllegalStateException("Cannot append to a closed trade history.");
+        }
+
+        Segment[] current = segments;
+        Segment segment = current.length == 0 ? null : current[current.length - 1];
+        if (segment != null && segment.count > 0) {
+            timeMillis = Math.max(timeMillis, segment.lastTime);
+        }
+        if (segment == null || segment.count == segment.capacity) {
+            segment = createSegment(current.length);
+            Segment[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = segment;
+            segments = grown;
+        }
+        segment.append(timeMillis, unitPriceTicks, quantityTicks, buyer, seller);
+    }
+
+    /**
+     * @return the number of trades recorded
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Passes every trade made from one time, inclusive, to another, exclusive, to the given consumer in time order. The
+     * trade passed is only valid until the consumer returns.
+     *
+     * @param fromMillis the start of the range, in milliseconds since the epoch
+     * @param toMillis the end of the range, in milliseconds since the epoch
+     * @param consumer the consumer to pass each trade to
+     * @return the number of trades passed
+     */
+    public long scan(long fromMillis, long toMillis, Consumer<? super HistoricTrade> consumer) {
+        HistoricTrade trade = new HistoricTrade();
+        long scanned = 0;
+        Segment[] current = segments;
+        for (int s = firstSegment(current, fromMillis); s < current.length; s++) {
+            Segment segment = current[s];
+            int count = segment.count;
+            if (count == 0 || segment.firstTime >= toMillis) {
+                break;
+            }
+            MappedByteBuffer buffer = segment.map();
+            int end = segment.lowerBound(buffer, count, toMillis);
+            for (int i = segment.lowerBound(buffer, count, fromMillis); i < end; i++) {
+                trade.wrap(buffer, segment.capacity, i);
+                consumer.accept(trade);
+                scanned++;
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Aggregates every trade made from one time, inclusive, to another, exclusive, only reading the times, prices and
+     * quantities of the trades in range.
+     *
+     * @param fromMillis the start of the range, in milliseconds since the epoch
+     * @param toMillis the end of the range, in milliseconds since the epoch
+     * @return the aggregate of the trades in the range
+     */
+    public TradeAggregate aggregate(long fromMillis, long toMillis) {
+        TradeAggregate aggregate = new TradeAggregate();
+        Segment[] current = segments;
+        for (int s = firstSegment(current, fromMillis); s < current.length; s++) {
+            Segment segment = current[s];
+            int count = segment.count;
+            if (count == 0 || segment.firstTime >= toMillis) {
+                break;
+            }
+            MappedByteBuffer buffer = segment.map();
+            int start = segment.lowerBound(buffer, count, fromMillis);
+            int end = segment.lowerBound(buffer, count, toMillis);
+            if (start == end) {
+                continue;
+            }
+            int prices = HEADER_LENGTH + segment.capacity * 8;
+            int quantities = prices + segment.capacity * 8;
+            aggregate.begin(segment.time(buffer, start));
+            for (int i = start; i < end; i++) {
+                aggregate.add(buffer.getLong(prices + i * 8), buffer.getLong(quantities + i * 8));
+            }
+            aggregate.end(segment.time(buffer, end - 1));
+        }
+        return aggregate;
+    }
+
+    /**
+     * Forces every trade recorded in the segment being appended to onto storage.
+     */
+    public void force() {
+        Segment[] current = segments;
+        if (current.length > 0) {
+            current[current.length - 1].map().force();
+        }
+    }
+
+    /**
+     * Forces the segment being appended to onto storage, after which nothing more can be appended. Queries can still be
+     * made.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            force();
+        }
+    }
+
+    /**
+     * @return the index of the first segment which could hold a trade at or after the given time
+     */
+    private static int firstSegment(Segment[] segments, long fromMillis) {
+        int low = 0;
+        int high = segments.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Segment segment = segments[middle];
+            if (segment.count > 0 && segment.lastTime < fromMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private Segment createSegment(int index) {
+        Path path = directory.resolve(String.format("%s%010d%s", PREFIX, index, SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_LENGTH + (long) segmentCapacity * COLUMNS * 8);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, segmentCapacity);
+            return new Segment(path, segmentCapacity, buffer, 0, 0, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create trade history segment " + index + ".", e);
+        }
+    }
+
+    /**
+     * One segment file. Its count and times are only written by the appending thread, and the count is written after
+     * everything else so that queries never see a trade which is not completely recorded.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final int capacity;
+        // mapped lazily for segments which were complete when the history was opened
+        private volatile MappedByteBuffer buffer;
+        private volatile int count;
+        private volatile long firstTime;
+        private volatile long lastTime;
+
+        private Segment(Path path, int capacity, MappedByteBuffer buffer, int count, long firstTime, long lastTime) {
+            this.path = path;
+            this.capacity = capacity;
+            this.buffer = buffer;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+        }
+
+        /**
+         * Opens an existing segment, only reading its header unless it is the last segment, which is mapped to be
+         * appended to.
+         */
+        private static Segment open(Path path, boolean last) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, last
+                    ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+                    : new StandardOpenOption[] {StandardOpenOption.READ})) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // read the whole header
+                }
+                if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                    throw new IOException(path + " is not a trade history segment.");
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Trade history segment version " + header.getInt(4) + " is not supported.");
+                }
+                int capacity = header.getInt(8);
+                int count = (int) header.getLong(COUNT);
+                MappedByteBuffer buffer = null;
+                if (last) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                            HEADER_LENGTH + (long) capacity * COLUMNS * 8);
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                }
+                return new Segment(path, capacity, buffer, count, header.getLong(FIRST_TIME),
+                        header.getLong(LAST_TIME));
+            }
+        }
+
+        private MappedByteBuffer map() {
+            MappedByteBuffer mapped = buffer;
+            if (mapped == null) {
+                synchronized (this) {
+                    mapped = buffer;
+                    if (mapped == null) {
+                        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                    HEADER_LENGTH + (long) capacity * COLUMNS * 8);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("Could not map trade history segment " + path + ".", e);
+                        }
+                        mapped.order(ByteOrder.LITTLE_ENDIAN);
+                        buffer = mapped;
+                    }
+                }
+            }
+            return mapped;
+        }
+
+        private void append(long time, long unitPriceTicks, long quantityTicks, UUID buyer, UUID seller) {
+            MappedByteBuffer mapped = buffer;
+            int index = count;
+            int column = capacity * 8;
+            int at = HEADER_LENGTH + index * 8;
+            mapped.putLong(at, time);
+            mapped.putLong(at + column, unitPriceTicks);
+            mapped.putLong(at + column * 2, quantityTicks);
+            mapped.putLong(at + column * 3, buyer.getMostSignificantBits());
+            mapped.putLong(at + column * 4, buyer.getLeastSignificantBits());
+            mapped.putLong(at + column * 5, seller.getMostSignificantBits());
+            mapped.putLong(at + column * 6, seller.getLeastSignificantBits());
+            if (index == 0) {
+                mapped.putLong(FIRST_TIME, time);
+                firstTime = time;
+            }
+            mapped.putLong(LAST_TIME, time);
+            lastTime = time;
+            // the count is written last, on disk and in memory, so the trade is only seen once it is complete
+            mapped.putLong(COUNT, index + 1);
+            count = index + 1;
+        }
+
+        private long time(MappedByteBuffer mapped, int index) {
+            return mapped.getLong(HEADER_LENGTH + index * 8);
+        }
+
+        /**
+         * @return the index of the first of the given number of trades made at or after the given time
+         */
+        private int lowerBound(MappedByteBuffer mapped, int count, long timeMillis) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (time(mapped, middle) < timeMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
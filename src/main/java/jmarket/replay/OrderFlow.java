@@ -0,0 +1,283 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.replay;
+
+import jmarket.journal.JournalReader;
+import jmarket.journal.JournalRecordType;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A recorded stream of order flow for one market, to be fed into markets by a {@link ReplayDriver}. Events are kept in
+ * primitive columns, with agents referred to by index, so a flow of millions of events is compact and can be shared by
+ * any number of replays running at once.
+ * <p>
+ * Each event is a bid, an offer, the cancellation or amendment of an earlier bid or offer, or an update of the market,
+ * and has the time it was recorded at. Quantities and prices are in ticks of the transaction currency.
+ * <p>
+ * Immutable, and so thread-safe, once built.
+ */
+public final class OrderFlow {
+    public static final byte BID = 0;
+    public static final byte OFFER = 1;
+    public static final byte CANCEL = 2;
+    public static final byte AMEND = 3;
+    public static final byte UPDATE = 4;
+
+    private final int size;
+    private final long[] times;
+    private final byte[] types;
+    // the index of the agent of a bid or offer, or of the event of the entry cancelled or amended
+    private final int[] targets;
+    private final long[] quantities;
+    private final long[] unitPrices;
+    private final UUID[] agents;
+
+    private OrderFlow(Builder builder) {
+        this.size = builder.size;
+        this.times = Arrays.copyOf(builder.times, size);
+        this.types = Arrays.copyOf(builder.types, size);
+        this.targets = Arrays.copyOf(builder.targets, size);
+        this.quantities = Arrays.copyOf(builder.quantities, size);
+        this.unitPrices = Arrays.copyOf(builder.unitPrices, size);
+        this.agents = builder.agents.toArray(new UUID[0]);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Reads the order flow of one market from a journal. Every bid, offer, cancellation and amendment is kept, and
+     * fills are left for the replayed market to make, with an update of the market added wherever the journal shows
+     * fills following other changes. Events are timed by the submission time of the last entry added before them.
+     *
+     * @param reader the reader of the journal
+     * @param marketId the id of the market in the journal
+     * @return the order flow of the market
+     * @throws IOException if the journal cannot be read
+     */
+    public static OrderFlow fromJournal(JournalReader reader, int marketId) throws IOException {
+        Builder builder = new Builder();
+        TObjectIntHashMap<UUID> entries = new TObjectIntHashMap<>(1024, 0.5f, -1);
+        long[] time = new long[1];
+        boolean[] changed = new boolean[1];
+        reader.read(0, record -> {
+            if (record.getType() == JournalRecordType.TRANSFER || record.getMarketId() != marketId) {
+                return;
+            }
+            switch (record.getType()) {
+                case ADD_BID:
+                case ADD_OFFER:
+                    time[0] = record.getSubmissionTime();
+                    UUID agent = record.getAgentId();
+                    int event = record.getType() == JournalRecordType.ADD_BID
+                            ? builder.bid(time[0], agent, record.getQuantityTicks(), record.getUnitPriceTicks())
+                            : builder.offer(time[0], agent, record.getQuantityTicks(), record.getUnitPriceTicks());
+                    entries.put(record.getEntryId(), event);
+                    changed[0] = true;
+                    break;
+                case CANCEL:
+                case AMEND:
+                    int entry = entries.get(record.getEntryId());
+                    if (entry < 0) {
+                        // the entry was added before the start of the journal
+                        return;
+                    }
+                    if (record.getType() == JournalRecordType.CANCEL) {
+                        builder.cancel(time[0], entry);
+                    } else {
+                        builder.amend(time[0], entry, record.getQuantityTicks(), record.getUnitPriceTicks());
+                    }
+                    changed[0] = true;
+                    break;
+                case FILL:
+                case NETTED:
+                    if (changed[0]) {
+                        builder.update(time[0]);
+                        changed[0] = false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        });
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of distinct agents making entries in this flow
+     */
+    public int getAgentCount() {
+        return agents.length;
+    }
+
+    /**
+     * @param agent the index of an agent
+     * @return the unique id of the agent as recorded
+     */
+    public UUID getAgentId(int agent) {
+        return agents[agent];
+    }
+
+    public long getTime(int event) {
+        return times[event];
+    }
+
+    /**
+     * @return the type of the event, which is one of {@link #BID}, {@link #OFFER}, {@link #CANCEL}, {@link #AMEND} and
+     *         {@link #UPDATE}
+     */
+    public byte getType(int event) {
+        return types[event];
+    }
+
+    /**
+     * @return the index of the agent of a bid or offer
+     */
+    public int getAgent(int event) {
+        return targets[event];
+    }
+
+    /**
+     * @return the index of the event which added the entry cancelled or amended
+     */
+    public int getEntryEvent(int event) {
+        return targets[event];
+    }
+
+    /**
+     * @return the quantity of a bid or offer, or the new quantity of an amendment, in ticks
+     */
+    public long getQuantityTicks(int event) {
+        return quantities[event];
+    }
+
+    /**
+     * @return the unit price of a bid or offer, or the new unit price of an amendment, in ticks
+     */
+    public long getUnitPriceTicks(int event) {
+        return unitPrices[event];
+    }
+
+    /**
+     * Builds an order flow one event at a time.
+     * <p>
+     * Not thread-safe.
+     */
+    public static final class Builder {
+        private int size;
+        private long[] times = new long[1024];
+        private byte[] types = new byte[1024];
+        private int[] targets = new int[1024];
+        private long[] quantities = new long[1024];
+        private long[] unitPrices = new long[1024];
+        private final List<UUID> agents = new ArrayList<>();
+        private final TObjectIntHashMap<UUID> agentIndices = new TObjectIntHashMap<>(64, 0.5f, -1);
+
+        private Builder() {
+        }
+
+        /**
+         * @return the index of the event, by which it can later be cancelled or amended
+         */
+        public int bid(long time, UUID agent, long quantityTicks, long unitPriceTicks) {
+            return add(time, BID, agentIndex(agent), quantityTicks, unitPriceTicks);
+        }
+
+        /**
+         * @return the index of the event, by which it can later be cancelled or amended
+         */
+        public int offer(long time, UUID agent, long quantityTicks, long unitPriceTicks) {
+            return add(time, OFFER, agentIndex(agent), quantityTicks, unitPriceTicks);
+        }
+
+        /**
+         * @param entryEvent the index of the event which added the entry
+         * @return the index of the event
+         */
+        public int cancel(long time, int entryEvent) {
+            return add(time, CANCEL, checkEntry(entryEvent), 0, 0);
+        }
+
+        /**
+         * @param entryEvent the index of the event which added the entry
+         * @return the index of the event
+         */
+        public int amend(long time, int entryEvent, long quantityTicks, long unitPriceTicks) {
+            return add(time, AMEND, checkEntry(entryEvent), quantityTicks, unitPriceTicks);
+        }
+
+        /**
+         * @return the index of the event
+         */
+        public int update(long time) {
+            return add(time, UPDATE, -1, 0, 0);
+        }
+
+        public OrderFlow build() {
+            return new OrderFlow(this);
+        }
+
+        private int agentIndex(UUID agent) {
+            int index = agentIndices.get(agent);
+            if (index < 0) {
+                index = agents.size();
+                agents.add(agent);
+                agentIndices.put(agent, index);
+            }
+            return index;
+        }
+
+        private int checkEntry(int entryEvent) {
+            if (entryEvent < 0 || entryEvent >= size || types[entryEvent] > OFFER) {
+                throw new IllegalArgumentException("Event " + entryEvent + " did not add a bid or offer.");
+            }
+            return entryEvent;
+        }
+
+        private int add(long time, byte type, int target, long quantityTicks, long unitPriceTicks) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                types = Arrays.copyOf(types, capacity);
+                targets = Arrays.copyOf(targets, capacity);
+                quantities = Arrays.copyOf(quantities, capacity);
+                unitPrices = Arrays.copyOf(unitPrices, capacity);
+            }
+            times[size] = time;
+            types[size] = type;
+            targets[size] = target;
+            quantities[size] = quantityTicks;
+            unitPrices[size] = unitPriceTicks;
+            return size++;
+        }
+    }
+}
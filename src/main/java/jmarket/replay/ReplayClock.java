@@ -0,0 +1,76 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.replay;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock which only moves when it is set, used to time everything in a replay by the recorded times of its events
+ * rather than by the wall clock. Markets, entries and aggregators given this clock see the same times on every run.
+ * <p>
+ * Not thread-safe; each replay has its own clock.
+ */
+public final class ReplayClock extends Clock {
+    private final ZoneId zone;
+    private long millis;
+
+    public ReplayClock() {
+        this(ZoneOffset.UTC);
+    }
+
+    private ReplayClock(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * @param millis the time to move this clock to, in milliseconds since the epoch
+     */
+    public void setMillis(long millis) {
+        this.millis = millis;
+    }
+
+    @Override
+    public long millis() {
+        return millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * @return a clock in the given zone starting at the current time of this one, which is then set separately
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        ReplayClock clock = new ReplayClock(zone);
+        clock.millis = millis;
+        return clock;
+    }
+}
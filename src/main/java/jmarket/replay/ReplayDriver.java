@@ -0,0 +1,214 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.replay;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.Marketed;
+import jmarket.market.DefaultMarket;
+import jmarket.market.EntryIdSource;
+import jmarket.market.Market;
+import jmarket.market.MarketBid;
+import jmarket.market.MarketEntry;
+import jmarket.market.MarketOffer;
+import jmarket.market.SequencedMarket;
+import jmarket.market.TradeConsumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Feeds recorded {@link OrderFlow} into a market as fast as it can take it, for backtesting. Entries are timed by a
+ * {@link ReplayClock} and given sequential ids with a fixed prefix, so replaying the same flow into the same kind of
+ * market, with agents funded the same way, makes identical trades on every run.
+ * <p>
+ * Not thread-safe; each replay has its own driver, and {@link #runParallel(List, Function, int)} runs many at once.
+ */
+public final class ReplayDriver {
+    private final OrderFlow flow;
+    private final Agent[] agents;
+    private final long idPrefix;
+    private final ReplayClock clock = new ReplayClock();
+
+    /**
+     * @param flow the order flow to replay
+     * @param agents gets or creates the agent which stands in for each recorded agent, by its recorded unique id
+     * @param idPrefix the most significant bits of the ids given to entries, which must be the same for replays meant
+     *                 to be identical
+     */
+    public ReplayDriver(OrderFlow flow, Function<UUID, ? extends Agent> agents, long idPrefix) {
+        this.flow = flow;
+        this.agents = new Agent[flow.getAgentCount()];
+        for (int i = 0; i < this.agents.length; i++) {
+            this.agents[i] = agents.apply(flow.getAgentId(i));
+        }
+        this.idPrefix = idPrefix;
+    }
+
+    /**
+     * @return the clock events are timed by, which is also given to the market being fed if it is a
+     *         {@link DefaultMarket}, so its trades are timed by it too
+     */
+    public ReplayClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Feeds every event of the flow into a market created for this replay, timing a {@link DefaultMarket} by the clock
+     * of this driver. Entries the market refuses, by throwing {@link IllegalArgumentException} or, for a
+     * {@link SequencedMarket}, by leaving them unsequenced, are skipped, as are cancellations and amendments of entries
+     * no longer resting. Bids dropped as unfunded at an update are part of the outcome rather than skipped.
+     *
+     * @param market the market to feed
+     * @param trades receives the trades made by each update of the market
+     * @return the number of events which were skipped
+     */
+    public <T extends Marketed<T>> int run(Market<T> market, TradeConsumer trades) {
+        Currency currency = market.getTransactionCurrency();
+        if (market instanceof DefaultMarket) {
+            ((DefaultMarket<T>) market).setClock(clock);
+        }
+        EntryIdSource ids = EntryIdSource.sequential(idPrefix);
+        UUID[] entries = new UUID[flow.size()];
+        // entries added but not yet known to be sequenced, as a sequenced market adds them on its matching thread
+        List<MarketEntry> added = new ArrayList<>();
+        int skipped = 0;
+        for (int i = 0; i < flow.size(); i++) {
+            clock.setMillis(flow.getTime(i));
+            try {
+                switch (flow.getType(i)) {
+                    case OrderFlow.BID:
+                        MarketBid bid = new MarketBid(agents[flow.getAgent(i)], currency,
+                                currency.fromTicks(flow.getQuantityTicks(i)),
+                                currency.fromTicks(flow.getUnitPriceTicks(i)), ids, clock);
+                        entries[i] = bid.getUniqueId();
+                        market.addBid(bid);
+                        added.add(bid);
+                        break;
+                    case OrderFlow.OFFER:
+                        MarketOffer offer = new MarketOffer(agents[flow.getAgent(i)], currency,
+                                currency.fromTicks(flow.getQuantityTicks(i)),
+                                currency.fromTicks(flow.getUnitPriceTicks(i)), ids, clock);
+                        entries[i] = offer.getUniqueId();
+                        market.addOffer(offer);
+                        added.add(offer);
+                        break;
+                    case OrderFlow.CANCEL:
+                        if (!market.cancel(entries[flow.getEntryEvent(i)])) {
+                            skipped++;
+                        }
+                        skipped += unsequenced(market, added);
+                        break;
+                    case OrderFlow.AMEND:
+                        if (!market.amend(entries[flow.getEntryEvent(i)], currency.fromTicks(flow.getQuantityTicks(i)),
+                                currency.fromTicks(flow.getUnitPriceTicks(i)))) {
+                            skipped++;
+                        }
+                        skipped += unsequenced(market, added);
+                        break;
+                    default:
+                        market.update(trades);
+                        skipped += unsequenced(market, added);
+                        break;
+                }
+            } catch (IllegalArgumentException e) {
+                // the market rejected the event, as it would have when it was recorded
+                skipped++;
+            }
+        }
+        if (market instanceof SequencedMarket && !added.isEmpty()) {
+            ((SequencedMarket<T>) market).sync();
+        }
+        return skipped + unsequenced(market, added);
+    }
+
+    /**
+     * Counts and forgets the added entries which a {@link DefaultMarket} did not sequence. Once a cancellation,
+     * amendment or update of the market returns, every entry added before it has been processed.
+     */
+    private static int unsequenced(Market<?> market, List<MarketEntry> added) {
+        int count = 0;
+        if (market instanceof DefaultMarket) {
+            for (MarketEntry entry : added) {
+                if (entry.getSequence() == 0) {
+                    count++;
+                }
+            }
+        }
+        added.clear();
+        return count;
+    }
+
+    /**
+     * Runs independent replays at once, such as one for each set of parameters of a sweep. Each replay must create its
+     * own agents, market and driver, sharing nothing with the others but the order flow.
+     *
+     * @param parameters the parameters of each replay
+     * @param replay runs the replay for a set of parameters and returns its result
+     * @param threads the number of replays to run at once, usually the number of cores
+     * @return the result of each replay, in the order of the parameters
+     * @throws IllegalStateException if a replay failed with a checked exception or the calling thread was interrupted
+     */
+    public static <P, R> List<R> runParallel(List<P> parameters, Function<? super P, ? extends R> replay, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Replays must be run on at least one thread.");
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        int pool = Math.min(threads, Math.max(1, parameters.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(pool, task -> {
+            Thread thread = new Thread(task, "jmarket-replay-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<? extends R>> futures = new ArrayList<>(parameters.size());
+            for (P parameter : parameters) {
+                futures.add(executor.submit(() -> replay.apply(parameter)));
+            }
+            List<R> results = new ArrayList<>(futures.size());
+            for (Future<? extends R> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("A replay failed.", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for replays.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
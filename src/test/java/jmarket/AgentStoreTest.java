@@ -0,0 +1,114 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AgentStoreTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+
+    @Test
+    public void findsAgentsAcrossChunksByIdAndIndex() {
+        AgentStore store = new AgentStore();
+        // more agents than fit in one chunk of each column
+        int count = 10_000;
+        for (int i = 0; i < count; i++) {
+            store.add(new UUID(2, i)).give(DOLLAR, i);
+        }
+        assertEquals(count, store.size());
+
+        for (int i = 0; i < count; i += 997) {
+            StoredAgent agent = store.get(new UUID(2, i));
+            assertEquals(i, agent.getIndex());
+            assertEquals(new UUID(2, i), store.getUniqueId(i));
+            assertEquals(i, store.get(i).getCurrentWealth().getAmount(DOLLAR), 0);
+            assertEquals(store.get(i), agent);
+        }
+        assertNull(store.get(new UUID(2, count)));
+
+        try {
+            store.add(new UUID(2, 42));
+            fail("An agent was added to the store twice.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            store.getUniqueId(count);
+            fail("An agent was found past the end of the store.");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void tellsListenersWhenAStoredAgentsWealthGoesDown() {
+        AgentStore store = new AgentStore();
+        StoredAgent agent = store.add(new UUID(3, 0));
+        agent.give(DOLLAR, 5);
+        List<Currency> decreased = new ArrayList<>();
+        // added through one handle, and heard through another
+        agent.addWealthListener((changed, currency) -> decreased.add(currency));
+
+        StoredAgent handle = store.get(0);
+        handle.give(DOLLAR, 1);
+        assertTrue(decreased.isEmpty());
+        assertTrue(handle.take(DOLLAR, 2));
+        assertFalse(handle.take(DOLLAR, 5));
+        assertEquals(Arrays.asList(DOLLAR), decreased);
+        assertEquals(4, agent.getCurrentWealth().getAmount(DOLLAR), 0);
+    }
+
+    @Test
+    public void cachesTheWealthOfEachAgentUntilItChanges() {
+        AgentStore store = new AgentStore();
+        StoredAgent first = store.add(new UUID(1, 0));
+        StoredAgent second = store.add(new UUID(1, 1));
+        first.give(DOLLAR, 5);
+        second.give(GOLD, 2);
+
+        WealthSnapshot wealth = first.getCurrentWealth();
+        assertEquals(5, wealth.getAmount(DOLLAR), 0);
+        // every handle to the agent shares the cached snapshot
+        assertSame(wealth, first.getCurrentWealth());
+        assertSame(wealth, store.get(first.getUniqueId()).getCurrentWealth());
+        assertEquals(2, second.getCurrentWealth().getAmount(GOLD), 0);
+
+        first.transfer(second, DOLLAR, 1);
+        WealthSnapshot changed = first.getCurrentWealth();
+        assertNotSame(wealth, changed);
+        assertEquals(4, changed.getAmount(DOLLAR), 0);
+        assertEquals(1, second.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertSame(changed, store.get(0).getCurrentWealth());
+    }
+}
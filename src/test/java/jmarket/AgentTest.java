@@ -0,0 +1,157 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AgentTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+
+    @Test
+    public void transferMovesOnlyWhatIsHeld() {
+        Agent sender = new Agent(new UUID(1, 0), "Sender");
+        Agent recipient = new Agent(new UUID(1, 1), "Recipient");
+        sender.give(DOLLAR, 5);
+
+        assertFalse(sender.transfer(recipient, DOLLAR, 6));
+        assertTrue(sender.transfer(recipient, DOLLAR, 4));
+        // a negative amount is moved the other way
+        assertTrue(sender.transfer(recipient, DOLLAR, -1));
+
+        assertEquals(2, sender.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(3, recipient.getCurrentWealth().getAmount(DOLLAR), 0);
+    }
+
+    @Test
+    public void keepsTheBalanceOfEveryCurrencyApart() {
+        Agent agent = new Agent(new UUID(1, 3), "Agent");
+        // enough currencies to need several chunks of balances
+        List<Currency> currencies = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Currency currency = new Currency("coin " + i, "coins", 2, "%s");
+            currencies.add(currency);
+            agent.give(currency, i + 1);
+        }
+        assertTrue(agent.take(currencies.get(19), 20));
+        assertFalse(agent.take(currencies.get(18), 20));
+
+        WealthSnapshot wealth = agent.getCurrentWealth();
+        for (int i = 0; i < 19; i++) {
+            assertEquals(i + 1, wealth.getAmount(currencies.get(i)), 0);
+        }
+        assertEquals(0, wealth.getAmount(currencies.get(19)), 0);
+        assertEquals(0, wealth.getAmount(DOLLAR), 0);
+    }
+
+    @Test
+    public void concurrentChangesToABalanceAreNotLost() throws InterruptedException {
+        Agent agent = new Agent(new UUID(1, 4), "Agent");
+        agent.give(DOLLAR, 100);
+        AtomicBoolean refused = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    agent.give(DOLLAR, 2);
+                    if (!agent.take(DOLLAR, 1)) {
+                        refused.set(true);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertFalse(refused.get());
+        assertEquals(100 + 4 * 20_000, agent.getCurrentWealth().getAmount(DOLLAR), 0);
+    }
+
+    @Test
+    public void cachesWealthUntilItChanges() {
+        Agent agent = new Agent(new UUID(1, 2), "Agent");
+        agent.give(DOLLAR, 5);
+        WealthSnapshot wealth = agent.getCurrentWealth();
+        assertSame(wealth, agent.getCurrentWealth());
+
+        agent.take(DOLLAR, 1);
+        assertNotSame(wealth, agent.getCurrentWealth());
+        assertEquals(4, agent.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(5, wealth.getAmount(DOLLAR), 0);
+    }
+
+    @Test
+    public void concurrentTransfersAreSeenWhole() throws InterruptedException {
+        AgentStore store = new AgentStore();
+        Agent[] agents = new Agent[8];
+        for (int i = 0; i < agents.length; i++) {
+            // half of the agents keep their own wealth and half are kept in a store
+            agents[i] = i % 2 == 0 ? new Agent(new UUID(2, i), "Agent " + i) : store.add(new UUID(2, i));
+            agents[i].give(DOLLAR, 100);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Random random = new Random(t);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 200000; i++) {
+                    agents[random.nextInt(agents.length)].transfer(agents[random.nextInt(agents.length)], DOLLAR,
+                            random.nextInt(50));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        Thread checker = new Thread(() -> {
+            while (!done.get()) {
+                double total = 0;
+                for (WealthSnapshot wealth : Agent.getCurrentWealth(agents)) {
+                    assertTrue(wealth.getAmount(DOLLAR) >= 0);
+                    total += wealth.getAmount(DOLLAR);
+                }
+                assertEquals(800, total, 0);
+            }
+        });
+        List<Throwable> failures = new ArrayList<>();
+        checker.setUncaughtExceptionHandler((thread, e) -> failures.add(e));
+        checker.start();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        checker.join();
+
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CurrencyTest {
+    @Test
+    public void currenciesWithTheSameNameShareAnId() {
+        Currency first = new Currency("florin", "florins", 2, "%s fl");
+        Currency second = new Currency("florin", "florins", 2, "%s fl");
+        Currency other = new Currency("ducat", "ducats", 2, "%s d");
+
+        assertEquals(first.getId(), second.getId());
+        assertEquals(first, second);
+        assertNotEquals(first.getId(), other.getId());
+        assertSame(first, Currency.getById(second.getId()));
+        assertSame(first, Currency.getByName("florin"));
+        assertNull(Currency.getByName("thaler"));
+        assertTrue(Currency.getRegisteredCount() > Math.max(first.getId(), other.getId()));
+
+        try {
+            new Currency("florin", "florins", 3, "%s fl");
+            fail("A currency was registered again with different significant decimals.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Currency.getById(Currency.getRegisteredCount());
+            fail("An id which was never given out was found.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
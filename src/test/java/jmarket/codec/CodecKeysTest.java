@@ -0,0 +1,74 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CodecKeysTest {
+    @Test
+    public void decodesTheKeysItGives() {
+        Currency dollar = new Currency("dollar", "dollars", 2, "$%s");
+        MarketedCurrency gold = new MarketedCurrency(new Currency("gold", "gold", 2, "%s gold"));
+        long currencyKey = CodecKeys.of(dollar);
+        long marketedKey = CodecKeys.register(gold);
+
+        assertEquals(currencyKey, CodecKeys.of(new Currency("dollar", "dollars", 2, "$%s")));
+        assertEquals(marketedKey, CodecKeys.of(gold));
+        assertEquals(dollar, CodecKeys.getCurrency(currencyKey));
+        assertSame(gold, CodecKeys.getMarketed(marketedKey));
+        assertNull(CodecKeys.getCurrency(currencyKey + 1));
+        // the same name is a different key for a marketed thing than for a currency
+        assertNull(CodecKeys.getMarketed(currencyKey));
+    }
+
+    @Test
+    public void decodesCurrenciesRegisteredWhileDecoding() throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        Currency currency = new Currency("codec " + thread + " " + i, "codecs", 2, "%s");
+                        assertEquals(currency, CodecKeys.getCurrency(CodecKeys.of(currency)));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+}
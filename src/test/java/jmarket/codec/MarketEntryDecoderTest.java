@@ -0,0 +1,86 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.market.MarketBid;
+import jmarket.market.MarketOffer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MarketEntryDecoderTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+
+    @Test
+    public void decodesWhatWasEncoded() {
+        Agent agent = new Agent(new UUID(1, 2), "Agent");
+        MarketBid bid = MarketBid.restore(agent, DOLLAR, 300, 200, 125, new UUID(3, 4), 1234, 7);
+        ByteBuffer buffer = ByteBuffer.allocate(MarketEntryEncoder.ENCODED_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(MarketEntryEncoder.ENCODED_LENGTH, new MarketEntryEncoder().wrap(buffer, 0).encode(bid));
+
+        MarketEntryDecoder decoder = new MarketEntryDecoder().wrap(buffer, 0);
+        assertTrue(decoder.isBid());
+        assertEquals(MarketEntryEncoder.VERSION, decoder.getVersion());
+        assertEquals(MarketEntryEncoder.ENCODED_LENGTH, decoder.getEncodedLength());
+        assertEquals(bid.getUniqueId(), decoder.getEntryId());
+        assertEquals(agent.getUniqueId(), decoder.getAgentId());
+        assertEquals(300, decoder.getInitialQuantityTicks());
+        assertEquals(200, decoder.getQuantityTicks());
+        assertEquals(125, decoder.getUnitPriceTicks());
+        assertEquals(1234, decoder.getSubmissionTime());
+        assertEquals(7, decoder.getSequence());
+        assertEquals(DOLLAR, decoder.getCurrency());
+    }
+
+    @Test
+    public void skipsTheFieldsOfNewerVersions() {
+        Agent agent = new Agent(new UUID(1, 2), "Agent");
+        MarketOffer first = MarketOffer.restore(agent, DOLLAR, 100, 100, 500, new UUID(5, 1), 0, 1);
+        MarketOffer second = MarketOffer.restore(agent, DOLLAR, 200, 150, 600, new UUID(5, 2), 0, 2);
+        int extra = 24;
+        ByteBuffer buffer = ByteBuffer.allocate(2 * MarketEntryEncoder.ENCODED_LENGTH + extra)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        MarketEntryEncoder encoder = new MarketEntryEncoder();
+        encoder.wrap(buffer, 0).encode(first);
+        // as a later version would, with fields this version does not know of after its own
+        MessageHeader.write(buffer, 0, MessageHeader.MARKET_OFFER, MarketEntryEncoder.VERSION + 1,
+                MarketEntryEncoder.BLOCK_LENGTH + extra);
+        encoder.wrap(buffer, MarketEntryEncoder.ENCODED_LENGTH + extra).encode(second);
+
+        MarketEntryDecoder decoder = new MarketEntryDecoder().wrap(buffer, 0);
+        assertFalse(decoder.isBid());
+        assertEquals(MarketEntryEncoder.VERSION + 1, decoder.getVersion());
+        assertEquals(first.getUniqueId(), decoder.getEntryId());
+        assertEquals(500, decoder.getUnitPriceTicks());
+
+        decoder.wrap(buffer, decoder.getEncodedLength());
+        assertEquals(second.getUniqueId(), decoder.getEntryId());
+        assertEquals(150, decoder.getQuantityTicks());
+        assertEquals(2, decoder.getSequence());
+    }
+}
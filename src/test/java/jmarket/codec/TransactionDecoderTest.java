@@ -0,0 +1,74 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.codec;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import jmarket.TransactionResult;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionDecoderTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final MarketedCurrency SILVER = new MarketedCurrency(
+            new Currency("silver", "silver", 2, "%s silver"));
+
+    @Test
+    public void decodesTradesOneAfterAnother() {
+        CodecKeys.register(SILVER);
+        Agent buyer = new Agent(new UUID(1, 1), "Buyer");
+        Agent seller = new Agent(new UUID(1, 2), "Seller");
+        ByteBuffer buffer = ByteBuffer.allocate(2 * TransactionEncoder.ENCODED_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        TransactionEncoder encoder = new TransactionEncoder();
+        assertEquals(TransactionEncoder.ENCODED_LENGTH, encoder.wrap(buffer, 0)
+                .encodeTrade(SILVER, DOLLAR, buyer, seller, 250, 400, TransactionResult.SUCCESS));
+        encoder.wrap(buffer, TransactionEncoder.ENCODED_LENGTH)
+                .encodeTrade(SILVER, DOLLAR, seller, buyer, 300, 100, TransactionResult.WEALTH_SENDER_TOO_POOR);
+
+        TransactionDecoder decoder = new TransactionDecoder().wrap(buffer, 0);
+        assertEquals(TransactionEncoder.VERSION, decoder.getVersion());
+        assertEquals(TransactionEncoder.ENCODED_LENGTH, decoder.getEncodedLength());
+        assertEquals(seller.getUniqueId(), decoder.getMarketedSenderId());
+        assertEquals(buyer.getUniqueId(), decoder.getMarketedRecipientId());
+        assertEquals(buyer.getUniqueId(), decoder.getWealthSenderId());
+        assertEquals(seller.getUniqueId(), decoder.getWealthRecipientId());
+        assertEquals(4, decoder.getQuantity(), 1e-9);
+        assertEquals(10, decoder.getValue(), 1e-9);
+        assertSame(SILVER, decoder.getMarketed());
+        assertEquals(DOLLAR, decoder.getCurrency());
+        assertEquals(TransactionResult.SUCCESS, decoder.getState());
+        assertTrue(decoder.isExecuted());
+
+        decoder.wrap(buffer, decoder.getEncodedLength());
+        assertEquals(buyer.getUniqueId(), decoder.getMarketedSenderId());
+        assertEquals(3, decoder.getValue(), 1e-9);
+        assertEquals(TransactionResult.WEALTH_SENDER_TOO_POOR, decoder.getState());
+        assertFalse(decoder.isExecuted());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalTest {
+    private static final int REGION_SIZE = 4096;
+    // a fill takes 72 bytes, so 56 fit in a region and this many spill into a third
+    private static final int FILLS = 150;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsRecordsBackAcrossRegions() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        long end;
+        try (Journal journal = Journal.open(path, REGION_SIZE, FsyncPolicy.PER_BATCH)) {
+            appendFills(journal, 0, FILLS);
+            journal.commit();
+            end = journal.getPosition();
+            assertTrue(end > 2L * REGION_SIZE);
+        }
+
+        try (JournalReader reader = JournalReader.open(path, REGION_SIZE)) {
+            List<Long> sequences = new ArrayList<>();
+            assertEquals(end, reader.read(0, record -> {
+                int fill = sequences.size();
+                assertEquals(JournalRecordType.FILL, record.getType());
+                assertEquals(7, record.getMarketId());
+                assertEquals(new UUID(1, fill), record.getBidId());
+                assertEquals(new UUID(2, fill), record.getOfferId());
+                assertEquals(100 + fill, record.getUnitPriceTicks());
+                assertEquals(10, record.getQuantityTicks());
+                sequences.add(record.getSequence());
+            }));
+            assertEquals(FILLS, sequences.size());
+            for (int i = 0; i < FILLS; i++) {
+                assertEquals(i + 1, (long) sequences.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void carriesOnFromTheLastRecordWhenReopened() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        long position;
+        try (Journal journal = Journal.open(path, REGION_SIZE, FsyncPolicy.NEVER)) {
+            appendFills(journal, 0, 100);
+            position = journal.getPosition();
+        }
+
+        try (Journal journal = Journal.open(path, REGION_SIZE, FsyncPolicy.NEVER)) {
+            assertEquals(100, journal.getLastSequence());
+            assertEquals(position, journal.getPosition());
+            appendFills(journal, 100, FILLS - 100);
+            assertEquals(FILLS, journal.getLastSequence());
+        }
+
+        try (JournalReader reader = JournalReader.open(path, REGION_SIZE)) {
+            List<UUID> bids = new ArrayList<>();
+            reader.read(0, record -> bids.add(record.getBidId()));
+            assertEquals(FILLS, bids.size());
+            for (int i = 0; i < FILLS; i++) {
+                assertEquals(new UUID(1, i), bids.get(i));
+            }
+
+            // only what was appended after reopening
+            List<Long> sequences = new ArrayList<>();
+            reader.read(position, record -> sequences.add(record.getSequence()));
+            assertEquals(FILLS - 100, sequences.size());
+            assertEquals(101, (long) sequences.get(0));
+        }
+    }
+
+    @Test
+    public void refusesRecordsOnceClosed() throws IOException {
+        Journal journal = Journal.open(folder.getRoot().toPath().resolve("journal"), REGION_SIZE, FsyncPolicy.NEVER);
+        journal.close();
+        try {
+            journal.appendCancel(7, new UUID(1, 0));
+            fail("appended to a closed journal");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static void appendFills(Journal journal, int first, int count) {
+        for (int fill = first; fill < first + count; fill++) {
+            journal.appendFill(7, new UUID(1, fill), new UUID(2, fill), 100 + fill, 10);
+        }
+    }
+}
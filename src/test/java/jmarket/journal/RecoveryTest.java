@@ -0,0 +1,254 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.journal;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import jmarket.WealthSnapshot;
+import jmarket.market.ContinuousMarket;
+import jmarket.market.DefaultMarket;
+import jmarket.market.MarketBid;
+import jmarket.market.MarketOffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecoveryTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+    private static final Currency SILVER = new Currency("silver", "silver", 2, "%s silver");
+    private static final int REGION_SIZE = 1 << 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversFromTheWholeJournal() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        Map<Integer, DefaultMarket<MarketedCurrency>> markets = markets();
+        List<Agent> agents = new ArrayList<>();
+        try (Journal journal = Journal.open(path, REGION_SIZE, FsyncPolicy.NEVER)) {
+            markets.forEach((id, market) -> market.setJournal(journal, id));
+            fund(journal, agents);
+            trade(new Random(42), 5000, journal, markets, agents);
+        }
+
+        Map<UUID, Agent> recovered = new HashMap<>();
+        Map<Integer, DefaultMarket<MarketedCurrency>> restored = markets();
+        Recovery.recover(null, path, REGION_SIZE, restored, id -> recovered.computeIfAbsent(id, key -> new Agent(key,
+                "Recovered")));
+
+        assertEquals(state(markets, agents), state(restored, recovered.values()));
+    }
+
+    @Test
+    public void recoversFromASnapshotAndTheRestOfTheJournal() throws IOException {
+        Path directory = folder.newFolder("snapshots").toPath();
+        Path path = folder.getRoot().toPath().resolve("journal");
+        Map<Integer, DefaultMarket<MarketedCurrency>> markets = markets();
+        List<Agent> agents = new ArrayList<>();
+        long lastSequence;
+        try (Journal journal = Journal.open(path, REGION_SIZE, FsyncPolicy.NEVER);
+                Snapshotter snapshotter = new Snapshotter(directory, journal, markets(), new HashMap<>(), 0, 2)) {
+            markets.forEach((id, market) -> market.setJournal(journal, id));
+            fund(journal, agents);
+            Random random = new Random(7);
+            trade(random, 3000, journal, markets, agents);
+            snapshotter.takeSnapshot();
+            trade(random, 3000, journal, markets, agents);
+            snapshotter.takeSnapshot();
+            trade(random, 1000, journal, markets, agents);
+            lastSequence = journal.getLastSequence();
+        }
+
+        Path snapshot = Snapshotter.findLatest(directory);
+        assertNotNull(snapshot);
+        Map<UUID, Agent> recovered = new HashMap<>();
+        Map<Integer, DefaultMarket<MarketedCurrency>> restored = markets();
+        long sequence = Recovery.recover(snapshot, path, REGION_SIZE, restored, id -> recovered.computeIfAbsent(id,
+                key -> new Agent(key, "Recovered")));
+
+        assertEquals(lastSequence, sequence);
+        assertEquals(state(markets, agents), state(restored, recovered.values()));
+    }
+
+    @Test
+    public void recoversMarketsMatchedOnSeparateThreads() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        Map<Integer, DefaultMarket<MarketedCurrency>> markets = markets();
+        List<Agent> agents = new ArrayList<>();
+        try (Journal journal = Journal.open(path, REGION_SIZE, FsyncPolicy.NEVER)) {
+            markets.forEach((id, market) -> market.setJournal(journal, id));
+            fund(journal, agents);
+            // both markets settle against the same dollars, so their fills interleave with little to spare
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new CopyOnWriteArrayList<>();
+            markets.forEach((id, market) -> {
+                Thread thread = new Thread(() -> trade(new Random(id), 20000, journal, Collections.singletonMap(id,
+                        market), agents));
+                thread.setUncaughtExceptionHandler((t, e) -> failures.add(e));
+                threads.add(thread);
+            });
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(Collections.emptyList(), failures);
+        }
+
+        Map<UUID, Agent> recovered = new HashMap<>();
+        Map<Integer, DefaultMarket<MarketedCurrency>> restored = markets();
+        Recovery.recover(null, path, REGION_SIZE, restored, id -> recovered.computeIfAbsent(id, key -> new Agent(key,
+                "Recovered")));
+
+        assertEquals(state(markets, agents), state(restored, recovered.values()));
+    }
+
+    @Test
+    public void replaysANettedBatchWhole() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        DefaultMarket<MarketedCurrency> market = new DefaultMarket<>(new MarketedCurrency(GOLD), DOLLAR);
+        market.setNettedSettlement(new Agent(new UUID(2, 0), "Clearing"));
+        Agent trader = new Agent(new UUID(1, 0), "Trader");
+        Agent seller = new Agent(new UUID(1, 1), "Seller");
+        Agent buyer = new Agent(new UUID(1, 2), "Buyer");
+        try (Journal journal = Journal.open(path, REGION_SIZE, FsyncPolicy.NEVER)) {
+            market.setJournal(journal, 1);
+            journal.transfer(null, trader, DOLLAR, 5);
+            journal.transfer(null, seller, GOLD, 1);
+            journal.transfer(null, buyer, DOLLAR, 5);
+            // the trader can only deliver what it sells with what it buys in the same batch
+            market.addOffer(new MarketOffer(trader, DOLLAR, 1, 5));
+            market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5));
+            market.addBid(new MarketBid(buyer, DOLLAR, 1, 5));
+            market.addBid(new MarketBid(trader, DOLLAR, 1, 5));
+            market.update();
+        }
+        assertTrue(market.getBids().isEmpty());
+        assertEquals(5, seller.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(1, buyer.getCurrentWealth().getAmount(GOLD), 0);
+
+        Map<UUID, Agent> recovered = new HashMap<>();
+        Map<Integer, DefaultMarket<MarketedCurrency>> restored = new HashMap<>();
+        restored.put(1, new DefaultMarket<>(new MarketedCurrency(GOLD), DOLLAR));
+        restored.get(1).setNettedSettlement(new Agent(new UUID(2, 0), "Clearing"));
+        Recovery.recover(null, path, REGION_SIZE, restored, id -> recovered.computeIfAbsent(id, key -> new Agent(key,
+                "Recovered")));
+
+        assertTrue(restored.get(1).getBids().isEmpty());
+        assertTrue(restored.get(1).getOffers().isEmpty());
+        for (Agent agent : new Agent[] {trader, seller, buyer}) {
+            WealthSnapshot expected = agent.getCurrentWealth();
+            WealthSnapshot actual = recovered.get(agent.getUniqueId()).getCurrentWealth();
+            assertEquals(expected.getAmount(DOLLAR), actual.getAmount(DOLLAR), 0);
+            assertEquals(expected.getAmount(GOLD), actual.getAmount(GOLD), 0);
+        }
+    }
+
+    private static Map<Integer, DefaultMarket<MarketedCurrency>> markets() {
+        Map<Integer, DefaultMarket<MarketedCurrency>> markets = new HashMap<>();
+        markets.put(1, new ContinuousMarket<>(new MarketedCurrency(GOLD), DOLLAR,
+                (timeMillis, buyer, seller, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result) -> {
+                }));
+        markets.put(2, new DefaultMarket<>(new MarketedCurrency(SILVER), DOLLAR));
+        markets.get(2).setNettedSettlement(new Agent(new UUID(2, 1), "Clearing"));
+        return markets;
+    }
+
+    private static void fund(Journal journal, List<Agent> agents) {
+        for (int i = 0; i < 8; i++) {
+            Agent agent = new Agent(new UUID(1, i), "Agent " + i);
+            agents.add(agent);
+            journal.transfer(null, agent, DOLLAR, 60);
+            journal.transfer(null, agent, GOLD, 500);
+            journal.transfer(null, agent, SILVER, 500);
+        }
+    }
+
+    private static void trade(Random random, int steps, Journal journal, Map<Integer, DefaultMarket<MarketedCurrency>>
+            markets, List<Agent> agents) {
+        List<DefaultMarket<MarketedCurrency>> choices = new ArrayList<>(markets.values());
+        List<UUID> entries = new ArrayList<>();
+        for (int i = 0; i < steps; i++) {
+            DefaultMarket<MarketedCurrency> market = choices.get(random.nextInt(choices.size()));
+            Agent agent = agents.get(random.nextInt(agents.size()));
+            int kind = random.nextInt(10);
+            if (kind < 4) {
+                MarketBid bid = new MarketBid(agent, DOLLAR, 1 + random.nextInt(5), 5 + random.nextInt(5));
+                market.addBid(bid);
+                entries.add(bid.getUniqueId());
+            } else if (kind < 8) {
+                MarketOffer offer = new MarketOffer(agent, DOLLAR, 1 + random.nextInt(5), 5 + random.nextInt(5));
+                market.addOffer(offer);
+                entries.add(offer.getUniqueId());
+            } else if (kind == 8 && !entries.isEmpty()) {
+                UUID entry = entries.get(random.nextInt(entries.size()));
+                if (random.nextBoolean()) {
+                    market.cancel(entry);
+                } else {
+                    market.amend(entry, 1 + random.nextInt(3), 5 + random.nextInt(5));
+                }
+            } else {
+                market.update();
+                journal.transfer(agent, agents.get(random.nextInt(agents.size())), DOLLAR, random.nextInt(50));
+            }
+        }
+        markets.values().forEach(DefaultMarket::update);
+    }
+
+    private static String state(Map<Integer, DefaultMarket<MarketedCurrency>> markets, Collection<Agent> agents) {
+        StringBuilder state = new StringBuilder();
+        for (Map.Entry<Integer, DefaultMarket<MarketedCurrency>> market : new TreeMap<>(markets).entrySet()) {
+            state.append("market ").append(market.getKey()).append(' ').append(market.getValue().getLastSequence())
+                    .append('\n');
+            market.getValue().forEachEntry(entry -> state.append(entry instanceof MarketBid ? "bid " : "offer ")
+                    .append(entry.getUniqueId()).append(' ').append(entry.getAgent().getUniqueId()).append(' ')
+                    .append(entry.getQuantityTicks()).append('@').append(entry.getUnitPriceTicks()).append(' ')
+                    .append(entry.getSequence()).append(' ').append(entry.getSubmissionTime().getTime()).append('\n'));
+        }
+        List<Agent> sorted = new ArrayList<>(agents);
+        sorted.sort(Comparator.comparing(Agent::getUniqueId));
+        for (Agent agent : sorted) {
+            WealthSnapshot wealth = agent.getCurrentWealth();
+            state.append("agent ").append(agent.getUniqueId()).append(' ').append(wealth.getAmount(DOLLAR)).append(' ')
+                    .append(wealth.getAmount(GOLD)).append(' ').append(wealth.getAmount(SILVER)).append('\n');
+        }
+        return state.toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import jmarket.TransactionResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CallAuctionMarketTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+
+    @Test
+    public void clearsAtThePriceTransactingTheMost() {
+        CallAuctionMarket<MarketedCurrency> market = market();
+        Agent buyer = agent(0, 100, 0);
+        Agent seller = agent(1, 0, 10);
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 5));
+        market.addBid(new MarketBid(buyer, DOLLAR, 2, 6));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 6));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 7));
+
+        // at 5 only one unit is offered, while at 6 two are both bid and offered
+        assertEquals(Arrays.asList("600 100", "600 100"), update(market));
+        assertEquals(1, market.getBids().size());
+        assertEquals(1, market.getOffers().size());
+        assertEquals(2, buyer.getCurrentWealth().getAmount(GOLD), 0);
+        assertEquals(88, buyer.getCurrentWealth().getAmount(DOLLAR), 0);
+    }
+
+    @Test
+    public void clearsInTheMiddleOfEqualPrices() {
+        CallAuctionMarket<MarketedCurrency> market = market();
+        Agent buyer = agent(0, 100, 0);
+        Agent seller = agent(1, 0, 10);
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 7));
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 6));
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 5));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 4));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 6));
+        // entries only rest until the auction is cleared
+        assertEquals(3, market.getBids().size());
+
+        // two units trade at both 5 and 6 with an imbalance of one, so every fill is halfway between
+        assertEquals(Arrays.asList("550 100", "550 100"), update(market));
+        assertEquals(11, seller.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(Arrays.asList(500L), prices(market.getBids()));
+        assertEquals(Arrays.asList(600L), prices(market.getOffers()));
+    }
+
+    @Test
+    public void nettedAuctionSettlesTheResaleOfWhatItBuys() {
+        // a trader with no gold sells one unit ahead of a seller and buys one back after a buyer, all at one price
+        CallAuctionMarket<MarketedCurrency> market = market();
+        Agent clearing = agent(9, 0, 0);
+        market.setNettedSettlement(clearing);
+        Agent trader = agent(0, 5, 0);
+        Agent seller = agent(1, 0, 1);
+        Agent buyer = agent(2, 5, 0);
+        market.addOffer(new MarketOffer(trader, DOLLAR, 1, 5));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5));
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 5));
+        market.addBid(new MarketBid(trader, DOLLAR, 1, 5));
+
+        List<TransactionResult> results = new ArrayList<>();
+        market.update((timeMillis, bidder, offerer, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result)
+                -> results.add(result));
+
+        // settled one fill at a time, the trader could not deliver what it had yet to buy
+        assertEquals(Collections.nCopies(2, TransactionResult.SUCCESS), results);
+        assertTrue(market.getBids().isEmpty());
+        assertTrue(market.getOffers().isEmpty());
+        assertEquals(5, trader.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(0, trader.getCurrentWealth().getAmount(GOLD), 0);
+        assertEquals(5, seller.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(1, buyer.getCurrentWealth().getAmount(GOLD), 0);
+        assertEquals(0, clearing.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(0, clearing.getCurrentWealth().getAmount(GOLD), 0);
+    }
+
+    @Test
+    public void nettedSettlementCannotBeCombinedWithEscrow() {
+        CallAuctionMarket<MarketedCurrency> market = market();
+        market.setEscrow(agent(8, 0, 0));
+        try {
+            market.setNettedSettlement(agent(9, 0, 0));
+            fail("A market holding entries in escrow was set to settle in netted batches.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        market.setEscrow(null);
+        market.setNettedSettlement(agent(9, 0, 0));
+        try {
+            market.setEscrow(agent(8, 0, 0));
+            fail("A market settling in netted batches was set to hold entries in escrow.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static List<String> update(CallAuctionMarket<MarketedCurrency> market) {
+        List<String> trades = new ArrayList<>();
+        market.update((timeMillis, bidder, offerer, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result)
+                -> trades.add(unitPriceTicks + " " + quantityTicks));
+        return trades;
+    }
+
+    private static List<Long> prices(Collection<? extends MarketEntry> entries) {
+        List<Long> prices = new ArrayList<>();
+        entries.forEach(entry -> prices.add(entry.getUnitPriceTicks()));
+        return prices;
+    }
+
+    private static CallAuctionMarket<MarketedCurrency> market() {
+        return new CallAuctionMarket<>(new MarketedCurrency(GOLD), DOLLAR);
+    }
+
+    private static Agent agent(int index, double dollars, double gold) {
+        Agent agent = new Agent(new UUID(1, index), "Agent " + index);
+        agent.give(DOLLAR, dollars);
+        agent.give(GOLD, gold);
+        return agent;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContinuousMarketTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+
+    @Test
+    public void matchesEachEntryOnArrivalAtTheRestingPrice() {
+        List<String> trades = new ArrayList<>();
+        ContinuousMarket<MarketedCurrency> market = market(trades);
+        Agent seller = agent(0, 0, 10);
+        Agent buyer = agent(1, 100, 0);
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 6));
+        assertTrue(trades.isEmpty());
+
+        // sweeps both offers, each at its own price, and rests the remainder
+        MarketBid bid = new MarketBid(buyer, DOLLAR, 3, 7);
+        market.addBid(bid);
+        assertEquals(Arrays.asList("500 100", "600 100"), trades);
+        assertTrue(market.getOffers().isEmpty());
+        assertEquals(100, bid.getQuantityTicks());
+        assertEquals(11, seller.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(2, buyer.getCurrentWealth().getAmount(GOLD), 0);
+
+        // an offer arriving under the resting bid trades at the bid's price
+        market.addOffer(new MarketOffer(seller, DOLLAR, 2, 4));
+        assertEquals(Arrays.asList("500 100", "600 100", "700 100"), trades);
+        assertTrue(market.getBids().isEmpty());
+        assertEquals(1, market.getOffers().size());
+    }
+
+    @Test
+    public void matchesAnAmendmentWhichCrosses() {
+        List<String> trades = new ArrayList<>();
+        ContinuousMarket<MarketedCurrency> market = market(trades);
+        MarketOffer offer = new MarketOffer(agent(0, 0, 10), DOLLAR, 1, 6);
+        market.addOffer(offer);
+        MarketBid bid = new MarketBid(agent(1, 100, 0), DOLLAR, 1, 5);
+        market.addBid(bid);
+        assertTrue(trades.isEmpty());
+
+        assertTrue(market.amend(bid.getUniqueId(), 1, 6));
+        assertEquals(Arrays.asList("600 100"), trades);
+        assertTrue(market.getBids().isEmpty());
+        assertTrue(market.getOffers().isEmpty());
+    }
+
+    private static ContinuousMarket<MarketedCurrency> market(List<String> trades) {
+        return new ContinuousMarket<>(new MarketedCurrency(GOLD), DOLLAR, (timeMillis, buyer, seller, bidSequence,
+                offerSequence, unitPriceTicks, quantityTicks, result) -> trades.add(unitPriceTicks + " "
+                + quantityTicks));
+    }
+
+    private static Agent agent(int index, double dollars, double gold) {
+        Agent agent = new Agent(new UUID(1, index), "Agent " + index);
+        agent.give(DOLLAR, dollars);
+        agent.give(GOLD, gold);
+        return agent;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import jmarket.MarketedType;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultMarketProviderTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+    private static final Currency SILVER = new Currency("silver", "silver", 2, "%s silver");
+    private static final Currency COPPER = new Currency("copper", "copper", 2, "%s copper");
+
+    @Test
+    public void marketsSharingABidderAreUpdatedInTheOrderAdded() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int round = 0; round < 50; round++) {
+                DefaultMarketProvider provider = new DefaultMarketProvider(DOLLAR,
+                        Collections.singleton(MarketedType.CURRENCY), pool);
+                Market<MarketedCurrency> gold = provider.getMarket(new MarketedCurrency(GOLD));
+                Market<MarketedCurrency> silver = provider.getMarket(new MarketedCurrency(SILVER));
+                Market<MarketedCurrency> copper = provider.getMarket(new MarketedCurrency(COPPER));
+                // the trader can only pay for one of its bids, which must be the one in the market added first
+                Agent trader = agent(0, 5);
+                Agent other = agent(1, 5);
+                gold.addBid(new MarketBid(trader, DOLLAR, 1, 5));
+                silver.addBid(new MarketBid(trader, DOLLAR, 1, 5));
+                copper.addBid(new MarketBid(other, DOLLAR, 1, 5));
+                gold.addOffer(new MarketOffer(agent(2, 0, GOLD), DOLLAR, 1, 5));
+                silver.addOffer(new MarketOffer(agent(3, 0, SILVER), DOLLAR, 1, 5));
+                copper.addOffer(new MarketOffer(agent(4, 0, COPPER), DOLLAR, 1, 5));
+
+                assertEquals(3, provider.updateMarkets().size());
+                assertEquals(1, trader.getCurrentWealth().getAmount(GOLD), 0);
+                assertEquals(0, trader.getCurrentWealth().getAmount(SILVER), 0);
+                assertEquals(1, other.getCurrentWealth().getAmount(COPPER), 0);
+                assertTrue(gold.getBids().isEmpty());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void participantsIncludeTheAgentsWealthMovesThrough() {
+        DefaultMarket<MarketedCurrency> escrowed = new DefaultMarket<>(new MarketedCurrency(GOLD), DOLLAR);
+        Agent escrow = agent(8, 0);
+        escrowed.setEscrow(escrow);
+        DefaultMarket<MarketedCurrency> netted = new DefaultMarket<>(new MarketedCurrency(SILVER), DOLLAR);
+        Agent clearing = agent(9, 0);
+        netted.setNettedSettlement(clearing);
+        Agent trader = agent(0, 10);
+        escrowed.addBid(new MarketBid(trader, DOLLAR, 1, 5));
+        escrowed.addBid(new MarketBid(trader, DOLLAR, 1, 4));
+        netted.addBid(new MarketBid(trader, DOLLAR, 1, 5));
+
+        assertEquals(new HashSet<>(Arrays.asList(trader, escrow)), escrowed.getParticipants());
+        assertEquals(new HashSet<>(Arrays.asList(trader, clearing)), netted.getParticipants());
+    }
+
+    private static Agent agent(int index, double dollars) {
+        Agent agent = new Agent(new UUID(1, index), "Agent " + index);
+        agent.give(DOLLAR, dollars);
+        return agent;
+    }
+
+    private static Agent agent(int index, double dollars, Currency held) {
+        Agent agent = agent(index, dollars);
+        agent.give(held, 1);
+        return agent;
+    }
+}
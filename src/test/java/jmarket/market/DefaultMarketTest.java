@@ -0,0 +1,422 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import jmarket.TransactionResult;
+import jmarket.journal.FsyncPolicy;
+import jmarket.journal.Journal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DefaultMarketTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cancelRemovesOnlyRestingEntries() {
+        DefaultMarket<MarketedCurrency> market = market();
+        MarketBid bid = new MarketBid(agent(0, 100, 0), DOLLAR, 1, 5);
+        MarketOffer offer = new MarketOffer(agent(1, 0, 10), DOLLAR, 1, 6);
+        market.addBid(bid);
+        market.addOffer(offer);
+
+        assertTrue(market.cancel(bid.getUniqueId()));
+        assertFalse(market.cancel(bid.getUniqueId()));
+        assertTrue(market.getBids().isEmpty());
+        assertTrue(market.cancel(offer.getUniqueId()));
+        assertTrue(market.getOffers().isEmpty());
+        assertFalse(market.amend(offer.getUniqueId(), 1, 6));
+    }
+
+    @Test
+    public void reducingAnEntryKeepsItsPriority() {
+        DefaultMarket<MarketedCurrency> market = market();
+        MarketBid first = new MarketBid(agent(0, 100, 0), DOLLAR, 3, 5);
+        MarketBid second = new MarketBid(agent(1, 100, 0), DOLLAR, 3, 5);
+        market.addBid(first);
+        market.addBid(second);
+        long sequence = first.getSequence();
+
+        assertTrue(market.amend(first.getUniqueId(), 2, 5));
+
+        List<MarketEntry> entries = entries(market);
+        assertEquals(first.getUniqueId(), entries.get(0).getUniqueId());
+        assertEquals(sequence, entries.get(0).getSequence());
+        assertEquals(DOLLAR.toTicks(2), entries.get(0).getQuantityTicks());
+    }
+
+    @Test
+    public void enlargingOrRepricingAnEntryLosesItsPriority() {
+        DefaultMarket<MarketedCurrency> market = market();
+        MarketOffer first = new MarketOffer(agent(0, 0, 10), DOLLAR, 1, 5);
+        MarketOffer second = new MarketOffer(agent(1, 0, 10), DOLLAR, 1, 5);
+        market.addOffer(first);
+        market.addOffer(second);
+
+        assertTrue(market.amend(first.getUniqueId(), 2, 5));
+
+        List<MarketEntry> entries = entries(market);
+        assertEquals(second.getUniqueId(), entries.get(0).getUniqueId());
+        assertEquals(first.getUniqueId(), entries.get(1).getUniqueId());
+        assertTrue(entries.get(1).getSequence() > second.getSequence());
+
+        assertTrue(market.amend(first.getUniqueId(), 2, 4));
+        assertEquals(first.getUniqueId(), entries(market).get(0).getUniqueId());
+    }
+
+    @Test
+    public void reportsTheTopAndDepthOfEachBook() {
+        DefaultMarket<MarketedCurrency> market = market();
+        assertTrue(Double.isNaN(market.getBestBidPrice()));
+        assertTrue(Double.isNaN(market.getBestOfferPrice()));
+        assertEquals(0, market.getBidDepth(), 0);
+        assertEquals(0, market.getBidLevels(new long[4], new long[4]));
+
+        Agent buyer = agent(0, 100, 0);
+        Agent seller = agent(1, 0, 10);
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 5));
+        MarketBid best = new MarketBid(buyer, DOLLAR, 2, 5.5);
+        market.addBid(best);
+        market.addBid(new MarketBid(buyer, DOLLAR, 3, 5));
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 4));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1.5, 6));
+
+        assertEquals(5.5, market.getBestBidPrice(), 0);
+        assertEquals(6, market.getBestOfferPrice(), 0);
+        assertEquals(7, market.getBidDepth(), 0);
+        assertEquals(1.5, market.getOfferDepth(), 0);
+        // only as many levels as fit in the shorter array
+        long[] prices = new long[2];
+        long[] quantities = new long[3];
+        assertEquals(2, market.getBidLevels(prices, quantities));
+        assertEquals(Arrays.asList(550L, 500L), Arrays.asList(prices[0], prices[1]));
+        assertEquals(Arrays.asList(200L, 400L, 0L), Arrays.asList(quantities[0], quantities[1], quantities[2]));
+        assertEquals(1, market.getOfferLevels(prices, quantities));
+        assertEquals(600, prices[0]);
+        assertEquals(150, quantities[0]);
+
+        assertTrue(market.cancel(best.getUniqueId()));
+        assertEquals(5, market.getBestBidPrice(), 0);
+        assertEquals(5, market.getBidDepth(), 0);
+    }
+
+    @Test
+    public void sequencesFollowArrivalAcrossBothBooks() {
+        DefaultMarket<MarketedCurrency> market = market();
+        MarketBid first = new MarketBid(agent(0, 100, 0), DOLLAR, 1, 5);
+        MarketOffer second = new MarketOffer(agent(1, 0, 10), DOLLAR, 1, 6);
+        MarketBid third = new MarketBid(agent(2, 100, 0), DOLLAR, 1, 5);
+        assertEquals(0, first.getSequence());
+        market.addBid(first);
+        market.addOffer(second);
+        market.addBid(third);
+        assertEquals(1, first.getSequence());
+        assertEquals(2, second.getSequence());
+        assertEquals(3, third.getSequence());
+
+        // an amendment arrives again, behind everything already resting at its price
+        assertTrue(market.amend(first.getUniqueId(), 2, 5));
+        assertEquals(4, market.getLastSequence());
+        List<MarketEntry> entries = entries(market);
+        assertSame(third, entries.get(0));
+        assertEquals(first.getUniqueId(), entries.get(1).getUniqueId());
+        assertEquals(4, entries.get(1).getSequence());
+    }
+
+    @Test
+    public void dropsOnlyTheBidsABidderCanNoLongerFund() {
+        DefaultMarket<MarketedCurrency> market = market();
+        Agent bidder = agent(0, 10, 0);
+        Agent other = agent(1, 10, 0);
+        MarketBid cheap = new MarketBid(bidder, DOLLAR, 1, 5);
+        MarketBid dear = new MarketBid(bidder, DOLLAR, 1, 8);
+        market.addBid(cheap);
+        market.addBid(dear);
+        market.addBid(new MarketBid(other, DOLLAR, 1, 9));
+        market.update();
+        assertEquals(3, market.getBids().size());
+
+        // spending some of what backs the bids is only noticed for this bidder, at the next update
+        assertTrue(bidder.transfer(other, DOLLAR, 4));
+        assertEquals(3, market.getBids().size());
+        market.update();
+        assertEquals(2, market.getBids().size());
+        assertTrue(market.getBids().contains(cheap));
+        assertFalse(market.getBids().contains(dear));
+
+        // a bid made without the funds for it is dropped too
+        market.addBid(new MarketBid(agent(2, 1, 0), DOLLAR, 1, 5));
+        market.update();
+        assertEquals(2, market.getBids().size());
+    }
+
+    @Test
+    public void partialFillsLeaveTheRemainderInPlace() {
+        DefaultMarket<MarketedCurrency> market = market();
+        MarketOffer large = new MarketOffer(agent(0, 0, 10), DOLLAR, 3, 5);
+        MarketOffer later = new MarketOffer(agent(1, 0, 10), DOLLAR, 1, 5);
+        MarketBid high = new MarketBid(agent(2, 100, 0), DOLLAR, 1, 6);
+        MarketBid low = new MarketBid(agent(3, 100, 0), DOLLAR, 1, 5);
+        market.addOffer(large);
+        market.addOffer(later);
+        market.addBid(high);
+        market.addBid(low);
+
+        List<String> trades = new ArrayList<>();
+        market.update((timeMillis, buyer, seller, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result)
+                -> trades.add(bidSequence + " " + offerSequence + " " + unitPriceTicks + " " + quantityTicks));
+
+        assertEquals(Arrays.asList("3 1 500 100", "4 1 500 100"), trades);
+        // what is left of the large offer is the same entry, still ahead of the one which arrived after it
+        assertEquals(Arrays.asList(large, later), entries(market));
+        assertEquals(300, large.getInitialQuantityTicks());
+        assertEquals(100, large.getQuantityTicks());
+        assertEquals(1, large.getSequence());
+    }
+
+    @Test
+    public void amendingAnEscrowedBidSettlesTheDifference() {
+        DefaultMarket<MarketedCurrency> market = market();
+        Agent escrow = agent(9, 0, 0);
+        market.setEscrow(escrow);
+        Agent bidder = agent(0, 10, 0);
+        MarketBid bid = new MarketBid(bidder, DOLLAR, 1, 5);
+        market.addBid(bid);
+        assertEquals(5, escrow.getCurrentWealth().getAmount(DOLLAR), 0);
+
+        assertTrue(market.amend(bid.getUniqueId(), 1, 8));
+        assertEquals(8, escrow.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(2, bidder.getCurrentWealth().getAmount(DOLLAR), 0);
+
+        try {
+            market.amend(bid.getUniqueId(), 1, 20);
+            fail("The bidder cannot fund the amended bid.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(DOLLAR.toTicks(8), entries(market).get(0).getUnitPriceTicks());
+        assertEquals(8, escrow.getCurrentWealth().getAmount(DOLLAR), 0);
+
+        assertTrue(market.cancel(bid.getUniqueId()));
+        assertEquals(10, bidder.getCurrentWealth().getAmount(DOLLAR), 0);
+    }
+
+    @Test
+    public void anEntryWhichCannotBeJournalledIsLeftOut() throws IOException {
+        for (boolean escrowed : new boolean[] {false, true}) {
+            DefaultMarket<MarketedCurrency> market = market();
+            Agent escrow = agent(9, 0, 0);
+            if (escrowed) {
+                market.setEscrow(escrow);
+            }
+            Journal journal = Journal.open(folder.newFile().toPath(), 1 << 16, FsyncPolicy.NEVER);
+            market.setJournal(journal, 1);
+            journal.close();
+            Agent bidder = agent(0, 10, 0);
+            Agent seller = agent(1, 0, 10);
+            MarketBid bid = new MarketBid(bidder, DOLLAR, 1, 5);
+            MarketOffer offer = new MarketOffer(seller, DOLLAR, 1, 6);
+            try {
+                market.addBid(bid);
+                fail("A bid was added without being journalled.");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                market.addOffer(offer);
+                fail("An offer was added without being journalled.");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            assertTrue(market.getBids().isEmpty());
+            assertTrue(market.getOffers().isEmpty());
+            assertEquals(0, bid.getSequence());
+            assertEquals(0, offer.getSequence());
+            assertEquals(10, bidder.getCurrentWealth().getAmount(DOLLAR), 0);
+            assertEquals(10, seller.getCurrentWealth().getAmount(GOLD), 0);
+            assertEquals(0, escrow.getCurrentWealth().getAmount(DOLLAR), 0);
+
+            // the entries were left as they were made, so they can still be added
+            market.setJournal(null, 0);
+            market.addBid(bid);
+            market.addOffer(offer);
+            assertEquals(2, entries(market).size());
+        }
+    }
+
+    @Test
+    public void escrowRefundsThePriceImprovementOfAFill() {
+        DefaultMarket<MarketedCurrency> market = market();
+        Agent escrow = agent(9, 0, 0);
+        market.setEscrow(escrow);
+        Agent bidder = agent(0, 10, 0);
+        Agent seller = agent(1, 0, 3);
+        market.addBid(new MarketBid(bidder, DOLLAR, 3, 0.07));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 3, 0.05));
+        assertEquals(0.21, escrow.getCurrentWealth().getAmount(DOLLAR), 1e-12);
+
+        market.update();
+
+        assertEquals(9.85, bidder.getCurrentWealth().getAmount(DOLLAR), 1e-12);
+        assertEquals(0.15, seller.getCurrentWealth().getAmount(DOLLAR), 1e-12);
+        assertEquals(3, bidder.getCurrentWealth().getAmount(GOLD), 0);
+        assertEquals(0, escrow.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(0, escrow.getCurrentWealth().getAmount(GOLD), 0);
+    }
+
+    @Test
+    public void nettingSettlesFillsOnlyFundedTogether() {
+        List<TransactionResult> gross = new ArrayList<>();
+        DefaultMarket<MarketedCurrency> grossMarket = resoldBeforeBought(agent(0, 5, 0), gross, false);
+        // the trader has nothing to deliver for its offer, so that fill fails and its bid is left unfilled
+        assertEquals(Arrays.asList(TransactionResult.MARKETED_SENDER_NOT_ENOUGH, TransactionResult.SUCCESS), gross);
+        assertEquals(1, grossMarket.getBids().size());
+
+        List<TransactionResult> netted = new ArrayList<>();
+        Agent trader = agent(0, 5, 0);
+        DefaultMarket<MarketedCurrency> nettedMarket = resoldBeforeBought(trader, netted, true);
+        assertEquals(Arrays.asList(TransactionResult.SUCCESS, TransactionResult.SUCCESS), netted);
+        assertTrue(nettedMarket.getBids().isEmpty());
+        assertTrue(nettedMarket.getOffers().isEmpty());
+        assertEquals(5, trader.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(0, trader.getCurrentWealth().getAmount(GOLD), 0);
+    }
+
+    @Test
+    public void nettingMatchesGrossSettlementWhenEveryoneCanPay() {
+        List<String> gross = new ArrayList<>();
+        List<String> netted = new ArrayList<>();
+        Agent[] grossAgents = funded(gross, false);
+        Agent[] nettedAgents = funded(netted, true);
+
+        assertFalse(gross.isEmpty());
+        assertEquals(gross, netted);
+        for (int i = 0; i < grossAgents.length; i++) {
+            assertEquals(grossAgents[i].getCurrentWealth().getAmount(DOLLAR),
+                    nettedAgents[i].getCurrentWealth().getAmount(DOLLAR), 1e-9);
+            assertEquals(grossAgents[i].getCurrentWealth().getAmount(GOLD),
+                    nettedAgents[i].getCurrentWealth().getAmount(GOLD), 1e-9);
+        }
+    }
+
+    @Test
+    public void replayedNettedBatchSettlesOnce() {
+        DefaultMarket<MarketedCurrency> market = market();
+        market.setNettedSettlement(agent(9, 0, 0));
+        Agent trader = agent(0, 0, 1);
+        Agent seller = agent(1, 0, 1);
+        Agent buyer = agent(2, 5, 0);
+        MarketOffer sold = MarketOffer.restore(seller, DOLLAR, 100, 100, 500, new UUID(2, 0), 0, 1);
+        MarketOffer resold = MarketOffer.restore(trader, DOLLAR, 100, 100, 500, new UUID(2, 1), 0, 2);
+        MarketBid bought = MarketBid.restore(trader, DOLLAR, 100, 100, 500, new UUID(2, 2), 0, 3);
+        MarketBid rebought = MarketBid.restore(buyer, DOLLAR, 100, 100, 500, new UUID(2, 3), 0, 4);
+        market.replayAdd(sold);
+        market.replayAdd(resold);
+        market.replayAdd(bought);
+        market.replayAdd(rebought);
+
+        market.replayNetted(new UUID[] {bought.getUniqueId(), rebought.getUniqueId()},
+                new UUID[] {sold.getUniqueId(), resold.getUniqueId()}, new long[] {500, 500}, new long[] {100, 100});
+
+        assertTrue(market.getBids().isEmpty());
+        assertTrue(market.getOffers().isEmpty());
+        assertEquals(1, trader.getCurrentWealth().getAmount(GOLD), 0);
+        assertEquals(5, seller.getCurrentWealth().getAmount(DOLLAR), 0);
+        assertEquals(1, buyer.getCurrentWealth().getAmount(GOLD), 0);
+    }
+
+    /**
+     * A trader with no gold offers one unit ahead of a seller, and bids for one unit after a buyer, all at the same
+     * price.
+     *
+     * @return the market after an update
+     */
+    private static DefaultMarket<MarketedCurrency> resoldBeforeBought(Agent trader, List<TransactionResult> results,
+            boolean netted) {
+        DefaultMarket<MarketedCurrency> market = market();
+        market.setNettedSettlement(netted ? agent(9, 0, 0) : null);
+        Agent seller = agent(1, 0, 1);
+        Agent buyer = agent(2, 5, 0);
+        market.addOffer(new MarketOffer(trader, DOLLAR, 1, 5));
+        market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5));
+        market.addBid(new MarketBid(buyer, DOLLAR, 1, 5));
+        market.addBid(new MarketBid(trader, DOLLAR, 1, 5));
+        market.update((timeMillis, bidder, offerer, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result)
+                -> results.add(result));
+        return market;
+    }
+
+    private static Agent[] funded(List<String> trades, boolean netted) {
+        DefaultMarket<MarketedCurrency> market = market();
+        market.setNettedSettlement(netted ? agent(9, 0, 0) : null);
+        Agent[] agents = new Agent[4];
+        for (int i = 0; i < agents.length; i++) {
+            agents[i] = agent(i, 1000, 100);
+        }
+        for (int i = 0; i < 20; i++) {
+            market.addBid(new MarketBid(agents[i % 4], DOLLAR, 1 + i % 3, 5 + i % 4));
+            market.addOffer(new MarketOffer(agents[(i + 1) % 4], DOLLAR, 2 + i % 2, 4 + i % 5));
+        }
+        market.update((timeMillis, buyer, seller, bidSequence, offerSequence, unitPriceTicks, quantityTicks,
+                result) -> {
+            assertSame(TransactionResult.SUCCESS, result);
+            trades.add(buyer.getUniqueId() + " " + seller.getUniqueId() + " " + bidSequence + " " + offerSequence + " "
+                    + unitPriceTicks + " " + quantityTicks);
+        });
+        return agents;
+    }
+
+    private static DefaultMarket<MarketedCurrency> market() {
+        return new DefaultMarket<>(new MarketedCurrency(GOLD), DOLLAR);
+    }
+
+    private static Agent agent(int index, double dollars, double gold) {
+        Agent agent = new Agent(new UUID(1, index), "Agent " + index);
+        agent.give(DOLLAR, dollars);
+        agent.give(GOLD, gold);
+        return agent;
+    }
+
+    private static List<MarketEntry> entries(DefaultMarket<?> market) {
+        List<MarketEntry> entries = new ArrayList<>();
+        market.forEachEntry(entries::add);
+        return entries;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EntryIdSourceTest {
+    @Test
+    public void sequentialIdsAreDistinctVersion8Ids() {
+        EntryIdSource source = EntryIdSource.sequential(0x0123456789ABCDEFL);
+        Set<UUID> ids = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            UUID id = source.nextUniqueId();
+            assertEquals(8, id.version());
+            assertEquals(2, id.variant());
+            assertTrue(ids.add(id));
+        }
+
+        // a source with the same prefix makes the same ids, and one with another prefix does not
+        UUID first = EntryIdSource.sequential(0x0123456789ABCDEFL).nextUniqueId();
+        assertTrue(ids.contains(first));
+        assertNotEquals(first, EntryIdSource.sequential(0x0123456789ABCDEEL).nextUniqueId());
+        assertNotEquals(4, first.version());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MarketEntryTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Agent AGENT = new Agent(new UUID(1, 0), "Agent");
+
+    @Test
+    public void rejectsQuantitiesOfLessThanOneTick() {
+        try {
+            new MarketBid(AGENT, DOLLAR, 0.004, 5);
+            fail("A bid for less than one tick was made.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new MarketOffer(AGENT, DOLLAR, 0.004, 5);
+            fail("An offer for less than one tick was made.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, new MarketBid(AGENT, DOLLAR, 0.006, 5).getQuantityTicks());
+    }
+
+    @Test
+    public void ordersEntriesAtOnePriceTotally() {
+        // added second but submitted first, added first but submitted last, and not added but submitted in between
+        MarketBid second = MarketBid.restore(AGENT, DOLLAR, 100, 100, 500, new UUID(2, 0), 100, 2);
+        MarketBid first = MarketBid.restore(AGENT, DOLLAR, 100, 100, 500, new UUID(2, 1), 300, 1);
+        MarketBid pending = new MarketBid(AGENT, DOLLAR, 1, 5, EntryIdSource.SEQUENTIAL, clock(200));
+
+        assertTrue(first.compareTo(second) > 0);
+        assertTrue(second.compareTo(pending) > 0);
+        assertTrue(first.compareTo(pending) > 0);
+        assertTrue(pending.compareTo(first) < 0);
+
+        MarketOffer a = new MarketOffer(AGENT, DOLLAR, 1, 5, EntryIdSource.SEQUENTIAL, clock(200));
+        MarketOffer b = new MarketOffer(AGENT, DOLLAR, 1, 5, EntryIdSource.SEQUENTIAL, clock(200));
+        // the same price and submission time still leaves the entries in an order, by unique id
+        assertEquals(-Integer.signum(a.compareTo(b)), Integer.signum(b.compareTo(a)));
+        assertTrue(a.compareTo(b) != 0);
+        assertEquals(0, a.compareTo(a));
+    }
+
+    @Test
+    public void ordersBidsHighestAndOffersLowestFirst() {
+        MarketBid low = new MarketBid(AGENT, DOLLAR, 1, 5);
+        MarketBid high = new MarketBid(AGENT, DOLLAR, 1, 6);
+        assertTrue(high.compareTo(low) > 0);
+
+        MarketOffer cheap = new MarketOffer(AGENT, DOLLAR, 1, 5);
+        MarketOffer dear = new MarketOffer(AGENT, DOLLAR, 1, 6);
+        assertTrue(cheap.compareTo(dear) > 0);
+    }
+
+    private static Clock clock(long millis) {
+        return Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    }
+}
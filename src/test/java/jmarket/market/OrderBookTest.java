@@ -0,0 +1,135 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OrderBookTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+
+    @Test
+    public void queuesEntriesByPriceThenArrival() {
+        Agent agent = new Agent(new UUID(1, 0), "Agent");
+        OrderBook<MarketBid> bids = OrderBook.bids();
+        MarketBid lowFirst = new MarketBid(agent, DOLLAR, 1, 5);
+        MarketBid highFirst = new MarketBid(agent, DOLLAR, 2, 6);
+        MarketBid lowSecond = new MarketBid(agent, DOLLAR, 3, 5);
+        MarketBid highSecond = new MarketBid(agent, DOLLAR, 4, 6);
+        Arrays.asList(lowFirst, highFirst, lowSecond, highSecond).forEach(bids::add);
+
+        assertEquals(Arrays.asList(highFirst, highSecond, lowFirst, lowSecond), entries(bids));
+        assertSame(highFirst, bids.peekBest());
+        assertEquals(600, bids.getBestPrice());
+        assertEquals(2, bids.getLevelCount());
+        assertEquals(1000, bids.getQuantity());
+        long[] prices = new long[2];
+        long[] quantities = new long[2];
+        assertEquals(2, bids.getLevels(prices, quantities, 2));
+        assertArrayEquals(new long[] {600, 500}, prices);
+        assertArrayEquals(new long[] {600, 400}, quantities);
+
+        OrderBook<MarketOffer> offers = OrderBook.offers();
+        MarketOffer high = new MarketOffer(agent, DOLLAR, 1, 6);
+        MarketOffer low = new MarketOffer(agent, DOLLAR, 1, 5);
+        offers.add(high);
+        offers.add(low);
+        assertEquals(Arrays.asList(low, high), entries(offers));
+    }
+
+    @Test
+    public void fillsTheBestEntryInPlaceUntilItIsGone() {
+        Agent agent = new Agent(new UUID(1, 0), "Agent");
+        OrderBook<MarketOffer> offers = OrderBook.offers();
+        MarketOffer first = new MarketOffer(agent, DOLLAR, 2, 5);
+        MarketOffer second = new MarketOffer(agent, DOLLAR, 1, 5);
+        offers.add(first);
+        offers.add(second);
+
+        assertFalse(offers.fillBest(150));
+        assertSame(first, offers.peekBest());
+        assertEquals(50, first.getQuantityTicks());
+        assertEquals(150, offers.getQuantity());
+
+        assertTrue(offers.fillBest(50));
+        assertSame(second, offers.peekBest());
+        assertNull(offers.get(first.getUniqueId()));
+        assertEquals(1, offers.size());
+
+        assertSame(second, offers.pollBest());
+        assertTrue(offers.isEmpty());
+        assertEquals(Long.MIN_VALUE, offers.getBestPrice());
+        assertEquals(0, offers.getLevelCount());
+    }
+
+    @Test
+    public void removesEntriesFromTheirLevelAndTheirAgent() {
+        Agent agent = new Agent(new UUID(1, 0), "Agent");
+        Agent other = new Agent(new UUID(1, 1), "Other");
+        OrderBook<MarketBid> bids = OrderBook.bids();
+        MarketBid best = new MarketBid(agent, DOLLAR, 1, 7);
+        MarketBid front = new MarketBid(other, DOLLAR, 1, 5);
+        MarketBid middle = new MarketBid(agent, DOLLAR, 1, 5);
+        MarketBid back = new MarketBid(other, DOLLAR, 1, 5);
+        MarketBid last = new MarketBid(agent, DOLLAR, 1, 4);
+        Arrays.asList(best, front, middle, back, last).forEach(bids::add);
+
+        assertSame(middle, bids.remove(middle.getUniqueId()));
+        assertNull(bids.remove(middle.getUniqueId()));
+        assertEquals(Arrays.asList(best, front, back, last), entries(bids));
+
+        // the agent index still reaches the entries either side of the one removed
+        assertTrue(bids.removeIf(agent, entry -> true));
+        assertFalse(bids.hasEntriesOf(agent));
+        assertTrue(bids.hasEntriesOf(other));
+        assertEquals(Arrays.asList(front, back), entries(bids));
+        assertEquals(500, bids.getBestPrice());
+        assertEquals(1, bids.getLevelCount());
+
+        List<Agent> agents = new ArrayList<>();
+        bids.forEachAgent(agents::add);
+        assertEquals(Arrays.asList(other), agents);
+
+        assertTrue(bids.removeIf(entry -> entry == front));
+        assertTrue(bids.removeIf(other, entry -> true));
+        assertTrue(bids.isEmpty());
+        assertFalse(bids.hasEntriesOf(other));
+        assertEquals(0, bids.getQuantity());
+    }
+
+    private static <E extends MarketEntry> List<E> entries(OrderBook<E> book) {
+        List<E> entries = new ArrayList<>();
+        book.forEach(entries::add);
+        return entries;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SequencedMarketTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+
+    @Test
+    public void rejectsCommandsBeforeStartAndAfterClose() {
+        SequencedMarket<MarketedCurrency> market = market(4);
+        // the ring only holds four commands, so publishing more would wait for a thread which never runs
+        for (int i = 0; i < 8; i++) {
+            try {
+                market.addBid(new MarketBid(agent(0, 100, 0), DOLLAR, 1, 5));
+                fail("A bid was published before the market was started.");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        try {
+            market.update();
+            fail("An update was published before the market was started.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        market.start();
+        market.close();
+        assertTrue(market.isClosed());
+        try {
+            market.cancel(UUID.randomUUID());
+            fail("A cancellation was published after the market was closed.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void refusedAddsCompleteExceptionally() {
+        SequencedMarket<MarketedCurrency> market = market(SequencedMarket.DEFAULT_CAPACITY);
+        market.setEscrow(agent(9, 0, 0));
+        market.start();
+        try {
+            MarketBid funded = new MarketBid(agent(0, 10, 0), DOLLAR, 1, 5);
+            MarketBid unfunded = new MarketBid(agent(1, 0, 0), DOLLAR, 1, 5);
+            CompletableFuture<Void> added = market.requestAddBid(funded);
+            CompletableFuture<Void> refused = market.requestAddBid(unfunded);
+
+            added.join();
+            try {
+                refused.join();
+                fail("A bid which could not be funded was added.");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+            assertTrue(funded.getSequence() > 0);
+            assertEquals(0, unfunded.getSequence());
+            assertEquals(1, market.getBids().size());
+        } finally {
+            market.close();
+        }
+    }
+
+    @Test
+    public void sequencesEveryPublishedEntryOnce() throws InterruptedException {
+        SequencedMarket<MarketedCurrency> market = market(64);
+        market.start();
+        try {
+            List<MarketEntry> entries = new ArrayList<>();
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < 4; p++) {
+                Agent agent = agent(p, 1_000_000, 1_000_000);
+                List<MarketEntry> published = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    // bids below every offer, so nothing matches
+                    published.add(i % 2 == 0 ? new MarketBid(agent, DOLLAR, 1, 1 + i % 5)
+                            : new MarketOffer(agent, DOLLAR, 1, 10 + i % 5));
+                }
+                entries.addAll(published);
+                producers.add(new Thread(() -> published.forEach(entry -> {
+                    if (entry instanceof MarketBid) {
+                        market.addBid((MarketBid) entry);
+                    } else {
+                        market.addOffer((MarketOffer) entry);
+                    }
+                })));
+            }
+            producers.forEach(Thread::start);
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            market.sync();
+
+            Set<Long> sequences = new HashSet<>();
+            for (MarketEntry entry : entries) {
+                assertTrue(sequences.add(entry.getSequence()));
+            }
+            assertFalse(sequences.contains(0L));
+            assertEquals(entries.size(), market.getLastSequence());
+            assertEquals(entries.size(), market.getBids().size() + market.getOffers().size());
+        } finally {
+            market.close();
+        }
+    }
+
+    @Test
+    public void updatesAfterEverythingPublishedBefore() {
+        SequencedMarket<MarketedCurrency> market = market(SequencedMarket.DEFAULT_CAPACITY);
+        market.start();
+        try {
+            Agent buyer = agent(0, 10, 0);
+            Agent seller = agent(1, 0, 1);
+            market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5));
+            market.addBid(new MarketBid(buyer, DOLLAR, 1, 5));
+            List<Long> prices = new ArrayList<>();
+            market.update((timeMillis, bidder, offerer, bidSequence, offerSequence, unitPriceTicks, quantityTicks,
+                    result) -> prices.add(unitPriceTicks));
+
+            assertEquals(1, prices.size());
+            assertEquals(DOLLAR.toTicks(5), (long) prices.get(0));
+            assertEquals(1, buyer.getCurrentWealth().getAmount(GOLD), 0);
+            assertEquals(5, seller.getCurrentWealth().getAmount(DOLLAR), 0);
+        } finally {
+            market.close();
+        }
+    }
+
+    private static SequencedMarket<MarketedCurrency> market(int capacity) {
+        return new SequencedMarket<>(new MarketedCurrency(GOLD), DOLLAR, capacity, task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Agent agent(int index, double dollars, double gold) {
+        Agent agent = new Agent(new UUID(1, index), "Agent " + index);
+        agent.give(DOLLAR, dollars);
+        agent.give(GOLD, gold);
+        return agent;
+    }
+}
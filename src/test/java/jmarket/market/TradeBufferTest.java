@@ -0,0 +1,91 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import jmarket.Transaction;
+import jmarket.TransactionResult;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TradeBufferTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+
+    @Test
+    public void recordsEveryTradeOfAnUpdate() {
+        DefaultMarket<MarketedCurrency> market = new DefaultMarket<>(new MarketedCurrency(GOLD), DOLLAR);
+        Agent buyer = agent(0, 100, 0);
+        Agent seller = agent(1, 0, 10);
+        for (int i = 0; i < 5; i++) {
+            market.addOffer(new MarketOffer(seller, DOLLAR, 1, 5 + i));
+        }
+        market.addBid(new MarketBid(buyer, DOLLAR, 5, 10));
+
+        // smaller than the update, so it has to grow
+        TradeBuffer trades = new TradeBuffer(2);
+        market.update(trades);
+        assertEquals(5, trades.size());
+        for (int i = 0; i < 5; i++) {
+            assertSame(buyer, trades.getBuyer(i));
+            assertSame(seller, trades.getSeller(i));
+            assertEquals(6, trades.getBidSequence(i));
+            assertEquals(i + 1, trades.getOfferSequence(i));
+            assertEquals(500 + 100 * i, trades.getUnitPriceTicks(i));
+            assertEquals(100, trades.getQuantityTicks(i));
+            assertSame(TransactionResult.SUCCESS, trades.getResult(i));
+        }
+
+        Transaction<MarketedCurrency> transaction = trades.getTransaction(4, market);
+        assertTrue(transaction.isExecuted());
+        assertSame(TransactionResult.SUCCESS, transaction.getState());
+        assertEquals(1, transaction.getQuantity(), 0);
+        assertEquals(9, transaction.getValue(), 0);
+        assertSame(buyer, transaction.getWealthComponent().getSender());
+        assertSame(buyer, transaction.getMarketedComponent().getRecipient());
+
+        trades.clear();
+        assertEquals(0, trades.size());
+        try {
+            trades.getBuyer(0);
+            fail("A trade was read from a cleared buffer.");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        trades.onTrade(0, buyer, null, 0, 0, 500, 100, TransactionResult.WEALTH_SENDER_TOO_POOR);
+        assertNull(trades.getSeller(0));
+    }
+
+    private static Agent agent(int index, double dollars, double gold) {
+        Agent agent = new Agent(new UUID(1, index), "Agent " + index);
+        agent.give(DOLLAR, dollars);
+        agent.give(GOLD, gold);
+        return agent;
+    }
+}
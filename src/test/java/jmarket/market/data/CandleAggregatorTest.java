@@ -0,0 +1,76 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+import jmarket.Currency;
+import jmarket.TransactionResult;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CandleAggregatorTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+
+    @Test
+    public void aggregatesTradesIntoCandlesForEachInterval() {
+        CandleAggregator aggregator = new CandleAggregator(DOLLAR, 2, 4, 1000, 60_000);
+        aggregator.onTrade(10_100, 5, 1);
+        aggregator.onTrade(10_500, 7, 3);
+        aggregator.onTrade(10_900, 4, 1);
+        aggregator.onTrade(11_200, 6, 2);
+        aggregator.onTrade(13_000, 5, 1);
+
+        CandleSeries seconds = aggregator.getSeries(1000);
+        // the ring only holds the two latest candles
+        assertEquals(2, seconds.size());
+        assertEquals(13_000, seconds.getStartTime(0));
+        assertEquals(11_000, seconds.getStartTime(1));
+        assertEquals(6, seconds.getOpen(1), 0);
+        assertEquals(2, seconds.getVolume(1), 0);
+
+        CandleSeries minutes = aggregator.getSeries(60_000);
+        assertEquals(1, minutes.size());
+        assertEquals(0, minutes.getStartTime(0));
+        assertEquals(5, minutes.getOpen(0), 0);
+        assertEquals(7, minutes.getHigh(0), 0);
+        assertEquals(4, minutes.getLow(0), 0);
+        assertEquals(5, minutes.getClose(0), 0);
+        assertEquals(8, minutes.getVolume(0), 0);
+        assertEquals((5 + 21 + 4 + 12 + 5) / 8.0, minutes.getVwap(0), 1e-9);
+    }
+
+    @Test
+    public void keepsTheMostRecentSuccessfulTradesOnTheTape() {
+        CandleAggregator aggregator = new CandleAggregator(DOLLAR, 4, 2, 1000);
+        aggregator.onTrade(1000, null, null, 1, 2, 500, 100, TransactionResult.SUCCESS);
+        aggregator.onTrade(2000, null, null, 3, 4, 600, 200, TransactionResult.WEALTH_SENDER_TOO_POOR);
+        aggregator.onTrade(3000, null, null, 5, 6, 700, 300, TransactionResult.SUCCESS);
+        aggregator.onTrade(4000, null, null, 7, 8, 800, 150, TransactionResult.SUCCESS);
+
+        assertEquals(2, aggregator.getTapeSize());
+        assertEquals(4000, aggregator.getTradeTime(0));
+        assertEquals(8, aggregator.getTradePrice(0), 0);
+        assertEquals(1.5, aggregator.getTradeQuantity(0), 0);
+        assertEquals(7, aggregator.getTradePrice(1), 0);
+        // the failed trade was never recorded
+        assertEquals(3, aggregator.getSeries(1000).size());
+        assertEquals(3000, aggregator.getSeries(1000).getStartTime(1));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MarketDataFeedTest {
+    @Test
+    public void readsEventsPublishedSinceSubscribingInOrder() {
+        MarketDataFeed feed = new MarketDataFeed(8);
+        feed.publish(MarketEventType.ORDER_ADDED, true, 1, 0, 500, 100);
+        MarketDataFeed.Subscription subscription = feed.subscribe();
+        feed.publish(MarketEventType.ORDER_ADDED, false, 2, 0, 510, 200);
+        feed.publish(MarketEventType.TRADE, true, 1, 2, 505, 50);
+
+        List<String> events = new ArrayList<>();
+        assertEquals(2, subscription.poll(event -> events.add(event.getSequence() + " " + event.getType() + " "
+                + event.isBid() + " " + event.getEntrySequence() + " " + event.getCounterpartySequence() + " "
+                + event.getPriceTicks() + " " + event.getQuantityTicks()), 10));
+        assertEquals(List.of("1 ORDER_ADDED false 2 0 510 200", "2 TRADE true 1 2 505 50"), events);
+        assertEquals(0, subscription.poll(event -> events.add("unexpected"), 10));
+        assertEquals(3, subscription.getPosition());
+    }
+
+    @Test
+    public void skipsEventsOverwrittenBeforeTheyWereRead() {
+        MarketDataFeed feed = new MarketDataFeed(4);
+        MarketDataFeed.Subscription subscription = feed.subscribe();
+        for (int i = 0; i < 10; i++) {
+            feed.publish(MarketEventType.ORDER_ADDED, true, i, 0, 500, 100);
+        }
+
+        List<Long> read = new ArrayList<>();
+        long[] lost = new long[1];
+        subscription.poll(new MarketDataHandler() {
+            @Override
+            public void onEvent(MarketEvent event) {
+                read.add(event.getEntrySequence());
+            }
+
+            @Override
+            public void onEventsLost(long count) {
+                lost[0] += count;
+            }
+        }, 10);
+        assertEquals(7, lost[0]);
+        assertEquals(List.of(7L, 8L, 9L), read);
+    }
+
+    @Test
+    public void neverReadsAnEventTornBetweenPublishers() throws InterruptedException {
+        // a small ring, so publishers lap each other and the reader
+        MarketDataFeed feed = new MarketDataFeed(16);
+        MarketDataFeed.Subscription subscription = feed.subscribe();
+        int publishers = 4;
+        int perPublisher = 200_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            long publisher = p;
+            threads.add(new Thread(() -> {
+                for (long i = 0; i < perPublisher; i++) {
+                    long value = publisher * perPublisher + i;
+                    feed.publish(MarketEventType.ORDER_ADDED, true, publisher, i, value, value);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        AtomicBoolean torn = new AtomicBoolean();
+        long[] counts = new long[2];
+        long[] last = new long[] {-1};
+        MarketDataHandler handler = new MarketDataHandler() {
+            @Override
+            public void onEvent(MarketEvent event) {
+                long value = event.getEntrySequence() * perPublisher + event.getCounterpartySequence();
+                if (event.getPriceTicks() != value || event.getQuantityTicks() != value
+                        || event.getSequence() <= last[0]) {
+                    torn.set(true);
+                }
+                last[0] = event.getSequence();
+                counts[0]++;
+            }
+
+            @Override
+            public void onEventsLost(long count) {
+                counts[1] += count;
+            }
+        };
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            subscription.poll(handler, 64);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        subscription.poll(handler, Integer.MAX_VALUE);
+
+        assertFalse(torn.get());
+        assertTrue(counts[0] > 0);
+        assertEquals((long) publishers * perPublisher, counts[0] + counts[1]);
+    }
+}
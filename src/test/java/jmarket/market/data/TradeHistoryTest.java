@@ -0,0 +1,110 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.market.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TradeHistoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void queriesRangesAcrossSegments() throws IOException {
+        try (TradeHistory history = TradeHistory.open(folder.getRoot().toPath(), 4)) {
+            for (int i = 0; i < 10; i++) {
+                history.append(1000 + 100 * i, 500 + i, 100, new UUID(1, i), new UUID(2, i));
+            }
+            // recorded at the time of the trade before it
+            history.append(1500, 600, 50, new UUID(1, 10), new UUID(2, 10));
+            assertEquals(11, history.size());
+            assertEquals(3, history.getSegmentCount());
+
+            assertEquals(Arrays.asList(1300L, 1400L, 1500L, 1600L, 1700L), times(history, 1250, 1750));
+            assertEquals(Arrays.asList(1900L, 1900L), times(history, 1900, 5000));
+            assertEquals(Arrays.asList(), times(history, 0, 1000));
+
+            TradeAggregate aggregate = history.aggregate(1250, 1750);
+            assertEquals(5, aggregate.getCount());
+            assertEquals(500, aggregate.getVolumeTicks());
+            assertEquals(503, aggregate.getOpenPriceTicks());
+            assertEquals(507, aggregate.getHighPriceTicks());
+            assertEquals(503, aggregate.getLowPriceTicks());
+            assertEquals(507, aggregate.getClosePriceTicks());
+            assertEquals(1300, aggregate.getFirstTime());
+            assertEquals(1700, aggregate.getLastTime());
+        }
+    }
+
+    @Test
+    public void carriesOnAfterAPartialSegmentWhenReopened() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (TradeHistory history = TradeHistory.open(directory, 4)) {
+            for (int i = 0; i < 6; i++) {
+                history.append(1000 + i, 500, 100, new UUID(1, i), new UUID(2, i));
+            }
+        }
+
+        try (TradeHistory history = TradeHistory.open(directory, 4)) {
+            assertEquals(6, history.size());
+            assertEquals(2, history.getSegmentCount());
+            for (int i = 6; i < 9; i++) {
+                history.append(1000 + i, 500, 100, new UUID(1, i), new UUID(2, i));
+            }
+            // the partial segment was filled before a new one was made
+            assertEquals(3, history.getSegmentCount());
+
+            List<UUID> buyers = new ArrayList<>();
+            assertEquals(9, history.scan(Long.MIN_VALUE, Long.MAX_VALUE, trade -> buyers.add(trade.getBuyerId())));
+            for (int i = 0; i < 9; i++) {
+                assertEquals(new UUID(1, i), buyers.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void refusesTradesOnceClosed() throws IOException {
+        TradeHistory history = TradeHistory.open(folder.getRoot().toPath(), 4);
+        history.close();
+        try {
+            history.append(1000, 500, 100, new UUID(1, 0), new UUID(2, 0));
+            fail("appended to a closed history");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static List<Long> times(TradeHistory history, long fromMillis, long toMillis) {
+        List<Long> times = new ArrayList<>();
+        history.scan(fromMillis, toMillis, trade -> times.add(trade.getTime()));
+        return times;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of jmarket.
+ *
+ * Copyright (c) ${project.inceptionYear} Oliver Stanley
+ * Politics is licensed under the Affero General Public License Version 3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jmarket.replay;
+
+import jmarket.Agent;
+import jmarket.Currency;
+import jmarket.MarketedCurrency;
+import jmarket.market.DefaultMarket;
+import jmarket.market.SequencedMarket;
+import jmarket.market.TradeConsumer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReplayDriverTest {
+    private static final Currency DOLLAR = new Currency("dollar", "dollars", 2, "$%s");
+    private static final Currency GOLD = new Currency("gold", "gold", 2, "%s gold");
+    private static final int AGENTS = 6;
+
+    @Test
+    public void replaysOfTheSameFlowAreIdentical() {
+        OrderFlow flow = randomFlow(new Random(42), 5000);
+        Replay first = replay(flow);
+        Replay second = replay(flow);
+
+        assertFalse(first.trades.isEmpty());
+        assertEquals(first.trades, second.trades);
+        assertEquals(first.balances, second.balances);
+        assertEquals(first.skipped, second.skipped);
+    }
+
+    @Test
+    public void parallelReplaysMatchASerialReplay() {
+        OrderFlow flow = randomFlow(new Random(7), 5000);
+        Replay serial = replay(flow);
+        List<Replay> parallel = ReplayDriver.runParallel(Arrays.asList(1, 2, 3, 4), run -> replay(flow), 4);
+
+        for (Replay replay : parallel) {
+            assertEquals(serial.trades, replay.trades);
+            assertEquals(serial.balances, replay.balances);
+        }
+    }
+
+    @Test
+    public void refusedEventsAreSkipped() {
+        Map<UUID, Agent> agents = new HashMap<>();
+        DefaultMarket<MarketedCurrency> market = new DefaultMarket<>(new MarketedCurrency(GOLD), DOLLAR);
+        market.setEscrow(new Agent(UUID.randomUUID(), "Escrow"));
+
+        int skipped = new ReplayDriver(refusedFlow(), id -> fund(agents, id), 1).run(market, trades());
+
+        assertEquals(2, skipped);
+        assertEquals(1, market.getBids().size());
+    }
+
+    @Test
+    public void entriesRefusedOnTheMatchingThreadAreSkipped() {
+        Map<UUID, Agent> agents = new HashMap<>();
+        SequencedMarket<MarketedCurrency> market = new SequencedMarket<>(new MarketedCurrency(GOLD), DOLLAR,
+                SequencedMarket.DEFAULT_CAPACITY, task -> {
+                    Thread thread = new Thread(task);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        market.setEscrow(new Agent(UUID.randomUUID(), "Escrow"));
+        market.start();
+        try {
+            int skipped = new ReplayDriver(refusedFlow(), id -> fund(agents, id), 1).run(market, trades());
+
+            assertEquals(2, skipped);
+            assertEquals(1, market.getBids().size());
+        } finally {
+            market.close();
+        }
+    }
+
+    /**
+     * A funded bid, a bid by an agent with nothing, and the first bid cancelled twice.
+     */
+    private static OrderFlow refusedFlow() {
+        OrderFlow.Builder builder = OrderFlow.builder();
+        builder.bid(1, agentId(0), 100, 500);
+        int funded = builder.bid(2, agentId(0), 100, 500);
+        builder.bid(3, new UUID(2, 0), 100, 500);
+        builder.cancel(4, funded);
+        builder.cancel(5, funded);
+        return builder.build();
+    }
+
+    private static OrderFlow randomFlow(Random random, int events) {
+        OrderFlow.Builder builder = OrderFlow.builder();
+        List<Integer> entries = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            long time = 1000L + i;
+            int kind = random.nextInt(10);
+            if (kind < 4) {
+                entries.add(builder.bid(time, agentId(random.nextInt(AGENTS)), 100 + random.nextInt(400),
+                        450 + random.nextInt(100)));
+            } else if (kind < 8) {
+                entries.add(builder.offer(time, agentId(random.nextInt(AGENTS)), 100 + random.nextInt(400),
+                        450 + random.nextInt(100)));
+            } else if (kind == 8 && !entries.isEmpty()) {
+                int entry = entries.get(random.nextInt(entries.size()));
+                if (random.nextBoolean()) {
+                    builder.cancel(time, entry);
+                } else {
+                    builder.amend(time, entry, 100 + random.nextInt(400), 450 + random.nextInt(100));
+                }
+            } else {
+                builder.update(time);
+            }
+        }
+        builder.update(1000L + events);
+        return builder.build();
+    }
+
+    private static Replay replay(OrderFlow flow) {
+        Map<UUID, Agent> agents = new HashMap<>();
+        DefaultMarket<MarketedCurrency> market = new DefaultMarket<>(new MarketedCurrency(GOLD), DOLLAR);
+        Replay replay = new Replay();
+        replay.skipped = new ReplayDriver(flow, id -> fund(agents, id), 1).run(market,
+                (timeMillis, buyer, seller, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result) ->
+                        replay.trades.add(timeMillis + " " + buyer.getUniqueId() + " " + seller.getUniqueId() + " "
+                                + bidSequence + " " + offerSequence + " " + unitPriceTicks + " " + quantityTicks + " "
+                                + result));
+        for (int i = 0; i < AGENTS; i++) {
+            Agent agent = agents.get(agentId(i));
+            replay.balances.add(agent.getCurrentWealth().getAmount(DOLLAR) + " "
+                    + agent.getCurrentWealth().getAmount(GOLD));
+        }
+        return replay;
+    }
+
+    private static TradeConsumer trades() {
+        return (timeMillis, buyer, seller, bidSequence, offerSequence, unitPriceTicks, quantityTicks, result) -> {
+        };
+    }
+
+    private static Agent fund(Map<UUID, Agent> agents, UUID id) {
+        return agents.computeIfAbsent(id, key -> {
+            Agent agent = new Agent(key, "Agent");
+            if (key.getMostSignificantBits() == 1) {
+                agent.give(DOLLAR, 2000);
+                agent.give(GOLD, 200);
+            }
+            return agent;
+        });
+    }
+
+    private static UUID agentId(int agent) {
+        return new UUID(1, agent);
+    }
+
+    private static final class Replay {
+        final List<String> trades = new ArrayList<>();
+        final List<String> balances = new ArrayList<>();
+        int skipped;
+    }
+}